@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+/**
+ * Operation timeout that adapts to the observed callback latency of a connection.  The estimate follows the smoothed
+ * round trip time algorithm from RFC 6298: the timeout is the smoothed latency plus four times its mean deviation,
+ * doubled after each timeout, and clamped between a floor and ceiling.  A manual override bypasses the estimate entirely.
+ */
+public final class AdaptiveTimeout {
+    /** Timeout used before any latency has been measured, in milliseconds */
+    public static final long DEFAULT_INITIAL = 1000L;
+    /** Default lower bound of the timeout, in milliseconds; matches the fixed timeout the adaptive one replaced */
+    public static final long DEFAULT_FLOOR = 250L;
+    /** Default upper bound of the timeout, in milliseconds */
+    public static final long DEFAULT_CEILING = 10000L;
+
+    private static final double ALPHA = 1.0 / 8.0, BETA = 1.0 / 4.0;
+
+    private long floor = DEFAULT_FLOOR, ceiling = DEFAULT_CEILING, override;
+    private double srtt, rttvar, timeout = DEFAULT_INITIAL;
+    private boolean measured;
+
+    AdaptiveTimeout() { }
+
+    /**
+     * Sets the range the adaptive timeout is restricted to
+     * @param floor      Smallest timeout allowed, in milliseconds
+     * @param ceiling    Largest timeout allowed, in milliseconds
+     */
+    public synchronized void setBounds(long floor, long ceiling) {
+        if (floor <= 0 || ceiling < floor) {
+            throw new IllegalArgumentException("Bounds must satisfy 0 < floor <= ceiling (floor = " + floor + ", ceiling = " + ceiling + ")");
+        }
+
+        this.floor = floor;
+        this.ceiling = ceiling;
+    }
+
+    /**
+     * Fixes the timeout to a specific value, ignoring the latency estimate
+     * @param timeout    Timeout to use, in milliseconds, or 0 to go back to the adaptive value
+     */
+    public synchronized void setOverride(long timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Override cannot be negative");
+        }
+        override = timeout;
+    }
+
+    /**
+     * Retrieves the timeout to apply to the next operation
+     * @return Timeout, in milliseconds
+     */
+    public synchronized long current() {
+        if (override != 0) {
+            return override;
+        }
+        return Math.min(ceiling, Math.max(floor, (long) Math.ceil(timeout)));
+    }
+
+    /**
+     * Retrieves the smoothed callback latency
+     * @return Smoothed latency in milliseconds, 0 if no operation has completed yet
+     */
+    public synchronized double smoothedLatency() {
+        return srtt;
+    }
+
+    synchronized void onLatency(double latency) {
+        if (!measured) {
+            srtt = latency;
+            rttvar = latency / 2;
+            measured = true;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - latency);
+            srtt = (1 - ALPHA) * srtt + ALPHA * latency;
+        }
+        timeout = srtt + 4 * rttvar;
+    }
+
+    synchronized void onTimeout() {
+        timeout = Math.min(ceiling, Math.max(floor, timeout) * 2);
+    }
+}
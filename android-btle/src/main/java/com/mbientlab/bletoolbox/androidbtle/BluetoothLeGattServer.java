@@ -35,18 +35,18 @@ import android.content.Context;
 import android.util.Log;
 import android.util.Pair;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Queue;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -67,6 +67,28 @@ public final class BluetoothLeGattServer {
         void onChange(byte[] value);
     }
 
+    /**
+     * Implemented by notification listeners that need to know when their connection goes away
+     */
+    interface TerminalListener {
+        /**
+         * Called once the connection is closed, the listener has already been removed from its characteristics
+         * @param error    Null if the connection was closed with {@link #closeAsync()}, the reason it was lost otherwise
+         */
+        void onConnectionClosed(Exception error);
+    }
+
+    /**
+     * Receives progress updates from streaming reads
+     */
+    public interface ProgressListener {
+        /**
+         * Called after each chunk has been written to the destination
+         * @param bytesRead    Total number of bytes read so far
+         */
+        void onProgress(long bytesRead);
+    }
+
     /**
      * Handler for disconnect events
      * @author Eric Tsai
@@ -89,28 +111,115 @@ public final class BluetoothLeGattServer {
         DEFAULT
     }
 
-    private interface GattTask {
-        void execute();
-        TaskCompletionSource<byte[]> taskCompletionSource();
+    /**
+     * Receives the outcome of a queued gatt operation
+     */
+    interface GattCompletion {
+        void setResult(byte[] value);
+        void setError(Exception error);
     }
 
-    private static UUID CHARACTERISTIC_CONFIG= UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    /**
+     * Receives the outcome of an RSSI read as an int instead of a byte array
+     */
+    static abstract class RssiCompletion implements GattCompletion {
+        abstract void setRssi(int rssi);
 
-    private static final Queue<GattTask> pendingGattTasks = new ConcurrentLinkedQueue<>();
-    private static void executeGattOperation(boolean ready) {
-        if (!pendingGattTasks.isEmpty() && (pendingGattTasks.size() == 1 || ready)) {
-            pendingGattTasks.peek().execute();
+        @Override
+        public final void setResult(byte[] value) {
+            // RSSI reads only succeed through setRssi
+            setError(new IllegalStateException("RSSI read completed without a value"));
         }
     }
 
-    private static ScheduledFuture<?> gattTaskTimeoutFuture;
-    private static final ScheduledExecutorService taskScheduler = Executors.newScheduledThreadPool(4);
-    private static final Map<BluetoothDevice, Map<Pair<UUID, UUID>, NotificationListener>> activeCharNotifyListeners = new ConcurrentHashMap<>();
-    private static final Map<BluetoothDevice, BluetoothLeGattServer> activeObjects = new ConcurrentHashMap<>();
-    private static final BluetoothGattCallback btleGattCallback= new BluetoothGattCallback() {
+    static abstract class GattTask {
+        // Set for operations counted against a connection's queue limit
+        QueueLimit limit;
+        private boolean started, dropped;
+
+        abstract void execute();
+        abstract GattCompletion completion();
+
+        /**
+         * Called when the btle stack has responded to the operation issued by {@link #execute()}.  Tasks spanning
+         * multiple gatt operations return true to have {@link #execute()} called again while staying at the head of the queue
+         * @param value    Value returned by the operation, null if an error occurred
+         * @param error    Error that occurred, null if the operation succeeded
+         * @return True if the task has more operations to execute
+         */
+        boolean stepCompleted(byte[] value, Exception error) {
+            if (error != null) {
+                completion().setError(error);
+            } else {
+                completion().setResult(value);
+            }
+            return false;
+        }
+
+        /**
+         * Called instead of {@link #stepCompleted(byte[], Exception)} when the btle stack has reported the remote RSSI.
+         * Tasks reading the RSSI override this, by default the step completes without a value
+         * @param rssi     RSSI value, undefined if an error occurred
+         * @param error    Error that occurred, null if the operation succeeded
+         * @return True if the task has more operations to execute
+         */
+        boolean rssiCompleted(int rssi, Exception error) {
+            return stepCompleted(null, error);
+        }
+
+        /**
+         * Marks the task as issued to the btle stack
+         * @return False if the task was already started or was dropped from the queue
+         */
+        synchronized boolean start() {
+            if (started || dropped) {
+                return false;
+            }
+            started = true;
+            return true;
+        }
+
+        /**
+         * Marks the task as removed from the queue before it was issued
+         * @return False if the task has already started
+         */
+        synchronized boolean drop() {
+            if (started) {
+                return false;
+            }
+            dropped = true;
+            return true;
+        }
+
+        synchronized boolean isDropped() {
+            return dropped;
+        }
+    }
+
+    private static UUID CHARACTERISTIC_CONFIG= UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    // Stack callbacks a queued step can be waiting for
+    private static final int STEP_NONE = 0, STEP_READ = 1, STEP_WRITE = 2, STEP_DESCRIPTOR_WRITE = 3, STEP_RELIABLE_WRITE = 4,
+            STEP_RSSI = 5;
+
+    static final class CharacteristicSubscription {
+        final CopyOnWriteArrayList<NotificationListener> listeners = new CopyOnWriteArrayList<>();
+        // Non-null while the descriptor write enabling notifications is pending
+        ArrayList<GattCompletion> pendingEnables = new ArrayList<>();
+    }
+
+    /**
+     * Callback a runtime's connections report to, events are routed to the server owning the device
+     */
+    static final class RuntimeGattCallback extends BluetoothGattCallback {
+        private final GattRuntime runtime;
+
+        RuntimeGattCallback(GattRuntime runtime) {
+            this.runtime = runtime;
+        }
+
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            final BluetoothLeGattServer server = activeObjects.get(gatt.getDevice());
+            final BluetoothLeGattServer server = runtime.activeObjects.get(gatt.getDevice());
 
             switch (newState) {
                 case BluetoothProfile.STATE_CONNECTED:
@@ -140,9 +249,9 @@ public final class BluetoothLeGattServer {
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            executeGattOperation(true);
+            runtime.executeGattOperation(true);
 
-            final BluetoothLeGattServer server = activeObjects.get(gatt.getDevice());
+            final BluetoothLeGattServer server = runtime.activeObjects.get(gatt.getDevice());
 
             server.connTimeoutFuture.cancel(false);
             if (status != 0) {
@@ -156,88 +265,70 @@ public final class BluetoothLeGattServer {
 
         @Override
         public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            gattTaskTimeoutFuture.cancel(false);
-
-            GattTask task = pendingGattTasks.peek();
-            if (status != 0) {
-                task.taskCompletionSource().setError(new IllegalStateException("Non-zero status returned (" + status + ")"));
-            } else {
-                task.taskCompletionSource().setResult(characteristic.getValue());
+            BluetoothLeGattServer server = runtime.activeObjects.get(gatt.getDevice());
+            if (server != null && server.claimCallback(STEP_READ, characteristic)) {
+                server.gattStepCompleted(status, characteristic.getValue());
             }
-
-            activeObjects.get(gatt.getDevice()).gattTaskCompleted();
-
-            pendingGattTasks.poll();
-            executeGattOperation(true);
         }
 
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            GattTask task = pendingGattTasks.peek();
-            if (status != 0) {
-                task.taskCompletionSource().setError(new IllegalStateException("Non-zero status returned (" + status + ")"));
-            } else {
-                task.taskCompletionSource().setResult(characteristic.getValue());
+            BluetoothLeGattServer server = runtime.activeObjects.get(gatt.getDevice());
+            if (server != null && server.claimCallback(STEP_WRITE, characteristic)) {
+                server.gattStepCompleted(status, characteristic.getValue());
             }
-
-            activeObjects.get(gatt.getDevice()).gattTaskCompleted();
-
-            pendingGattTasks.poll();
-            executeGattOperation(true);
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            Map<Pair<UUID, UUID>, NotificationListener> listeners = activeCharNotifyListeners.get(gatt.getDevice());
-            NotificationListener value;
+            Map<Pair<UUID, UUID>, CharacteristicSubscription> subscriptions = runtime.activeCharNotifyListeners.get(gatt.getDevice());
+            CharacteristicSubscription value;
             Pair<UUID, UUID> key = new Pair<>(characteristic.getService().getUuid(), characteristic.getUuid());
 
-            if (listeners != null && (value = listeners.get(key)) != null) {
-                value.onChange(characteristic.getValue());
+            if (subscriptions != null && (value = subscriptions.get(key)) != null) {
+                byte[] charValue = characteristic.getValue();
+                for (NotificationListener it : value.listeners) {
+                    it.onChange(charValue);
+                }
             }
         }
 
         @Override
         public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            GattTask task = pendingGattTasks.peek();
-            if (status != 0) {
-                task.taskCompletionSource().setError(new IllegalStateException("Non-zero status returned (" + status + ")"));
-            } else {
-                task.taskCompletionSource().setResult(null);
+            BluetoothLeGattServer server = runtime.activeObjects.get(gatt.getDevice());
+            if (server != null && server.claimCallback(STEP_DESCRIPTOR_WRITE, descriptor)) {
+                server.gattStepCompleted(status, null);
             }
+        }
 
-            activeObjects.get(gatt.getDevice()).gattTaskCompleted();
-
-            pendingGattTasks.poll();
-            executeGattOperation(true);
+        @Override
+        public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+            BluetoothLeGattServer server = runtime.activeObjects.get(gatt.getDevice());
+            if (server != null && server.claimCallback(STEP_RELIABLE_WRITE, null)) {
+                server.gattStepCompleted(status, null);
+            }
         }
 
         @Override
         public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
-            gattTaskTimeoutFuture.cancel(false);
-
-            GattTask task = pendingGattTasks.peek();
-            if (status != 0) {
-                task.taskCompletionSource().setError(new IllegalStateException("Non-zero status returned (" + status + ")"));
-            } else {
-                task.taskCompletionSource().setResult(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(rssi).array());
+            BluetoothLeGattServer server = runtime.activeObjects.get(gatt.getDevice());
+            if (server != null && server.claimCallback(STEP_RSSI, null)) {
+                server.rssiStepCompleted(status, rssi);
             }
-
-            activeObjects.get(gatt.getDevice()).gattTaskCompleted();
-
-            pendingGattTasks.poll();
-            executeGattOperation(true);
         }
-    };
+    }
 
+    /**
+     * Connects to a device using the default runtime
+     * @param device         Device to connect to
+     * @param ctx            Context to connect with
+     * @param autoConnect    True to connect as soon as the device becomes available
+     * @param timeout        How long to wait for the connection, in milliseconds
+     * @return Task holding the connected server
+     * @see GattRuntime#connect(BluetoothDevice, Context, boolean, long)
+     */
     public static Task<BluetoothLeGattServer> connect(BluetoothDevice device, Context ctx, boolean autoConnect, long timeout) {
-        if (activeObjects.containsKey(device)) {
-            return Task.forResult(activeObjects.get(device));
-        }
-
-        BluetoothLeGattServer newServerConn = new BluetoothLeGattServer(device, ctx, autoConnect, timeout);
-        activeObjects.put(device, newServerConn);
-        return newServerConn.connectTaskSource.getTask();
+        return GattRuntime.getDefault().connect(device, ctx, autoConnect, timeout);
     }
 
     private ScheduledFuture<?> connTimeoutFuture;
@@ -247,14 +338,28 @@ public final class BluetoothLeGattServer {
     private final AtomicReference<BluetoothGatt> gattRef = new AtomicReference<>();
     private TaskCompletionSource<BluetoothLeGattServer> connectTaskSource;
     private TaskCompletionSource<Void> disconnectTaskSource;
-
-    private BluetoothLeGattServer(BluetoothDevice device, Context ctx, boolean autoConnect, final long timeout) {
+    private final AdaptiveTimeout opTimeout = new AdaptiveTimeout();
+    private final ReadCache readCache = new ReadCache();
+    private final QueueLimit queueLimit = new QueueLimit(this);
+    private final Object subscriptionLock = new Object();
+    private volatile long timedStepStart;
+    private final Object stepLock = new Object();
+    private int issuedStep = STEP_NONE;
+    private Object issuedTarget;
+    private long issuedToken;
+    private final GattRuntime runtime;
+    private final Task<BluetoothLeGattServer> initialConnectTask;
+
+    BluetoothLeGattServer(GattRuntime runtime, BluetoothDevice device, Context ctx, boolean autoConnect, final long timeout) {
+        this.runtime = runtime;
         connectTaskSource = new TaskCompletionSource<>();
+        initialConnectTask = connectTaskSource.getTask();
 
-        gattRef.set(device.connectGatt(ctx, autoConnect, btleGattCallback));
-        activeObjects.put(device, this);
+        // Registered first so callbacks from the new connection can find this object
+        runtime.activeObjects.put(device, this);
+        gattRef.set(device.connectGatt(ctx, autoConnect, runtime.gattCallback));
 
-        connTimeoutFuture = taskScheduler.schedule(new Runnable() {
+        connTimeoutFuture = runtime.scheduler().schedule(new Runnable() {
             @Override
             public void run() {
                 tearDownGatt(true);
@@ -263,6 +368,11 @@ public final class BluetoothLeGattServer {
         }, timeout, TimeUnit.MILLISECONDS);
     }
 
+    // Captured up front since connectTaskSource is cleared once the connection attempt finishes
+    Task<BluetoothLeGattServer> connectTask() {
+        return initialConnectTask;
+    }
+
     private void setConnectTaskError(Exception error) {
         connTimeoutFuture.cancel(false);
 
@@ -272,6 +382,28 @@ public final class BluetoothLeGattServer {
         }
     }
 
+    static GattCompletion voidCompletion(final TaskCompletionSource<Void> taskSource) {
+        return new GattCompletion() {
+            @Override
+            public void setResult(byte[] value) {
+                taskSource.setResult(null);
+            }
+
+            @Override
+            public void setError(Exception error) {
+                taskSource.setError(error);
+            }
+        };
+    }
+
+    /**
+     * Retrieves the runtime this connection belongs to
+     * @return Owning runtime
+     */
+    public GattRuntime runtime() {
+        return runtime;
+    }
+
     public void onDisconnect(DisconnectHandler handler) {
         dcHandler = handler;
     }
@@ -280,6 +412,32 @@ public final class BluetoothLeGattServer {
         return gattRef.get() != null;
     }
 
+    /**
+     * Retrieves the timeout applied to read operations on this connection.  The timeout adapts to the connection's
+     * observed callback latency and can be bounded or overridden through the returned object
+     * @return Operation timeout for this connection
+     */
+    public AdaptiveTimeout operationTimeout() {
+        return opTimeout;
+    }
+
+    /**
+     * Retrieves the read cache of this connection.  The cache is disabled until turned on through the returned object
+     * @return Read cache for this connection
+     */
+    public ReadCache readCache() {
+        return readCache;
+    }
+
+    /**
+     * Retrieves the limit on how many operations this connection can have queued.  The queue is unbounded until a
+     * capacity is set through the returned object
+     * @return Queue limit for this connection
+     */
+    public QueueLimit queueLimit() {
+        return queueLimit;
+    }
+
     public boolean serviceExists(UUID gattService) {
         BluetoothGatt gatt = gattRef.get();
         return gatt != null && gatt.getService(gattService) != null;
@@ -296,14 +454,22 @@ public final class BluetoothLeGattServer {
     }
 
     public Task<Void> writeCharacteristicAsync(final UUID gattService, final UUID gattChar, final WriteType type, final byte[] value) {
-        final BluetoothGatt gatt = gattRef.get();
+        final TaskCompletionSource<Void> taskSource = new TaskCompletionSource<>();
+        queueWrite(gattService, gattChar, type, value, voidCompletion(taskSource));
+        return taskSource.getTask();
+    }
 
-        if (gatt != null) {
-            final TaskCompletionSource<byte[]> taskSource = new TaskCompletionSource<>();
+    private void enqueue(GattTask task) {
+        gattOps.incrementAndGet();
+        queueLimit.offer(task);
+    }
 
-            gattOps.incrementAndGet();
+    void queueWrite(final UUID gattService, final UUID gattChar, final WriteType type, final byte[] value, final GattCompletion completion) {
+        final BluetoothGatt gatt = gattRef.get();
 
-            pendingGattTasks.add(new GattTask() {
+        if (gatt != null) {
+            readCache.invalidate(gattService, gattChar);
+            enqueue(new GattTask() {
                 @Override
                 public void execute() {
                     BluetoothGattService service = gatt.getService(gattService);
@@ -314,205 +480,993 @@ public final class BluetoothLeGattServer {
                     );
                     androidGattChar.setValue(value);
 
-                    gatt.writeCharacteristic(androidGattChar);
+                    issueWrite(gatt, androidGattChar);
                 }
 
                 @Override
-                public TaskCompletionSource<byte[]> taskCompletionSource() {
-                    return taskSource;
+                public GattCompletion completion() {
+                    return completion;
                 }
             });
+        } else {
+            completion.setError(new IllegalStateException("No longer connected to the BTLE gatt server"));
+        }
+    }
+
+    /**
+     * Starts a reliable write transaction.  Writes added to the transaction are committed atomically by the remote device
+     * @return Transaction to add writes to
+     */
+    public ReliableWriteTransaction beginReliableWrite() {
+        return new ReliableWriteTransaction(this);
+    }
+
+    void queueReliableWrite(final ReliableWriteTransaction transaction, final GattCompletion completion) {
+        final BluetoothGatt gatt = gattRef.get();
+
+        if (gatt != null) {
+            final int writeCount = transaction.values.size();
+            if (writeCount == 0) {
+                completion.setResult(null);
+                return;
+            }
+
+            final BluetoothGattCharacteristic[] targets = new BluetoothGattCharacteristic[writeCount];
+            for (int i = 0; i < writeCount; i++) {
+                UUID[] it = transaction.targets.get(i);
+                BluetoothGattService service = gatt.getService(it[0]);
+                if (service == null) {
+                    completion.setError(new IllegalStateException("Service \'" + it[0].toString() + "\' does not exist"));
+                    return;
+                }
+                if ((targets[i] = service.getCharacteristic(it[1])) == null) {
+                    completion.setError(new IllegalStateException("Characteristic \'" + it[1].toString() + "\' does not exist"));
+                    return;
+                }
+            }
+
+            for (UUID[] it : transaction.targets) {
+                readCache.invalidate(it[0], it[1]);
+            }
+            enqueue(new GattTask() {
+                // -1 = begin the transaction, [0, writeCount) = prepared writes, writeCount = execute
+                private int current = -1;
+                // Set once a prepared write fails, the task then waits for the abort to finish before leaving the queue
+                private Exception failure;
+
+                @Override
+                public void execute() {
+                    if (failure != null) {
+                        long token = stepIssued(STEP_RELIABLE_WRITE, null);
+                        scheduleGattTaskTimeout(token, "Did not abort reliable write");
+                        gatt.abortReliableWrite();
+                        return;
+                    }
+
+                    if (current == -1) {
+                        current = 0;
+                        if (!gatt.beginReliableWrite()) {
+                            // No callback follows a failed begin, finish the task here
+                            completion.setError(new IllegalStateException("Could not begin reliable write"));
+                            finishStep(this, false);
+                            return;
+                        }
+                    }
+
+                    if (current < writeCount) {
+                        targets[current].setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+                        targets[current].setValue(transaction.values.get(current));
+                        issueWrite(gatt, targets[current]);
+                    } else {
+                        long token = stepIssued(STEP_RELIABLE_WRITE, null);
+                        if (!gatt.executeReliableWrite()) {
+                            stepRejected(token, "Could not execute reliable write");
+                        }
+                    }
+                }
 
-            executeGattOperation(false);
-            return taskSource.getTask().onSuccessTask(new Continuation<byte[], Task<Void>>() {
                 @Override
-                public Task<Void> then(Task<byte[]> task) throws Exception {
-                    return Task.forResult(null);
+                public GattCompletion completion() {
+                    return completion;
+                }
+
+                @Override
+                boolean stepCompleted(byte[] value, Exception error) {
+                    if (failure != null) {
+                        // Abort finished or timed out, report what caused it
+                        completion.setError(failure);
+                        return false;
+                    }
+
+                    if (current == writeCount) {
+                        // Execute step, the transaction is over either way
+                        if (error != null) {
+                            completion.setError(error);
+                        } else {
+                            completion.setResult(null);
+                        }
+                        return false;
+                    }
+
+                    failure = error;
+                    if (failure == null) {
+                        if (transaction.aborted) {
+                            failure = new IllegalStateException("Reliable write was aborted");
+                        } else if (!Arrays.equals(value, transaction.values.get(current))) {
+                            failure = new IllegalStateException("Remote device echoed an incorrect value for write " + current);
+                        }
+                    }
+
+                    if (failure == null) {
+                        current++;
+                    }
+                    // A failed write keeps the task at the head of the queue until the abort callback arrives
+                    return true;
                 }
             });
+        } else {
+            completion.setError(new IllegalStateException("No longer connected to the BTLE gatt server"));
         }
-        return Task.forError(new IllegalStateException("No longer connected to the BTLE gatt server"));
     }
 
-    public Task<byte[][]> readCharacteristicAsync(final UUID[][] gattUuidPairs) {
-        // Can use do this in parallel since internally, gatt operations are queued and only executed 1 by 1
-        final ArrayList<Task<byte[]>> tasks = new ArrayList<>();
-        for(UUID[] it: gattUuidPairs) {
-            tasks.add(readCharacteristicAsync(it[0], it[1]));
+    /**
+     * Starts a batch of mixed operations that are queued and executed as one unit
+     * @return Batch to add operations to
+     */
+    public GattBatch beginBatch() {
+        return new GattBatch(this);
+    }
+
+    void queueBatch(final GattBatch batch, final BulkReadResult results, final GattCompletion completion) {
+        final BluetoothGatt gatt = gattRef.get();
+
+        if (gatt != null) {
+            final int stepCount = batch.steps.size();
+            results.reset(stepCount);
+
+            // Resolve the characteristics up front, steps that cannot be resolved fail without occupying the radio
+            final BluetoothGattCharacteristic[] targets = new BluetoothGattCharacteristic[stepCount];
+            boolean resolveFailed = false;
+            for (int i = 0; i < stepCount; i++) {
+                final int index = i;
+                GattBatch.Step step = batch.steps.get(i);
+                GattCompletion stepError = new GattCompletion() {
+                    @Override
+                    public void setResult(byte[] value) { }
+
+                    @Override
+                    public void setError(Exception error) {
+                        results.set(index, null, error);
+                    }
+                };
+
+                if (step.type == GattBatch.ENABLE_NOTIFICATIONS || step.type == GattBatch.DISABLE_NOTIFICATIONS) {
+                    targets[i] = findNotifyCharacteristic(gatt, step.gattService, step.gattChar, stepError);
+                } else {
+                    BluetoothGattService service = gatt.getService(step.gattService);
+                    if (service == null) {
+                        stepError.setError(new IllegalStateException("Service \'" + step.gattService.toString() + "\' does not exist"));
+                    } else if ((targets[i] = service.getCharacteristic(step.gattChar)) == null) {
+                        stepError.setError(new IllegalStateException("Characteristic \'" + step.gattChar.toString() + "\' does not exist"));
+                    }
+                }
+                resolveFailed |= targets[i] == null;
+                if (step.type == GattBatch.WRITE) {
+                    readCache.invalidate(step.gattService, step.gattChar);
+                }
+            }
+
+            if (stepCount == 0 || (resolveFailed && batch.abortOnError)) {
+                for (int i = 0; i < stepCount; i++) {
+                    if (results.isSuccessful(i)) {
+                        results.set(i, null, new IllegalStateException("Skipped since the batch was aborted"));
+                    }
+                }
+                completion.setResult(null);
+                return;
+            }
+
+            // The batch itself plus any descriptor writes its enable steps joined, which can be queued behind the batch
+            final AtomicInteger outstanding = new AtomicInteger(1);
+            final GattCompletion joinCompletion = new GattCompletion() {
+                @Override
+                public void setResult(byte[] value) {
+                    if (outstanding.decrementAndGet() == 0) {
+                        completion.setResult(null);
+                    }
+                }
+
+                @Override
+                public void setError(Exception error) {
+                    completion.setError(error);
+                }
+            };
+
+            enqueue(new GattTask() {
+                private int current = 0;
+                private boolean failed = false;
+                // Completes the waiters of a subscription created by the current step
+                private GattCompletion subscriptionCompletion;
+
+                @Override
+                public void execute() {
+                    // Steps without a gatt operation are completed inline until one is issued
+                    while (current < stepCount) {
+                        if (targets[current] == null) {
+                            failed = true;
+                        } else if (failed && batch.abortOnError) {
+                            results.set(current, null, new IllegalStateException("Skipped since the batch was aborted"));
+                        } else if (issue(batch.steps.get(current), targets[current])) {
+                            return;
+                        }
+                        current++;
+                    }
+
+                    // Nothing left to wait for, finish through the normal path so the queue advances
+                    gattStepCompleted((Exception) null, null);
+                }
+
+                private boolean issue(GattBatch.Step step, BluetoothGattCharacteristic androidGattChar) {
+                    switch (step.type) {
+                        case GattBatch.READ:
+                            issueRead(gatt, androidGattChar);
+                            return true;
+                        case GattBatch.WRITE:
+                            androidGattChar.setWriteType(step.writeType == WriteType.WITHOUT_RESPONSE ?
+                                    BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE :
+                                    BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+                            );
+                            androidGattChar.setValue(step.value);
+                            issueWrite(gatt, androidGattChar);
+                            return true;
+                        case GattBatch.ENABLE_NOTIFICATIONS: {
+                            Pair<UUID, UUID> key = new Pair<>(step.gattService, step.gattChar);
+                            CharacteristicSubscription subscription;
+                            synchronized (subscriptionLock) {
+                                Map<Pair<UUID, UUID>, CharacteristicSubscription> subscriptions = runtime.activeCharNotifyListeners.get(gatt.getDevice());
+                                if (subscriptions == null) {
+                                    subscriptions = new ConcurrentHashMap<>();
+                                    runtime.activeCharNotifyListeners.put(gatt.getDevice(), subscriptions);
+                                }
+
+                                CharacteristicSubscription existing = subscriptions.get(key);
+                                if (existing != null) {
+                                    existing.listeners.addIfAbsent(step.listener);
+                                    if (existing.pendingEnables != null) {
+                                        // Descriptor write is still queued, possibly behind this batch, so the step
+                                        // takes its outcome without holding the queue
+                                        final int index = current;
+                                        outstanding.incrementAndGet();
+                                        existing.pendingEnables.add(new GattCompletion() {
+                                            @Override
+                                            public void setResult(byte[] value) {
+                                                joinCompletion.setResult(null);
+                                            }
+
+                                            @Override
+                                            public void setError(Exception error) {
+                                                results.set(index, null, error);
+                                                joinCompletion.setResult(null);
+                                            }
+                                        });
+                                    }
+                                    return false;
+                                }
+
+                                subscription = new CharacteristicSubscription();
+                                subscription.listeners.add(step.listener);
+                                subscriptions.put(key, subscription);
+                            }
+
+                            subscriptionCompletion = enableCompletion(gatt, key, subscription);
+                            writeConfigDescriptor(gatt, androidGattChar, true);
+                            return true;
+                        }
+                        case GattBatch.DISABLE_NOTIFICATIONS:
+                            if (removeSubscriber(gatt, step.gattService, step.gattChar, step.listener)) {
+                                writeConfigDescriptor(gatt, androidGattChar, false);
+                                return true;
+                            }
+                            return false;
+                        default:
+                            return false;
+                    }
+                }
+
+                @Override
+                public GattCompletion completion() {
+                    return joinCompletion;
+                }
+
+                @Override
+                boolean stepCompleted(byte[] value, Exception error) {
+                    if (current >= stepCount) {
+                        joinCompletion.setResult(null);
+                        return false;
+                    }
+
+                    results.set(current, batch.steps.get(current).type == GattBatch.READ ? value : null, error);
+                    if (subscriptionCompletion != null) {
+                        if (error != null) {
+                            subscriptionCompletion.setError(error);
+                        } else {
+                            subscriptionCompletion.setResult(null);
+                        }
+                        subscriptionCompletion = null;
+                    }
+
+                    failed |= error != null;
+                    current++;
+                    return true;
+                }
+            });
+        } else {
+            completion.setError(new IllegalStateException("No longer connected to the BTLE gatt server"));
         }
+    }
 
-        return Task.whenAll(tasks).onSuccessTask(new Continuation<Void, Task<byte[][]>>() {
+    public Task<byte[][]> readCharacteristicAsync(final UUID[][] gattUuidPairs) {
+        final TaskCompletionSource<byte[][]> taskSource = new TaskCompletionSource<>();
+        final BulkReadResult results = new BulkReadResult(gattUuidPairs.length);
+
+        queueBulkRead(gattUuidPairs, results, new GattCompletion() {
             @Override
-            public Task<byte[][]> then(Task<Void> task) throws Exception {
-                byte[][] valuesArray = new byte[tasks.size()][];
+            public void setResult(byte[] value) {
+                byte[][] valuesArray = new byte[results.size()][];
                 for (int i = 0; i < valuesArray.length; i++) {
-                    valuesArray[i] = tasks.get(i).getResult();
+                    if (!results.isSuccessful(i)) {
+                        taskSource.setError(results.getError(i));
+                        return;
+                    }
+                    valuesArray[i] = results.getValue(i);
                 }
 
-                return Task.forResult(valuesArray);
+                taskSource.setResult(valuesArray);
+            }
+
+            @Override
+            public void setError(Exception error) {
+                taskSource.setError(error);
             }
         });
+        return taskSource.getTask();
     }
 
-    public Task<byte[]> readCharacteristicAsync(final UUID gattService, final UUID gattChar) {
+    /**
+     * Reads a group of characteristics as one unit in the operation queue.  Unlike {@link #readCharacteristicAsync(UUID[][])},
+     * a failed read does not fail the whole batch; each characteristic's outcome is reported in the returned result object
+     * @param gattUuidPairs    Array of [service uuid, characteristic uuid] pairs to read
+     * @param results          Object to store the results in, can be null to allocate a new one
+     * @return Task holding the per characteristic results, only faulted if the batch could not be queued
+     */
+    public Task<BulkReadResult> readCharacteristicsAsync(final UUID[][] gattUuidPairs, BulkReadResult results) {
+        final TaskCompletionSource<BulkReadResult> taskSource = new TaskCompletionSource<>();
+        final BulkReadResult dest = results == null ? new BulkReadResult(gattUuidPairs.length) : results;
+
+        queueBulkRead(gattUuidPairs, dest, new GattCompletion() {
+            @Override
+            public void setResult(byte[] value) {
+                taskSource.setResult(dest);
+            }
+
+            @Override
+            public void setError(Exception error) {
+                taskSource.setError(error);
+            }
+        });
+        return taskSource.getTask();
+    }
+
+    void queueBulkRead(final UUID[][] gattUuidPairs, final BulkReadResult results, final GattCompletion completion) {
         final BluetoothGatt gatt = gattRef.get();
 
         if (gatt != null) {
-            final TaskCompletionSource<byte[]> taskSource = new TaskCompletionSource<>();
+            results.reset(gattUuidPairs.length);
+
+            // Resolve the characteristics up front so missing ones are reported without occupying the radio
+            final BluetoothGattCharacteristic[] targets = new BluetoothGattCharacteristic[gattUuidPairs.length];
+            final int[] positions = new int[gattUuidPairs.length];
+            int count = 0;
+            for (int i = 0; i < gattUuidPairs.length; i++) {
+                BluetoothGattService service = gatt.getService(gattUuidPairs[i][0]);
+                BluetoothGattCharacteristic androidGattChar;
+                byte[] cached;
+                if ((cached = readCache.lookup(gattUuidPairs[i][0], gattUuidPairs[i][1])) != null) {
+                    results.set(i, cached, null);
+                } else if (service == null) {
+                    results.set(i, null, new IllegalStateException("Service \'" + gattUuidPairs[i][0].toString() + "\' does not exist"));
+                } else if ((androidGattChar = service.getCharacteristic(gattUuidPairs[i][1])) == null) {
+                    results.set(i, null, new IllegalStateException("Characteristic \'" + gattUuidPairs[i][1].toString() + "\' does not exist"));
+                } else {
+                    targets[count] = androidGattChar;
+                    positions[count] = i;
+                    count++;
+                }
+            }
+
+            if (count == 0) {
+                completion.setResult(null);
+                return;
+            }
 
-            gattOps.incrementAndGet();
+            final int readCount = count;
+            enqueue(new GattTask() {
+                private int current = 0;
 
-            pendingGattTasks.add(new GattTask() {
                 @Override
                 public void execute() {
-                    gattTaskTimeoutFuture = taskScheduler.schedule(new Runnable() {
-                        @Override
-                        public void run() {
-                            GattTask task = pendingGattTasks.peek();
-                            task.taskCompletionSource().setError(new TimeoutException("Did not read gatt characteristic within 250ms"));
+                    issueRead(gatt, targets[current]);
+                }
 
-                            gattTaskCompleted();
+                @Override
+                public GattCompletion completion() {
+                    return completion;
+                }
 
-                            pendingGattTasks.poll();
-                            executeGattOperation(true);
-                        }
-                    }, 250L, TimeUnit.MILLISECONDS);
-                    gatt.readCharacteristic(gatt.getService(gattService).getCharacteristic(gattChar));
+                @Override
+                boolean stepCompleted(byte[] value, Exception error) {
+                    results.set(positions[current], value, error);
+                    if (error == null) {
+                        UUID[] pair = gattUuidPairs[positions[current]];
+                        readCache.store(pair[0], pair[1], value);
+                    }
+                    current++;
+
+                    if (current < readCount) {
+                        return true;
+                    }
+                    completion.setResult(null);
+                    return false;
+                }
+            });
+        } else {
+            completion.setError(new IllegalStateException("No longer connected to the BTLE gatt server"));
+        }
+    }
+
+    public Task<byte[]> readCharacteristicAsync(final UUID gattService, final UUID gattChar) {
+        final TaskCompletionSource<byte[]> taskSource = new TaskCompletionSource<>();
+        queueRead(gattService, gattChar, new GattCompletion() {
+            @Override
+            public void setResult(byte[] value) {
+                taskSource.setResult(value);
+            }
+
+            @Override
+            public void setError(Exception error) {
+                taskSource.setError(error);
+            }
+        });
+        return taskSource.getTask();
+    }
+
+    void queueRead(final UUID gattService, final UUID gattChar, GattCompletion readCompletion) {
+        final GattCompletion completion = readCache.begin(gattService, gattChar, readCompletion);
+        if (completion == null) {
+            // Answered from the cache or waiting on a read already in flight
+            return;
+        }
+
+        final BluetoothGatt gatt = gattRef.get();
+
+        if (gatt != null) {
+            enqueue(new GattTask() {
+                @Override
+                public void execute() {
+                    issueRead(gatt, gatt.getService(gattService).getCharacteristic(gattChar));
                 }
 
                 @Override
-                public TaskCompletionSource<byte[]> taskCompletionSource() {
-                    return taskSource;
+                public GattCompletion completion() {
+                    return completion;
                 }
             });
+        } else {
+            completion.setError(new IllegalStateException("No longer connected to the BTLE gatt server"));
+        }
+    }
 
-            executeGattOperation(false);
+    private interface ChunkSink {
+        /**
+         * Writes as much of the chunk as the destination can accept
+         * @return Number of bytes written
+         */
+        int write(byte[] chunk) throws IOException;
+        boolean isFull();
+    }
+
+    /**
+     * Reads a characteristic one page at a time, writing each page to the output stream as it arrives.  Reads are repeated
+     * until the characteristic returns fewer than <code>pageSize</code> bytes or <code>maxLength</code> bytes have been
+     * read.  All pages are read as one unit in the operation queue.
+     * @param gattService    Service the characteristic belongs to
+     * @param gattChar       Characteristic to read
+     * @param dest           Stream to write the value to
+     * @param pageSize       Number of bytes a full page contains, 0 to only read once
+     * @param maxLength      Max number of bytes to read
+     * @param progress       Listener to receive progress updates, can be null
+     * @return Task holding the total number of bytes read
+     */
+    public Task<Long> readCharacteristicStreamAsync(UUID gattService, UUID gattChar, final OutputStream dest, int pageSize,
+                                                    final long maxLength, ProgressListener progress) {
+        return queueStreamRead(gattService, gattChar, pageSize, new ChunkSink() {
+            private long total = 0;
+
+            @Override
+            public int write(byte[] chunk) throws IOException {
+                int count = (int) Math.min(chunk.length, maxLength - total);
+                dest.write(chunk, 0, count);
+                total += count;
+                return count;
+            }
+
+            @Override
+            public boolean isFull() {
+                return total >= maxLength;
+            }
+        }, progress);
+    }
+
+    /**
+     * Variant of {@link #readCharacteristicStreamAsync(UUID, UUID, OutputStream, int, long, ProgressListener)} that
+     * writes the pages into a buffer.  Reading stops once the buffer has no bytes remaining
+     * @param gattService    Service the characteristic belongs to
+     * @param gattChar       Characteristic to read
+     * @param dest           Buffer to write the value to, starting from its current position
+     * @param pageSize       Number of bytes a full page contains, 0 to only read once
+     * @param progress       Listener to receive progress updates, can be null
+     * @return Task holding the total number of bytes read
+     */
+    public Task<Long> readCharacteristicStreamAsync(UUID gattService, UUID gattChar, final ByteBuffer dest, int pageSize,
+                                                    ProgressListener progress) {
+        return queueStreamRead(gattService, gattChar, pageSize, new ChunkSink() {
+            @Override
+            public int write(byte[] chunk) {
+                int count = Math.min(chunk.length, dest.remaining());
+                dest.put(chunk, 0, count);
+                return count;
+            }
+
+            @Override
+            public boolean isFull() {
+                return !dest.hasRemaining();
+            }
+        }, progress);
+    }
+
+    private Task<Long> queueStreamRead(final UUID gattService, final UUID gattChar, final int pageSize, final ChunkSink sink,
+                                       final ProgressListener progress) {
+        final BluetoothGatt gatt = gattRef.get();
+
+        if (gatt != null) {
+            BluetoothGattService service = gatt.getService(gattService);
+            if (service == null) {
+                return Task.forError(new IllegalStateException("Service \'" + gattService.toString() + "\' does not exist"));
+            }
+
+            final BluetoothGattCharacteristic androidGattChar = service.getCharacteristic(gattChar);
+            if (androidGattChar == null) {
+                return Task.forError(new IllegalStateException("Characteristic \'" + gattChar.toString() + "\' does not exist"));
+            }
+
+            final TaskCompletionSource<Long> taskSource = new TaskCompletionSource<>();
+            final GattCompletion completion = new GattCompletion() {
+                @Override
+                public void setResult(byte[] value) { }
+
+                @Override
+                public void setError(Exception error) {
+                    taskSource.setError(error);
+                }
+            };
+
+            enqueue(new GattTask() {
+                private long bytesRead = 0;
+
+                @Override
+                public void execute() {
+                    issueRead(gatt, androidGattChar);
+                }
+
+                @Override
+                public GattCompletion completion() {
+                    return completion;
+                }
+
+                @Override
+                boolean stepCompleted(byte[] value, Exception error) {
+                    if (error != null) {
+                        completion.setError(error);
+                        return false;
+                    }
+
+                    try {
+                        bytesRead += sink.write(value);
+                    } catch (IOException e) {
+                        completion.setError(e);
+                        return false;
+                    }
+
+                    if (progress != null) {
+                        progress.onProgress(bytesRead);
+                    }
+
+                    if (pageSize > 0 && value.length >= pageSize && !sink.isFull()) {
+                        return true;
+                    }
+                    taskSource.setResult(bytesRead);
+                    return false;
+                }
+            });
             return taskSource.getTask();
         }
         return Task.forError(new IllegalStateException("No longer connected to the BTLE gatt server"));
     }
 
     public Task<Integer> readRssiAsync() {
+        final TaskCompletionSource<Integer> taskSource = new TaskCompletionSource<>();
+        queueReadRssi(new RssiCompletion() {
+            @Override
+            void setRssi(int rssi) {
+                taskSource.setResult(rssi);
+            }
+
+            @Override
+            public void setError(Exception error) {
+                taskSource.setError(error);
+            }
+        });
+        return taskSource.getTask();
+    }
+
+    void queueReadRssi(final RssiCompletion completion) {
         final BluetoothGatt gatt = gattRef.get();
 
         if (gatt != null) {
-            final TaskCompletionSource<Integer> taskSource = new TaskCompletionSource<>();
-            final TaskCompletionSource<byte[]> gattTaskSource = new TaskCompletionSource<>();
+            enqueue(new GattTask() {
+                @Override
+                public void execute() {
+                    long token = stepIssued(STEP_RSSI, null);
+                    scheduleGattTaskTimeout(token, "Did not read RSSI");
+                    if (!gatt.readRemoteRssi()) {
+                        stepRejected(token, "Could not read RSSI");
+                    }
+                }
 
-            gattOps.incrementAndGet();
+                @Override
+                public GattCompletion completion() {
+                    return completion;
+                }
 
-            gattTaskSource.getTask().continueWith(new Continuation<byte[], Void>() {
                 @Override
-                public Void then(Task<byte[]> task) throws Exception {
-                    if (task.isFaulted()) {
-                        taskSource.setError(task.getError());
-                    } else if (task.isCancelled()) {
-                        taskSource.setCancelled();
+                boolean rssiCompleted(int rssi, Exception error) {
+                    if (error != null) {
+                        completion.setError(error);
                     } else {
-                        taskSource.setResult(ByteBuffer.wrap(task.getResult()).order(ByteOrder.LITTLE_ENDIAN).getInt(0));
+                        completion.setRssi(rssi);
                     }
-                    return null;
+                    return false;
                 }
             });
-            pendingGattTasks.add(new GattTask() {
-                @Override
-                public void execute() {
-                    gattTaskTimeoutFuture = taskScheduler.schedule(new Runnable() {
-                        @Override
-                        public void run() {
-                            GattTask task = pendingGattTasks.peek();
-                            task.taskCompletionSource().setError(new TimeoutException("Did not read RSSI within 250ms"));
+        } else {
+            completion.setError(new IllegalStateException("No longer connected to the BTLE gatt server"));
+        }
+    }
 
-                            gattTaskCompleted();
+    private BluetoothGattCharacteristic findNotifyCharacteristic(BluetoothGatt gatt, UUID gattService, UUID gattChar, GattCompletion completion) {
+        BluetoothGattService service = gatt.getService(gattService);
+        if (service == null) {
+            completion.setError(new IllegalStateException("Service \'" + gattService.toString() + "\' does not exist"));
+            return null;
+        }
 
-                            pendingGattTasks.poll();
-                            executeGattOperation(true);
-                        }
-                    }, 250L, TimeUnit.MILLISECONDS);
+        BluetoothGattCharacteristic androidGattChar = service.getCharacteristic(gattChar);
+        if (androidGattChar == null) {
+            completion.setError(new IllegalStateException("Characteristic \'" + gattChar.toString() + "\' does not exist"));
+            return null;
+        }
+        if ((androidGattChar.getProperties() & (BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE)) == 0) {
+            completion.setError(new IllegalStateException("Characteristic does not have notify or indicate property enabled"));
+            return null;
+        }
+        if (androidGattChar.getDescriptor(CHARACTERISTIC_CONFIG) == null) {
+            completion.setError(new IllegalStateException("Characteristic does not have a client characteristic configuration descriptor"));
+            return null;
+        }
+        return androidGattChar;
+    }
+
+    private void queueConfigDescriptorWrite(final BluetoothGatt gatt, final BluetoothGattCharacteristic androidGattChar, final boolean enable,
+                                            final GattCompletion completion) {
+        gattOps.incrementAndGet();
+
+        runtime.pendingGattTasks.add(new GattTask() {
+            @Override
+            public void execute() {
+                writeConfigDescriptor(gatt, androidGattChar, enable);
+            }
+
+            @Override
+            public GattCompletion completion() {
+                return completion;
+            }
+        });
+
+        runtime.executeGattOperation(false);
+    }
 
-                    gatt.readRemoteRssi();
+    private void writeConfigDescriptor(BluetoothGatt gatt, BluetoothGattCharacteristic androidGattChar, boolean enable) {
+        byte[] value;
+        if (!enable) {
+            value = BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        } else if ((androidGattChar.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+            value = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+        } else {
+            value = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+        }
+
+        gatt.setCharacteristicNotification(androidGattChar, enable);
+        BluetoothGattDescriptor descriptor = androidGattChar.getDescriptor(CHARACTERISTIC_CONFIG);
+        descriptor.setValue(value);
+        long token = stepIssued(STEP_DESCRIPTOR_WRITE, descriptor);
+        if (!gatt.writeDescriptor(descriptor)) {
+            stepRejected(token, "Could not write characteristic configuration descriptor");
+        }
+    }
+
+    private void issueRead(BluetoothGatt gatt, BluetoothGattCharacteristic androidGattChar) {
+        long token = stepIssued(STEP_READ, androidGattChar);
+        scheduleGattTaskTimeout(token, "Did not read gatt characteristic");
+        if (!gatt.readCharacteristic(androidGattChar)) {
+            stepRejected(token, "Could not read gatt characteristic");
+        }
+    }
+
+    private void issueWrite(BluetoothGatt gatt, BluetoothGattCharacteristic androidGattChar) {
+        long token = stepIssued(STEP_WRITE, androidGattChar);
+        if (!gatt.writeCharacteristic(androidGattChar)) {
+            stepRejected(token, "Could not write gatt characteristic");
+        }
+    }
+
+    /**
+     * Records which callback the step about to be issued will produce.  Once a step times out the queue moves on, but the
+     * btle stack may still deliver the late callback; only the callback matching the issued step is applied to the head task.
+     * @return Token identifying the issued step
+     */
+    private long stepIssued(int kind, Object target) {
+        synchronized (stepLock) {
+            issuedStep = kind;
+            issuedTarget = target;
+            return ++issuedToken;
+        }
+    }
+
+    // Accepts a stack callback only if it answers the step in flight, consuming that step
+    private boolean claimCallback(int kind, Object target) {
+        synchronized (stepLock) {
+            if (issuedStep != kind || (issuedTarget != null && issuedTarget != target)) {
+                return false;
+            }
+            issuedStep = STEP_NONE;
+            issuedTarget = null;
+        }
+
+        ScheduledFuture<?> timeout = runtime.gattTaskTimeoutFuture;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        return true;
+    }
+
+    // Consumes the step identified by the token, failing if a callback or another step already replaced it
+    private boolean claimToken(long token) {
+        synchronized (stepLock) {
+            if (issuedStep == STEP_NONE || issuedToken != token) {
+                return false;
+            }
+            issuedStep = STEP_NONE;
+            issuedTarget = null;
+            return true;
+        }
+    }
+
+    // The btle stack refused the operation so no callback will follow
+    private void stepRejected(long token, String message) {
+        if (claimToken(token)) {
+            ScheduledFuture<?> timeout = runtime.gattTaskTimeoutFuture;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            gattStepCompleted(new IllegalStateException(message), null);
+        }
+    }
+
+    // Completes everyone waiting on a new subscription once its descriptor write finishes, removing it if the write failed
+    private GattCompletion enableCompletion(final BluetoothGatt gatt, final Pair<UUID, UUID> key, final CharacteristicSubscription subscription) {
+        return new GattCompletion() {
+            @Override
+            public void setResult(byte[] value) {
+                ArrayList<GattCompletion> waiting;
+                synchronized (subscriptionLock) {
+                    waiting = subscription.pendingEnables;
+                    subscription.pendingEnables = null;
                 }
 
-                @Override
-                public TaskCompletionSource<byte[]> taskCompletionSource() {
-                    return gattTaskSource;
+                for (GattCompletion it : waiting) {
+                    it.setResult(null);
                 }
-            });
+            }
 
-            executeGattOperation(false);
-            return taskSource.getTask();
+            @Override
+            public void setError(Exception error) {
+                ArrayList<GattCompletion> waiting;
+                synchronized (subscriptionLock) {
+                    waiting = subscription.pendingEnables;
+                    subscription.pendingEnables = null;
+
+                    Map<Pair<UUID, UUID>, CharacteristicSubscription> subscriptions = runtime.activeCharNotifyListeners.get(gatt.getDevice());
+                    if (subscriptions != null) {
+                        subscriptions.remove(key, subscription);
+                    }
+                }
+
+                for (GattCompletion it : waiting) {
+                    it.setError(error);
+                }
+            }
+        };
+    }
+
+    /**
+     * Removes a listener, or all listeners if null, from a characteristic's subscription
+     * @return True if the subscription has no listeners left and notifications should be disabled
+     */
+    private boolean removeSubscriber(BluetoothGatt gatt, UUID gattService, UUID gattChar, NotificationListener listener) {
+        synchronized (subscriptionLock) {
+            Map<Pair<UUID, UUID>, CharacteristicSubscription> subscriptions = runtime.activeCharNotifyListeners.get(gatt.getDevice());
+            Pair<UUID, UUID> key = new Pair<>(gattService, gattChar);
+            CharacteristicSubscription subscription = subscriptions == null ? null : subscriptions.get(key);
+
+            if (listener == null) {
+                if (subscription != null) {
+                    subscriptions.remove(key);
+                }
+                return true;
+            } else if (subscription != null && subscription.listeners.remove(listener) && subscription.listeners.isEmpty()) {
+                subscriptions.remove(key);
+                return true;
+            }
+            return false;
         }
-        return Task.forError(new IllegalStateException("No longer connected to the BTLE gatt server"));
     }
 
-    private Task<Void> editNotifications(final UUID gattService, final UUID gattChar, final NotificationListener listener) {
+    void subscribeNotifications(final UUID gattService, final UUID gattChar, final NotificationListener listener, final GattCompletion completion) {
         final BluetoothGatt gatt = gattRef.get();
 
         if (gatt != null) {
-            BluetoothGattService service = gatt.getService(gattService);
-            if (service == null) {
-                return Task.forError(new IllegalStateException("Service \'" + gattService.toString() + "\' does not exist"));
-            }
-
-            final BluetoothGattCharacteristic androidGattChar = service.getCharacteristic(gattChar);
+            BluetoothGattCharacteristic androidGattChar = findNotifyCharacteristic(gatt, gattService, gattChar, completion);
             if (androidGattChar == null) {
-                return Task.forError(new IllegalStateException("Characteristic \'" + gattChar.toString() + "\' does not exist"));
+                return;
             }
 
-            Task<Void> task;
-            int charProps = androidGattChar.getProperties();
-            if ((charProps & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
-                final TaskCompletionSource<byte[]> taskSource = new TaskCompletionSource<>();
-                task = taskSource.getTask().onSuccessTask(new Continuation<byte[], Task<Void>>() {
-                    @Override
-                    public Task<Void> then(Task<byte[]> task) throws Exception {
-                        if (listener == null) {
-                            Map<Pair<UUID, UUID>, NotificationListener> listeners;
-                            if ((listeners = activeCharNotifyListeners.get(gatt.getDevice())) != null) {
-                                listeners.remove(new Pair<>(gattService, gattChar));
-                            }
-                        } else {
-                            if (!activeCharNotifyListeners.containsKey(gatt.getDevice())) {
-                                activeCharNotifyListeners.put(gatt.getDevice(), new HashMap<Pair<UUID, UUID>, NotificationListener>());
-                            }
-                            activeCharNotifyListeners.get(gatt.getDevice()).put(new Pair<>(gattService, gattChar), listener);
-                        }
-                        return Task.forResult(null);
+            final Pair<UUID, UUID> key = new Pair<>(gattService, gattChar);
+            final CharacteristicSubscription subscription;
+            synchronized (subscriptionLock) {
+                Map<Pair<UUID, UUID>, CharacteristicSubscription> subscriptions = runtime.activeCharNotifyListeners.get(gatt.getDevice());
+                if (subscriptions == null) {
+                    subscriptions = new ConcurrentHashMap<>();
+                    runtime.activeCharNotifyListeners.put(gatt.getDevice(), subscriptions);
+                }
+
+                CharacteristicSubscription existing = subscriptions.get(key);
+                if (existing != null) {
+                    existing.listeners.addIfAbsent(listener);
+                    if (existing.pendingEnables != null) {
+                        // Descriptor write is already queued, complete along with it
+                        existing.pendingEnables.add(completion);
+                        return;
                     }
-                });
+                    subscription = null;
+                } else {
+                    subscription = new CharacteristicSubscription();
+                    subscription.listeners.add(listener);
+                    subscription.pendingEnables.add(completion);
+                    subscriptions.put(key, subscription);
+                }
+            }
 
-                gattOps.incrementAndGet();
+            if (subscription == null) {
+                completion.setResult(null);
+                return;
+            }
 
-                pendingGattTasks.add(new GattTask() {
-                    @Override
-                    public void execute() {
-                        gatt.setCharacteristicNotification(androidGattChar, true);
-                        BluetoothGattDescriptor descriptor = androidGattChar.getDescriptor(CHARACTERISTIC_CONFIG);
-                        descriptor.setValue(listener == null ? BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                        gatt.writeDescriptor(descriptor);
+            queueConfigDescriptorWrite(gatt, androidGattChar, true, enableCompletion(gatt, key, subscription));
+        } else {
+            completion.setError(new IllegalStateException("No longer connected to the BTLE gatt server"));
+        }
+    }
 
-                    }
+    void unsubscribeNotifications(final UUID gattService, final UUID gattChar, final NotificationListener listener, final GattCompletion completion) {
+        final BluetoothGatt gatt = gattRef.get();
 
-                    @Override
-                    public TaskCompletionSource<byte[]> taskCompletionSource() {
-                        return taskSource;
-                    }
-                });
-            } else {
-                task = Task.forError(new IllegalStateException(("Characteristic does not have notify property enabled")));
+        if (gatt != null) {
+            BluetoothGattCharacteristic androidGattChar = findNotifyCharacteristic(gatt, gattService, gattChar, completion);
+            if (androidGattChar == null) {
+                return;
             }
 
-            executeGattOperation(false);
-            return task;
+            if (removeSubscriber(gatt, gattService, gattChar, listener)) {
+                queueConfigDescriptorWrite(gatt, androidGattChar, false, completion);
+            } else {
+                completion.setResult(null);
+            }
+        } else {
+            completion.setError(new IllegalStateException("No longer connected to the BTLE gatt server"));
         }
-        return Task.forError(new IllegalStateException("No longer connected to the BTLE gatt server"));
     }
+
+    /**
+     * Adds a listener for a characteristic's notifications, or indications if the characteristic does not support
+     * notifications.  Multiple listeners can be added to the same characteristic; the client characteristic configuration
+     * descriptor is only written when the first listener is added
+     * @param gattService    Service the characteristic belongs to
+     * @param gattChar       Characteristic to receive notifications from
+     * @param listener       Listener to add
+     * @return Task that is completed when notifications are enabled
+     */
     public Task<Void> enableNotificationsAsync(UUID gattService, UUID gattChar, final NotificationListener listener) {
-        return editNotifications(gattService, gattChar, listener);
+        final TaskCompletionSource<Void> taskSource = new TaskCompletionSource<>();
+        subscribeNotifications(gattService, gattChar, listener, voidCompletion(taskSource));
+        return taskSource.getTask();
     }
 
+    /**
+     * Removes all listeners from a characteristic and disables its notifications
+     * @param gattService    Service the characteristic belongs to
+     * @param gattChar       Characteristic to stop receiving notifications from
+     * @return Task that is completed when notifications are disabled
+     */
     public Task<Void> disableNotificationsAsync(UUID gattService, UUID gattChar) {
-        return editNotifications(gattService, gattChar, null);
+        final TaskCompletionSource<Void> taskSource = new TaskCompletionSource<>();
+        unsubscribeNotifications(gattService, gattChar, null, voidCompletion(taskSource));
+        return taskSource.getTask();
+    }
+
+    /**
+     * Removes one listener from a characteristic.  Notifications are only disabled once the last listener is removed
+     * @param gattService    Service the characteristic belongs to
+     * @param gattChar       Characteristic the listener was added to
+     * @param listener       Listener to remove
+     * @return Task that is completed when the listener is removed
+     */
+    public Task<Void> disableNotificationsAsync(UUID gattService, UUID gattChar, NotificationListener listener) {
+        final TaskCompletionSource<Void> taskSource = new TaskCompletionSource<>();
+        unsubscribeNotifications(gattService, gattChar, listener, voidCompletion(taskSource));
+        return taskSource.getTask();
+    }
+
+    /**
+     * Creates a {@link CompletableFuture} based view of this object.  Futures are completed on the given executor, or
+     * directly on the Bluetooth callback thread if {@link CompletableGattServer#DIRECT_EXECUTOR} is used
+     * @param executor    Executor to complete futures on
+     * @return Future based view sharing this object's connection and operation queue
+     */
+    public CompletableGattServer completable(Executor executor) {
+        return new CompletableGattServer(this, executor);
+    }
+
+    /**
+     * Creates a Reactive Streams publisher for a characteristic's notifications.  Notifications are enabled when a
+     * subscriber subscribes and disabled when the subscription is cancelled
+     * @param gattService    Service the characteristic belongs to
+     * @param gattChar       Characteristic to receive notifications from
+     * @param bufferSize     Max number of values to hold while the subscriber has no outstanding demand
+     * @param strategy       What to do with new values when the buffer is full
+     * @return Publisher emitting the characteristic's notifications
+     */
+    public NotificationPublisher notificationPublisher(UUID gattService, UUID gattChar, int bufferSize, NotificationPublisher.OverflowStrategy strategy) {
+        return new NotificationPublisher(this, gattService, gattChar, bufferSize, strategy);
     }
 
     public Task<Void> closeAsync() {
@@ -532,11 +1486,32 @@ public final class BluetoothLeGattServer {
         return Task.forResult(null);
     }
 
+    /**
+     * Closes the connection without waiting for queued operations, called when the owning runtime is shut down
+     */
+    void abandon(Exception error) {
+        tearDownGatt(false, error);
+        setConnectTaskError(error);
+        queueLimit.abandon(error);
+
+        if (disconnectTaskSource != null) {
+            disconnectTaskSource.trySetResult(null);
+        }
+        if (dcHandler != null) {
+            dcHandler.onDisconnect();
+        }
+    }
+
     private void tearDownGatt(boolean refresh) {
+        tearDownGatt(refresh, disconnectTaskSource != null || readyToClose.get() ? null :
+                new IllegalStateException("Lost connection to the BTLE gatt server"));
+    }
+
+    private void tearDownGatt(boolean refresh, Exception error) {
         BluetoothGatt gatt = gattRef.getAndSet(null);
         if (gatt != null) {
-            activeObjects.remove(gatt.getDevice());
-            activeCharNotifyListeners.remove(gatt.getDevice());
+            runtime.activeObjects.remove(gatt.getDevice());
+            terminateSubscriptions(gatt.getDevice(), error);
 
             try {
                 if (refresh) {
@@ -550,7 +1525,85 @@ public final class BluetoothLeGattServer {
         }
     }
 
-    private void gattTaskCompleted() {
+    // Removes every listener of the device and gives terminal listeners their final signal
+    private void terminateSubscriptions(BluetoothDevice device, Exception error) {
+        Map<Pair<UUID, UUID>, CharacteristicSubscription> subscriptions;
+        synchronized (subscriptionLock) {
+            subscriptions = runtime.activeCharNotifyListeners.remove(device);
+        }
+
+        if (subscriptions != null) {
+            for (CharacteristicSubscription subscription : subscriptions.values()) {
+                for (NotificationListener it : subscription.listeners) {
+                    if (it instanceof TerminalListener) {
+                        ((TerminalListener) it).onConnectionClosed(error);
+                    }
+                }
+            }
+        }
+    }
+
+    private void scheduleGattTaskTimeout(final long token, final String message) {
+        final long timeout = opTimeout.current();
+        timedStepStart = System.nanoTime();
+        runtime.gattTaskTimeoutFuture = runtime.scheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!claimToken(token)) {
+                    return;
+                }
+                timedStepStart = 0;
+                opTimeout.onTimeout();
+                gattStepCompleted(new TimeoutException(message + " within " + timeout + "ms"), null);
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private static Exception statusError(int status) {
+        return status != 0 ? new IllegalStateException("Non-zero status returned (" + status + ")") : null;
+    }
+
+    private void gattStepCompleted(int status, byte[] value) {
+        gattStepCompleted(statusError(status), value);
+    }
+
+    private void rssiStepCompleted(int status, int rssi) {
+        recordStepLatency();
+
+        GattTask task = runtime.pendingGattTasks.peek();
+        finishStep(task, task.rssiCompleted(rssi, statusError(status)));
+    }
+
+    private void gattStepCompleted(Exception error, byte[] value) {
+        recordStepLatency();
+
+        GattTask task = runtime.pendingGattTasks.peek();
+        finishStep(task, task.stepCompleted(error != null ? null : value, error));
+    }
+
+    private void recordStepLatency() {
+        if (timedStepStart != 0) {
+            opTimeout.onLatency((System.nanoTime() - timedStepStart) / 1000000.0);
+            timedStepStart = 0;
+        }
+    }
+
+    private void finishStep(GattTask task, boolean hasMoreSteps) {
+        if (hasMoreSteps) {
+            task.execute();
+            return;
+        }
+
+        gattTaskCompleted();
+
+        runtime.pendingGattTasks.poll();
+        if (task.limit != null) {
+            task.limit.completed();
+        }
+        runtime.executeGattOperation(true);
+    }
+
+    void gattTaskCompleted() {
         int count = gattOps.decrementAndGet();
         if (count == 0 && readyToClose.get()) {
             Task.delay(1000).continueWith(new Continuation<Void, Void>() {
@@ -559,6 +1612,8 @@ public final class BluetoothLeGattServer {
                     BluetoothGatt gatt = gattRef.getAndSet(null);
                     if (gatt != null) {
                         disconnectTaskSource = new TaskCompletionSource<>();
+                        // The disconnect callback will find no gatt to tear down, end the subscriptions here
+                        terminateSubscriptions(gatt.getDevice(), null);
                         gatt.disconnect();
                     }
                     return null;
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+/**
+ * Holds the per characteristic outcome of a bulk read, or the per step outcome of a {@link GattBatch}.  A result object
+ * can be passed back into subsequent bulk reads or batches to reuse its storage
+ */
+public final class BulkReadResult {
+    private byte[][] values;
+    private Exception[] errors;
+    private int size;
+
+    /**
+     * Creates an empty result object
+     */
+    public BulkReadResult() {
+        this(0);
+    }
+
+    /**
+     * Creates a result object with storage preallocated for the given number of characteristics
+     * @param capacity    Number of characteristics to allocate storage for
+     */
+    public BulkReadResult(int capacity) {
+        values = new byte[capacity][];
+        errors = new Exception[capacity];
+    }
+
+    void reset(int newSize) {
+        if (newSize > values.length) {
+            values = new byte[newSize][];
+            errors = new Exception[newSize];
+        } else {
+            for (int i = 0; i < size; i++) {
+                values[i] = null;
+                errors[i] = null;
+            }
+        }
+        size = newSize;
+    }
+
+    void set(int index, byte[] value, Exception error) {
+        values[index] = value;
+        errors[index] = error;
+    }
+
+    /**
+     * Retrieves how many characteristics were read
+     * @return Number of results
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks if a characteristic was successfully read
+     * @param index    Position of the characteristic in the requested array
+     * @return True if the value was read
+     */
+    public boolean isSuccessful(int index) {
+        checkIndex(index);
+        return errors[index] == null;
+    }
+
+    /**
+     * Retrieves a characteristic's value
+     * @param index    Position of the characteristic in the requested array
+     * @return Characteristic value, null if the read failed
+     */
+    public byte[] getValue(int index) {
+        checkIndex(index);
+        return values[index];
+    }
+
+    /**
+     * Retrieves the reason a characteristic read failed
+     * @param index    Position of the characteristic in the requested array
+     * @return Error that occurred, null if the read succeeded
+     */
+    public Exception getError(int index) {
+        checkIndex(index);
+        return errors[index];
+    }
+
+    /**
+     * Counts how many reads failed
+     * @return Number of failed reads
+     */
+    public int failureCount() {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (errors[i] != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for " + size + " results");
+        }
+    }
+}
@@ -0,0 +1,511 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import bolts.Continuation;
+import bolts.Task;
+import bolts.TaskCompletionSource;
+
+/**
+ * Writes a large payload, e.g. a firmware image, to a characteristic in chunks and records how far the transfer got in
+ * a checkpoint file.  If the link drops, calling {@link #startAsync(BluetoothLeGattServer)} again after reconnecting,
+ * even from a new process, resumes from the last checkpoint instead of byte 0.  A rolling CRC32 of the committed bytes
+ * is kept with each checkpoint and, if a verify characteristic is set, compared against the CRC the device computed
+ * once every byte has been written.
+ */
+public final class BulkTransfer {
+    /**
+     * Receives transfer progress, called from a Bluetooth binder thread each time a checkpoint is recorded
+     */
+    public interface TransferListener {
+        /**
+         * Called when a checkpoint has been recorded
+         * @param committed         Number of bytes the device has acknowledged
+         * @param total             Payload length
+         * @param bytesPerSecond    Effective throughput since the transfer was started or resumed
+         */
+        void onProgress(long committed, long total, float bytesPerSecond);
+    }
+
+    /**
+     * Summary of a completed transfer
+     */
+    public static final class Result {
+        private final long length, resumedFrom, elapsed;
+        private final int crc;
+
+        Result(long length, long resumedFrom, long elapsed, int crc) {
+            this.length = length;
+            this.resumedFrom = resumedFrom;
+            this.elapsed = elapsed;
+            this.crc = crc;
+        }
+
+        /**
+         * Retrieves the payload length
+         * @return Number of bytes in the payload
+         */
+        public long length() {
+            return length;
+        }
+
+        /**
+         * Retrieves the offset the transfer was resumed from
+         * @return Byte offset, 0 if the transfer started from the beginning
+         */
+        public long resumedFrom() {
+            return resumedFrom;
+        }
+
+        /**
+         * Retrieves how long the final attempt took
+         * @return Elapsed time, in milliseconds
+         */
+        public long elapsed() {
+            return elapsed;
+        }
+
+        /**
+         * Retrieves the effective throughput of the final attempt, counting only bytes that were not already committed
+         * @return Throughput, in bytes per second
+         */
+        public float bytesPerSecond() {
+            return elapsed == 0 ? 0f : (length - resumedFrom) * 1000f / elapsed;
+        }
+
+        /**
+         * Retrieves the CRC32 of the payload
+         * @return CRC32 value
+         */
+        public int crc() {
+            return crc;
+        }
+    }
+
+    /** Default number of payload bytes per write, fits in the default ATT MTU with the offset header */
+    public static final int DEFAULT_CHUNK_SIZE = 16;
+    /** Default number of writes queued ahead of the last acknowledged one */
+    public static final int DEFAULT_WINDOW = 4;
+    /** Default number of bytes between checkpoints */
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 4096L;
+    /** Size of the little endian offset prepended to each chunk when offset headers are enabled */
+    public static final int OFFSET_HEADER_SIZE = 4;
+
+    private static final int CHECKPOINT_MAGIC = 0x424b5446;
+
+    private final byte[] payload;
+    private final UUID gattService, gattChar;
+    private final File checkpointFile;
+    private final int payloadCrc;
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE, window = DEFAULT_WINDOW;
+    private long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    private BluetoothLeGattServer.WriteType writeType = BluetoothLeGattServer.WriteType.DEFAULT;
+    private boolean offsetHeader = true;
+    private UUID verifyService, verifyChar;
+    private TransferListener listener;
+
+    // State of the active attempt, guarded by this
+    private BluetoothLeGattServer server;
+    private TaskCompletionSource<Result> attempt;
+    private final CRC32 rollingCrc = new CRC32();
+    private long committed, issued, lastCheckpoint, resumedFrom, startTime;
+    private int inFlight;
+
+    /**
+     * Creates a transfer of a payload
+     * @param payload           Bytes to write
+     * @param gattService       Service the data characteristic belongs to
+     * @param gattChar          Characteristic to write the chunks to
+     * @param checkpointFile    File to record checkpoints in, one per payload
+     */
+    public BulkTransfer(byte[] payload, UUID gattService, UUID gattChar, File checkpointFile) {
+        this.payload = payload;
+        this.gattService = gattService;
+        this.gattChar = gattChar;
+        this.checkpointFile = checkpointFile;
+
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        payloadCrc = (int) crc.getValue();
+    }
+
+    /**
+     * Sets how many payload bytes are sent per write
+     * @param chunkSize    Chunk size, in bytes
+     * @return Calling object
+     */
+    public synchronized BulkTransfer setChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be at least 1");
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Sets how many writes can be queued ahead of the last acknowledged one.  A larger window keeps the link busy but
+     * more bytes are resent after a drop
+     * @param window    Number of outstanding writes
+     * @return Calling object
+     */
+    public synchronized BulkTransfer setWindow(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Window must be at least 1");
+        }
+        this.window = window;
+        return this;
+    }
+
+    /**
+     * Sets how often the committed offset is recorded.  At most this many bytes are resent after a drop
+     * @param interval    Number of bytes between checkpoints
+     * @return Calling object
+     */
+    public synchronized BulkTransfer setCheckpointInterval(long interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Checkpoint interval must be at least 1");
+        }
+        checkpointInterval = interval;
+        return this;
+    }
+
+    /**
+     * Sets the write type used for the chunks.  Only {@link BluetoothLeGattServer.WriteType#DEFAULT} writes are
+     * acknowledged by the device; without responses, a checkpoint only means the stack accepted the bytes
+     * @param type    Write type
+     * @return Calling object
+     */
+    public synchronized BulkTransfer setWriteType(BluetoothLeGattServer.WriteType type) {
+        writeType = type;
+        return this;
+    }
+
+    /**
+     * Sets whether each chunk is prefixed with its payload offset so the device can place resent and resumed chunks
+     * @param enabled    True to prefix chunks with a 4 byte little endian offset
+     * @return Calling object
+     */
+    public synchronized BulkTransfer setOffsetHeader(boolean enabled) {
+        offsetHeader = enabled;
+        return this;
+    }
+
+    /**
+     * Sets the characteristic to read the device's CRC32 of the received payload from, as a little endian int, once
+     * every byte is written
+     * @param gattService    Service the characteristic belongs to, null to skip verification
+     * @param gattChar       Characteristic holding the device's CRC
+     * @return Calling object
+     */
+    public synchronized BulkTransfer setVerifyCharacteristic(UUID gattService, UUID gattChar) {
+        verifyService = gattService;
+        verifyChar = gattChar;
+        return this;
+    }
+
+    /**
+     * Sets the listener to receive progress updates
+     * @param listener    Transfer listener, null to remove the current one
+     * @return Calling object
+     */
+    public synchronized BulkTransfer setTransferListener(TransferListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Retrieves the offset the next attempt will resume from
+     * @return Committed offset recorded in the checkpoint file, 0 if there is no valid checkpoint
+     */
+    public synchronized long checkpointOffset() {
+        return attempt == null ? loadCheckpoint() : lastCheckpoint;
+    }
+
+    /**
+     * Removes the checkpoint so the next attempt starts from the beginning
+     */
+    public synchronized void reset() {
+        if (attempt == null && checkpointFile.exists() && !checkpointFile.delete()) {
+            Log.w("bletoolbox", "Could not delete transfer checkpoint \'" + checkpointFile.getAbsolutePath() + "\'");
+        }
+    }
+
+    /**
+     * Writes the payload, resuming from the last checkpoint if one exists for the same payload.  If the transfer fails,
+     * the committed offset is recorded so a later call picks up from there
+     * @param server    Connection to write to
+     * @return Task holding a summary of the transfer
+     */
+    public Task<Result> startAsync(BluetoothLeGattServer server) {
+        TaskCompletionSource<Result> taskSource = new TaskCompletionSource<>();
+        synchronized (this) {
+            if (attempt != null) {
+                return Task.forError(new IllegalStateException("Transfer is already in progress"));
+            }
+
+            this.server = server;
+            attempt = taskSource;
+            committed = issued = lastCheckpoint = resumedFrom = loadCheckpoint();
+            rollingCrc.reset();
+            rollingCrc.update(payload, 0, (int) committed);
+            inFlight = 0;
+            startTime = SystemClock.elapsedRealtime();
+        }
+
+        if (resumedFrom == payload.length) {
+            // Every byte was committed by a previous attempt, e.g. one that failed during verification
+            complete(taskSource);
+        } else {
+            fillWindow(taskSource);
+        }
+        return taskSource.getTask();
+    }
+
+    // Completions carry the attempt that issued them, writes from an abandoned attempt can still complete after a
+    // new one has started and must not touch its state
+    private void fillWindow(final TaskCompletionSource<Result> owner) {
+        while (true) {
+            BluetoothLeGattServer target;
+            byte[] chunk;
+            final int length;
+            synchronized (this) {
+                if (attempt != owner || inFlight >= window || issued >= payload.length) {
+                    break;
+                }
+
+                int offset = (int) issued;
+                length = Math.min(chunkSize, payload.length - offset);
+                if (offsetHeader) {
+                    chunk = ByteBuffer.allocate(OFFSET_HEADER_SIZE + length).order(ByteOrder.LITTLE_ENDIAN)
+                            .putInt(offset).put(payload, offset, length).array();
+                } else {
+                    chunk = new byte[length];
+                    System.arraycopy(payload, offset, chunk, 0, length);
+                }
+
+                issued += length;
+                inFlight++;
+                target = server;
+            }
+
+            target.queueWrite(gattService, gattChar, writeType, chunk, new BluetoothLeGattServer.GattCompletion() {
+                @Override
+                public void setResult(byte[] value) {
+                    chunkCommitted(owner, length);
+                }
+
+                @Override
+                public void setError(Exception error) {
+                    fail(owner, error);
+                }
+            });
+        }
+    }
+
+    // Writes complete in queue order so the committed bytes always form a prefix of the payload
+    private void chunkCommitted(TaskCompletionSource<Result> owner, int length) {
+        boolean done;
+        TransferListener current = null;
+        long progress = 0;
+        float rate = 0f;
+        synchronized (this) {
+            if (attempt != owner) {
+                return;
+            }
+
+            rollingCrc.update(payload, (int) committed, length);
+            committed += length;
+            inFlight--;
+            done = committed == payload.length;
+            if (done || committed - lastCheckpoint >= checkpointInterval) {
+                checkpoint();
+
+                current = listener;
+                progress = committed;
+                long elapsed = SystemClock.elapsedRealtime() - startTime;
+                rate = elapsed == 0 ? 0f : (committed - resumedFrom) * 1000f / elapsed;
+            }
+        }
+
+        if (current != null) {
+            current.onProgress(progress, payload.length, rate);
+        }
+        if (done) {
+            complete(owner);
+        } else {
+            fillWindow(owner);
+        }
+    }
+
+    private void complete(final TaskCompletionSource<Result> owner) {
+        final BluetoothLeGattServer target;
+        final UUID service, characteristic;
+        synchronized (this) {
+            if (attempt != owner) {
+                return;
+            }
+            target = server;
+            service = verifyService;
+            characteristic = verifyChar;
+        }
+
+        if (service == null) {
+            finish(owner, null);
+            return;
+        }
+
+        target.readCharacteristicAsync(service, characteristic).continueWith(new Continuation<byte[], Void>() {
+            @Override
+            public Void then(Task<byte[]> task) throws Exception {
+                if (task.isFaulted()) {
+                    // Bytes are committed, only the check failed, so a retry resumes straight to verification
+                    fail(owner, task.getError());
+                } else {
+                    byte[] value = task.getResult();
+                    if (value == null || value.length < 4) {
+                        fail(owner, new IllegalStateException("Verify characteristic did not return a CRC32 value"));
+                    } else {
+                        int deviceCrc = ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN).getInt(0);
+                        finish(owner, deviceCrc == payloadCrc ? null : new IllegalStateException(String.format(Locale.US,
+                                "CRC mismatch, expected 0x%08x but device computed 0x%08x", payloadCrc, deviceCrc)));
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    private void finish(TaskCompletionSource<Result> owner, Exception crcError) {
+        Result result;
+        synchronized (this) {
+            if (attempt != owner) {
+                return;
+            }
+            attempt = null;
+            server = null;
+            result = new Result(payload.length, resumedFrom, SystemClock.elapsedRealtime() - startTime, payloadCrc);
+
+            // Transfer is over either way, a corrupted payload has to be sent again from the beginning
+            lastCheckpoint = 0;
+            if (checkpointFile.exists() && !checkpointFile.delete()) {
+                Log.w("bletoolbox", "Could not delete transfer checkpoint \'" + checkpointFile.getAbsolutePath() + "\'");
+            }
+        }
+
+        if (crcError != null) {
+            owner.setError(crcError);
+        } else {
+            owner.setResult(result);
+        }
+    }
+
+    private void fail(TaskCompletionSource<Result> owner, Exception error) {
+        synchronized (this) {
+            // Writes queued behind the failed one fail as well, only the first error is reported
+            if (attempt != owner) {
+                return;
+            }
+            attempt = null;
+            server = null;
+            checkpoint();
+        }
+
+        owner.setError(error);
+    }
+
+    // Called while holding the lock
+    private void checkpoint() {
+        if (committed != lastCheckpoint) {
+            File temp = new File(checkpointFile.getPath() + ".tmp");
+            try {
+                DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+                try {
+                    out.writeInt(CHECKPOINT_MAGIC);
+                    out.writeLong(payload.length);
+                    out.writeInt(payloadCrc);
+                    out.writeLong(committed);
+                    out.writeInt((int) rollingCrc.getValue());
+                } finally {
+                    out.close();
+                }
+
+                // Rename is atomic so a crash leaves either the old or the new checkpoint, never a partial one
+                if (!temp.renameTo(checkpointFile)) {
+                    throw new IOException("Could not replace \'" + checkpointFile.getAbsolutePath() + "\'");
+                }
+                lastCheckpoint = committed;
+            } catch (IOException e) {
+                Log.w("bletoolbox", "Error recording transfer checkpoint", e);
+            }
+        }
+    }
+
+    // Returns the committed offset if the checkpoint belongs to this payload and its CRC matches the payload's prefix
+    private long loadCheckpoint() {
+        if (!checkpointFile.exists()) {
+            return 0;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(checkpointFile));
+            try {
+                if (in.readInt() != CHECKPOINT_MAGIC || in.readLong() != payload.length || in.readInt() != payloadCrc) {
+                    return 0;
+                }
+
+                long offset = in.readLong();
+                int crc = in.readInt();
+                if (offset < 0 || offset > payload.length) {
+                    return 0;
+                }
+
+                CRC32 prefix = new CRC32();
+                prefix.update(payload, 0, (int) offset);
+                return (int) prefix.getValue() == crc ? offset : 0;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w("bletoolbox", "Error reading transfer checkpoint", e);
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.TimeoutException;
+
+import bolts.CancellationTokenSource;
+import bolts.Continuation;
+import bolts.Task;
+import bolts.TaskCompletionSource;
+
+/**
+ * Correlates commands written to one characteristic with the notifications another characteristic sends in response.
+ * Requests are pipelined: each command is queued as soon as it is issued without waiting for earlier responses, and a
+ * notification completes the oldest outstanding request it matches, so responses can arrive in any order.
+ * <p>
+ * Notifications that do not answer any outstanding request are forwarded to the unmatched listener, if one is set,
+ * which makes it possible to chain a {@link NotificationRouter} behind the channel for streaming data.
+ */
+public final class CommandChannel implements BluetoothLeGattServer.NotificationListener {
+    /**
+     * Decides if a notification is the response to a request
+     */
+    public interface ResponseMatcher {
+        /**
+         * Checks a notification against the request's expected response
+         * @param value    Notification value
+         * @return True if the value is the response
+         */
+        boolean matches(byte[] value);
+    }
+
+    /**
+     * Creates a matcher that accepts notifications starting with the given bytes
+     * @param prefix    Leading bytes of the expected response
+     * @return Prefix matcher
+     */
+    public static ResponseMatcher prefixMatcher(final byte[] prefix) {
+        final byte[] copy = prefix.clone();
+        return new ResponseMatcher() {
+            @Override
+            public boolean matches(byte[] value) {
+                if (value.length < copy.length) {
+                    return false;
+                }
+                for (int i = 0; i < copy.length; i++) {
+                    if (value[i] != copy[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        };
+    }
+
+    private static final class PendingRequest {
+        final ResponseMatcher matcher;
+        final TaskCompletionSource<byte[]> taskSource = new TaskCompletionSource<>();
+        final CancellationTokenSource timeoutCts = new CancellationTokenSource();
+
+        PendingRequest(ResponseMatcher matcher) {
+            this.matcher = matcher;
+        }
+    }
+
+    private final BluetoothLeGattServer server;
+    private final UUID gattService, commandChar, responseChar;
+    private final BluetoothLeGattServer.WriteType writeType;
+    private final ArrayList<PendingRequest> outstanding = new ArrayList<>();
+    private volatile BluetoothLeGattServer.NotificationListener unmatched;
+
+    /**
+     * Creates a channel using characteristics from the same service
+     * @param server          Gatt server to communicate with
+     * @param gattService     Service the command and response characteristics belong to
+     * @param commandChar     Characteristic commands are written to
+     * @param responseChar    Characteristic responses are notified on
+     * @param writeType       Type of write to use for commands
+     */
+    public CommandChannel(BluetoothLeGattServer server, UUID gattService, UUID commandChar, UUID responseChar,
+                          BluetoothLeGattServer.WriteType writeType) {
+        this.server = server;
+        this.gattService = gattService;
+        this.commandChar = commandChar;
+        this.responseChar = responseChar;
+        this.writeType = writeType;
+    }
+
+    /**
+     * Sets the listener receiving notifications that do not match any outstanding request
+     * @param listener    Listener for unmatched notifications, null to drop them
+     */
+    public void setUnmatchedListener(BluetoothLeGattServer.NotificationListener listener) {
+        unmatched = listener;
+    }
+
+    /**
+     * Enables notifications on the response characteristic.  Must be called before issuing requests
+     * @return Task that is completed when the channel is ready
+     */
+    public Task<Void> openAsync() {
+        return server.enableNotificationsAsync(gattService, responseChar, this);
+    }
+
+    /**
+     * Removes the channel's notification listener and fails all outstanding requests
+     * @return Task that is completed when the listener is removed
+     */
+    public Task<Void> closeAsync() {
+        ArrayList<PendingRequest> remaining;
+        synchronized (outstanding) {
+            remaining = new ArrayList<>(outstanding);
+            outstanding.clear();
+        }
+        for (PendingRequest it : remaining) {
+            it.timeoutCts.cancel();
+            it.taskSource.trySetError(new IllegalStateException("Command channel was closed"));
+        }
+
+        return server.disableNotificationsAsync(gattService, responseChar, this);
+    }
+
+    /**
+     * Retrieves how many requests are waiting for a response
+     * @return Number of outstanding requests
+     */
+    public int outstandingCount() {
+        synchronized (outstanding) {
+            return outstanding.size();
+        }
+    }
+
+    /**
+     * Writes a command and waits for the first notification starting with the response prefix
+     * @param command           Command to write
+     * @param responsePrefix    Leading bytes of the expected response
+     * @param timeout           How long to wait for the response once the command is written, in milliseconds
+     * @return Task holding the response
+     */
+    public Task<byte[]> requestAsync(byte[] command, byte[] responsePrefix, long timeout) {
+        return requestAsync(command, prefixMatcher(responsePrefix), timeout);
+    }
+
+    /**
+     * Writes a command and waits for the first notification accepted by the matcher.  The timeout starts once the write
+     * has completed, so time spent queued behind other operations does not count against it
+     * @param command    Command to write
+     * @param matcher    Identifies the response
+     * @param timeout    How long to wait for the response once the command is written, in milliseconds
+     * @return Task holding the response
+     */
+    public Task<byte[]> requestAsync(byte[] command, ResponseMatcher matcher, final long timeout) {
+        final PendingRequest request = new PendingRequest(matcher);
+
+        // Register before writing so a fast response cannot be missed
+        synchronized (outstanding) {
+            outstanding.add(request);
+        }
+
+        server.writeCharacteristicAsync(gattService, commandChar, writeType, command).continueWith(new Continuation<Void, Void>() {
+            @Override
+            public Void then(Task<Void> task) throws Exception {
+                if (task.isFaulted() || task.isCancelled()) {
+                    if (remove(request)) {
+                        request.taskSource.trySetError(task.isFaulted() ? task.getError() :
+                                new IllegalStateException("Command write was cancelled"));
+                    }
+                } else if (isOutstanding(request)) {
+                    startTimeout(request, timeout);
+                }
+                return null;
+            }
+        });
+
+        return request.taskSource.getTask();
+    }
+
+    private void startTimeout(final PendingRequest request, final long timeout) {
+        Task.delay(timeout, request.timeoutCts.getToken()).continueWith(new Continuation<Void, Void>() {
+            @Override
+            public Void then(Task<Void> task) throws Exception {
+                if (!task.isCancelled() && remove(request)) {
+                    request.taskSource.trySetError(new TimeoutException("Did not receive a response within " + timeout + "ms"));
+                }
+                return null;
+            }
+        });
+    }
+
+    private boolean isOutstanding(PendingRequest request) {
+        synchronized (outstanding) {
+            return outstanding.contains(request);
+        }
+    }
+
+    private boolean remove(PendingRequest request) {
+        synchronized (outstanding) {
+            return outstanding.remove(request);
+        }
+    }
+
+    @Override
+    public void onChange(byte[] value) {
+        PendingRequest match = null;
+        synchronized (outstanding) {
+            Iterator<PendingRequest> it = outstanding.iterator();
+            while (match == null && it.hasNext()) {
+                PendingRequest next = it.next();
+                if (next.matcher.matches(value)) {
+                    it.remove();
+                    match = next;
+                }
+            }
+        }
+
+        if (match != null) {
+            match.timeoutCts.cancel();
+            match.taskSource.trySetResult(value);
+        } else {
+            BluetoothLeGattServer.NotificationListener listener = unmatched;
+            if (listener != null) {
+                listener.onChange(value);
+            }
+        }
+    }
+}
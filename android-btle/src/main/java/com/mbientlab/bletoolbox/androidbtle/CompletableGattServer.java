@@ -0,0 +1,230 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link CompletableFuture} based view of a {@link BluetoothLeGattServer}.  Operations share the server's queue but
+ * complete their futures directly from the gatt callback, either inline on the callback thread when using
+ * {@link #DIRECT_EXECUTOR}, or on the executor the view was created with.  Dependent stages that are not explicitly
+ * async run on the same thread the future was completed on.
+ */
+public final class CompletableGattServer {
+    /**
+     * Executor that runs tasks on the calling thread.  Completing futures with this executor avoids any thread hops but
+     * dependent stages will then run on the Bluetooth callback thread and must not block
+     */
+    public static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private abstract class FutureCompletion<T> implements BluetoothLeGattServer.GattCompletion {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        abstract T convert(byte[] value);
+
+        @Override
+        public void setResult(final byte[] value) {
+            if (executor == DIRECT_EXECUTOR) {
+                future.complete(convert(value));
+            } else {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        future.complete(convert(value));
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void setError(Exception error) {
+            completeExceptionally(future, error);
+        }
+    }
+
+    // Receives the RSSI as an int so it is not packed into, then unpacked from, a byte array
+    private final class RssiFutureCompletion extends BluetoothLeGattServer.RssiCompletion {
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+        @Override
+        void setRssi(final int rssi) {
+            if (executor == DIRECT_EXECUTOR) {
+                future.complete(rssi);
+            } else {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        future.complete(rssi);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void setError(Exception error) {
+            completeExceptionally(future, error);
+        }
+    }
+
+    private void completeExceptionally(final CompletableFuture<?> future, final Exception error) {
+        if (executor == DIRECT_EXECUTOR) {
+            future.completeExceptionally(error);
+        } else {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    future.completeExceptionally(error);
+                }
+            });
+        }
+    }
+
+    private final class VoidCompletion extends FutureCompletion<Void> {
+        @Override
+        Void convert(byte[] value) {
+            return null;
+        }
+    }
+
+    private final BluetoothLeGattServer server;
+    private final Executor executor;
+
+    CompletableGattServer(BluetoothLeGattServer server, Executor executor) {
+        this.server = server;
+        this.executor = executor;
+    }
+
+    /**
+     * Retrieves the server this object wraps
+     * @return Underlying gatt server
+     */
+    public BluetoothLeGattServer server() {
+        return server;
+    }
+
+    /**
+     * Future variant of {@link BluetoothLeGattServer#writeCharacteristicAsync(UUID, UUID, BluetoothLeGattServer.WriteType, byte[])}
+     * @param gattService    Service the characteristic belongs to
+     * @param gattChar       Characteristic to write
+     * @param type           Type of write to perform
+     * @param value          Value to write
+     * @return Future completed when the write has been performed
+     */
+    public CompletableFuture<Void> writeCharacteristic(UUID gattService, UUID gattChar, BluetoothLeGattServer.WriteType type, byte[] value) {
+        VoidCompletion completion = new VoidCompletion();
+        server.queueWrite(gattService, gattChar, type, value, completion);
+        return completion.future;
+    }
+
+    /**
+     * Future variant of {@link BluetoothLeGattServer#readCharacteristicAsync(UUID, UUID)}
+     * @param gattService    Service the characteristic belongs to
+     * @param gattChar       Characteristic to read
+     * @return Future holding the characteristic value
+     */
+    public CompletableFuture<byte[]> readCharacteristic(UUID gattService, UUID gattChar) {
+        FutureCompletion<byte[]> completion = new FutureCompletion<byte[]>() {
+            @Override
+            byte[] convert(byte[] value) {
+                return value;
+            }
+        };
+        server.queueRead(gattService, gattChar, completion);
+        return completion.future;
+    }
+
+    /**
+     * Future variant of {@link BluetoothLeGattServer#readCharacteristicsAsync(UUID[][], BulkReadResult)}
+     * @param gattUuidPairs    Array of [service uuid, characteristic uuid] pairs to read
+     * @param results          Object to store the results in, can be null to allocate a new one
+     * @return Future holding the per characteristic results
+     */
+    public CompletableFuture<BulkReadResult> readCharacteristics(UUID[][] gattUuidPairs, BulkReadResult results) {
+        final BulkReadResult dest = results == null ? new BulkReadResult(gattUuidPairs.length) : results;
+        FutureCompletion<BulkReadResult> completion = new FutureCompletion<BulkReadResult>() {
+            @Override
+            BulkReadResult convert(byte[] value) {
+                return dest;
+            }
+        };
+        server.queueBulkRead(gattUuidPairs, dest, completion);
+        return completion.future;
+    }
+
+    /**
+     * Future variant of {@link BluetoothLeGattServer#readRssiAsync()}
+     * @return Future holding the RSSI value
+     */
+    public CompletableFuture<Integer> readRssi() {
+        RssiFutureCompletion completion = new RssiFutureCompletion();
+        server.queueReadRssi(completion);
+        return completion.future;
+    }
+
+    /**
+     * Future variant of {@link BluetoothLeGattServer#enableNotificationsAsync(UUID, UUID, BluetoothLeGattServer.NotificationListener)}
+     * @param gattService    Service the characteristic belongs to
+     * @param gattChar       Characteristic to receive notifications from
+     * @param listener       Listener to receive the notifications
+     * @return Future completed when notifications have been enabled
+     */
+    public CompletableFuture<Void> enableNotifications(UUID gattService, UUID gattChar, BluetoothLeGattServer.NotificationListener listener) {
+        VoidCompletion completion = new VoidCompletion();
+        server.subscribeNotifications(gattService, gattChar, listener, completion);
+        return completion.future;
+    }
+
+    /**
+     * Future variant of {@link BluetoothLeGattServer#disableNotificationsAsync(UUID, UUID)}
+     * @param gattService    Service the characteristic belongs to
+     * @param gattChar       Characteristic to stop receiving notifications from
+     * @return Future completed when notifications have been disabled
+     */
+    public CompletableFuture<Void> disableNotifications(UUID gattService, UUID gattChar) {
+        VoidCompletion completion = new VoidCompletion();
+        server.unsubscribeNotifications(gattService, gattChar, null, completion);
+        return completion.future;
+    }
+
+    /**
+     * Future variant of {@link BluetoothLeGattServer#disableNotificationsAsync(UUID, UUID, BluetoothLeGattServer.NotificationListener)}
+     * @param gattService    Service the characteristic belongs to
+     * @param gattChar       Characteristic the listener was added to
+     * @param listener       Listener to remove
+     * @return Future completed when the listener has been removed
+     */
+    public CompletableFuture<Void> disableNotifications(UUID gattService, UUID gattChar, BluetoothLeGattServer.NotificationListener listener) {
+        VoidCompletion completion = new VoidCompletion();
+        server.unsubscribeNotifications(gattService, gattChar, listener, completion);
+        return completion.future;
+    }
+}
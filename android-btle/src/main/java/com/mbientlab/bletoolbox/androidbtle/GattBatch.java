@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+import bolts.Task;
+import bolts.TaskCompletionSource;
+
+/**
+ * Sequence of reads, writes, and notification changes that is queued as one unit, so no other operation can run between
+ * its steps.  Each step's outcome is reported separately in a {@link BulkReadResult}, indexed in the order the steps
+ * were added; only read steps have a value.  Create instances with {@link BluetoothLeGattServer#beginBatch()}.
+ */
+public final class GattBatch {
+    static final int READ = 0, WRITE = 1, ENABLE_NOTIFICATIONS = 2, DISABLE_NOTIFICATIONS = 3;
+
+    static final class Step {
+        final int type;
+        final UUID gattService, gattChar;
+        final BluetoothLeGattServer.WriteType writeType;
+        final byte[] value;
+        final BluetoothLeGattServer.NotificationListener listener;
+
+        Step(int type, UUID gattService, UUID gattChar, BluetoothLeGattServer.WriteType writeType, byte[] value,
+             BluetoothLeGattServer.NotificationListener listener) {
+            this.type = type;
+            this.gattService = gattService;
+            this.gattChar = gattChar;
+            this.writeType = writeType;
+            this.value = value;
+            this.listener = listener;
+        }
+    }
+
+    final ArrayList<Step> steps = new ArrayList<>();
+    private final BluetoothLeGattServer server;
+    private boolean committed;
+    boolean abortOnError;
+
+    GattBatch(BluetoothLeGattServer server) {
+        this.server = server;
+    }
+
+    private GattBatch add(Step step) {
+        if (committed) {
+            throw new IllegalStateException("Cannot add steps to a committed batch");
+        }
+
+        steps.add(step);
+        return this;
+    }
+
+    /**
+     * Adds a characteristic read
+     * @param gattService    Service the characteristic belongs to
+     * @param gattChar       Characteristic to read
+     * @return Calling object
+     */
+    public synchronized GattBatch read(UUID gattService, UUID gattChar) {
+        return add(new Step(READ, gattService, gattChar, null, null, null));
+    }
+
+    /**
+     * Adds a characteristic write
+     * @param gattService    Service the characteristic belongs to
+     * @param gattChar       Characteristic to write
+     * @param type           Type of write to issue
+     * @param value          Value to write
+     * @return Calling object
+     */
+    public synchronized GattBatch write(UUID gattService, UUID gattChar, BluetoothLeGattServer.WriteType type, byte[] value) {
+        return add(new Step(WRITE, gattService, gattChar, type, value, null));
+    }
+
+    /**
+     * Adds a notification listener, writing the client characteristic configuration descriptor if it is the first one
+     * @param gattService    Service the characteristic belongs to
+     * @param gattChar       Characteristic to receive notifications from
+     * @param listener       Listener to add
+     * @return Calling object
+     * @see BluetoothLeGattServer#enableNotificationsAsync(UUID, UUID, BluetoothLeGattServer.NotificationListener)
+     */
+    public synchronized GattBatch enableNotifications(UUID gattService, UUID gattChar, BluetoothLeGattServer.NotificationListener listener) {
+        return add(new Step(ENABLE_NOTIFICATIONS, gattService, gattChar, null, null, listener));
+    }
+
+    /**
+     * Removes a notification listener, disabling notifications if no listeners are left
+     * @param gattService    Service the characteristic belongs to
+     * @param gattChar       Characteristic the listener was added to
+     * @param listener       Listener to remove, null to remove all of them
+     * @return Calling object
+     * @see BluetoothLeGattServer#disableNotificationsAsync(UUID, UUID, BluetoothLeGattServer.NotificationListener)
+     */
+    public synchronized GattBatch disableNotifications(UUID gattService, UUID gattChar, BluetoothLeGattServer.NotificationListener listener) {
+        return add(new Step(DISABLE_NOTIFICATIONS, gattService, gattChar, null, null, listener));
+    }
+
+    /**
+     * Sets whether the remaining steps are skipped once a step fails.  Skipped steps are reported as failed
+     * @param abort    True to stop at the first failure, false to run every step (default)
+     * @return Calling object
+     */
+    public synchronized GattBatch setAbortOnError(boolean abort) {
+        abortOnError = abort;
+        return this;
+    }
+
+    /**
+     * Retrieves how many steps have been added
+     * @return Number of steps
+     */
+    public synchronized int size() {
+        return steps.size();
+    }
+
+    /**
+     * Queues the batch
+     * @return Task holding the per step results, only faulted if the batch could not be queued
+     */
+    public Task<BulkReadResult> commitAsync() {
+        return commitAsync(null);
+    }
+
+    /**
+     * Queues the batch, storing the outcomes in an existing result object
+     * @param results    Object to store the results in, can be null to allocate a new one
+     * @return Task holding the per step results, only faulted if the batch could not be queued
+     */
+    public synchronized Task<BulkReadResult> commitAsync(BulkReadResult results) {
+        if (committed) {
+            return Task.forError(new IllegalStateException("Batch has already been committed"));
+        }
+        committed = true;
+
+        final TaskCompletionSource<BulkReadResult> taskSource = new TaskCompletionSource<>();
+        final BulkReadResult dest = results == null ? new BulkReadResult(steps.size()) : results;
+        server.queueBatch(this, dest, new BluetoothLeGattServer.GattCompletion() {
+            @Override
+            public void setResult(byte[] value) {
+                taskSource.setResult(dest);
+            }
+
+            @Override
+            public void setError(Exception error) {
+                taskSource.setError(error);
+            }
+        });
+        return taskSource.getTask();
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCallback;
+import android.content.Context;
+import android.util.Pair;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+import bolts.Task;
+
+/**
+ * Owns the gatt operation queue, timeout threads, and connection state shared by a group of {@link BluetoothLeGattServer}
+ * objects.  Connections made through different runtimes do not share a queue, so independent subsystems in one process
+ * cannot delay each other's operations.  No threads are started until the first connection is made, and
+ * {@link #shutdown()} releases everything the runtime holds.
+ */
+public final class GattRuntime {
+    private static GattRuntime defaultRuntime;
+
+    /**
+     * Retrieves the runtime used by {@link BluetoothLeGattServer#connect(BluetoothDevice, Context, boolean, long)}.  A
+     * new default runtime is created if the previous one was shut down
+     * @return Default runtime
+     */
+    public static synchronized GattRuntime getDefault() {
+        if (defaultRuntime == null || defaultRuntime.isShutdown()) {
+            defaultRuntime = new GattRuntime();
+        }
+        return defaultRuntime;
+    }
+
+    final Queue<BluetoothLeGattServer.GattTask> pendingGattTasks = new ConcurrentLinkedQueue<>();
+    final Map<BluetoothDevice, Map<Pair<UUID, UUID>, BluetoothLeGattServer.CharacteristicSubscription>> activeCharNotifyListeners = new ConcurrentHashMap<>();
+    final Map<BluetoothDevice, BluetoothLeGattServer> activeObjects = new ConcurrentHashMap<>();
+    final BluetoothGattCallback gattCallback = new BluetoothLeGattServer.RuntimeGattCallback(this);
+    volatile ScheduledFuture<?> gattTaskTimeoutFuture;
+
+    private final int schedulerThreads;
+    private ScheduledExecutorService taskScheduler;
+    private boolean shutdown;
+
+    /**
+     * Creates a runtime with the default number of timeout threads
+     */
+    public GattRuntime() {
+        this(4);
+    }
+
+    /**
+     * Creates a runtime
+     * @param schedulerThreads    Number of threads used to run connection and operation timeouts
+     */
+    public GattRuntime(int schedulerThreads) {
+        this.schedulerThreads = schedulerThreads;
+    }
+
+    synchronized ScheduledExecutorService scheduler() {
+        if (shutdown) {
+            throw new IllegalStateException("Gatt runtime has been shut down");
+        }
+        if (taskScheduler == null) {
+            taskScheduler = Executors.newScheduledThreadPool(schedulerThreads);
+        }
+        return taskScheduler;
+    }
+
+    void executeGattOperation(boolean ready) {
+        BluetoothLeGattServer.GattTask task;
+        while ((ready || pendingGattTasks.size() == 1) && (task = pendingGattTasks.peek()) != null) {
+            if (task.start()) {
+                task.execute();
+            } else if (task.isDropped()) {
+                // Dropped before it reached the head, skip over it
+                pendingGattTasks.remove(task);
+                ready = true;
+                continue;
+            }
+            return;
+        }
+    }
+
+    /**
+     * Connects to a device, or returns the existing connection if the device is already connected through this runtime
+     * @param device         Device to connect to
+     * @param ctx            Context to connect with
+     * @param autoConnect    True to connect as soon as the device becomes available
+     * @param timeout        How long to wait for the connection, in milliseconds
+     * @return Task holding the connected server
+     */
+    public Task<BluetoothLeGattServer> connect(BluetoothDevice device, Context ctx, boolean autoConnect, long timeout) {
+        synchronized (this) {
+            if (shutdown) {
+                return Task.forError(new IllegalStateException("Gatt runtime has been shut down"));
+            }
+        }
+
+        if (activeObjects.containsKey(device)) {
+            return Task.forResult(activeObjects.get(device));
+        }
+
+        BluetoothLeGattServer newServerConn = new BluetoothLeGattServer(this, device, ctx, autoConnect, timeout);
+        return newServerConn.connectTask();
+    }
+
+    /**
+     * Checks if {@link #shutdown()} has been called
+     * @return True if the runtime can no longer be used
+     */
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Closes every connection without waiting for queued operations, fails the queued operations, and stops the timeout
+     * threads.  The runtime cannot be used afterwards
+     */
+    public void shutdown() {
+        ScheduledExecutorService scheduler;
+        synchronized (this) {
+            if (shutdown) {
+                return;
+            }
+            shutdown = true;
+            scheduler = taskScheduler;
+            taskScheduler = null;
+        }
+
+        IllegalStateException error = new IllegalStateException("Gatt runtime has been shut down");
+        for (BluetoothLeGattServer it : activeObjects.values()) {
+            it.abandon(error);
+        }
+
+        ScheduledFuture<?> timeout = gattTaskTimeoutFuture;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+
+        BluetoothLeGattServer.GattTask task;
+        while ((task = pendingGattTasks.poll()) != null) {
+            task.completion().setError(error);
+        }
+
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Discrete event model of Bluetooth LE link layer timing for capacity planning.  The model schedules connection events
+ * for every connected device, splits the radio time of each connection interval between them, fragments ATT payloads
+ * into link layer packets, and retransmits lost packets.  Central initiated operations go through the same queue
+ * discipline as {@link BluetoothLeGattServer}: with {@link QueueMode#SHARED}, only one operation is in flight across all
+ * connections, whereas {@link QueueMode#PER_CONNECTION} allows one in flight operation per connection.
+ * <p>
+ * The class has no Android dependencies and can be run on any JVM, see {@link #maxSampleRate} for finding the limits of a
+ * configuration.
+ */
+public final class LinkLayerSimulator {
+    /**
+     * Physical layer the connections use
+     */
+    public enum Phy {
+        LE_1M(1000000, 1),
+        LE_2M(2000000, 2),
+        LE_CODED_S2(500000, 10),
+        LE_CODED_S8(125000, 10);
+
+        final double bitsPerSecond;
+        final int preambleBytes;
+
+        Phy(double bitsPerSecond, int preambleBytes) {
+            this.bitsPerSecond = bitsPerSecond;
+            this.preambleBytes = preambleBytes;
+        }
+    }
+
+    /**
+     * How central operations are queued
+     */
+    public enum QueueMode {
+        /** One operation in flight across all connections, the behavior of {@link BluetoothLeGattServer} */
+        SHARED,
+        /** One operation in flight per connection */
+        PER_CONNECTION
+    }
+
+    /**
+     * Outcome of a simulation run
+     */
+    public static final class Result {
+        /** Notification payload delivered to the central, in bytes per second per device */
+        public final double notifyThroughput;
+        /** Fraction of generated samples the peripherals dropped because their transmit buffer was full */
+        public final double dropRatio;
+        /** Central operations completed per second, summed over all devices */
+        public final double opsPerSecond;
+        /** Mean and 99th percentile time from queueing an operation until it completes, in milliseconds */
+        public final double meanOpLatency, p99OpLatency;
+
+        Result(double notifyThroughput, double dropRatio, double opsPerSecond, double meanOpLatency, double p99OpLatency) {
+            this.notifyThroughput = notifyThroughput;
+            this.dropRatio = dropRatio;
+            this.opsPerSecond = opsPerSecond;
+            this.meanOpLatency = meanOpLatency;
+            this.p99OpLatency = p99OpLatency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "{notifyThroughput: %.1f B/s, dropRatio: %.4f, opsPerSecond: %.1f, meanOpLatency: %.1fms, p99OpLatency: %.1fms}",
+                    notifyThroughput, dropRatio, opsPerSecond, meanOpLatency, p99OpLatency);
+        }
+    }
+
+    // LL header (2) + CRC (3) + access address (4)
+    private static final int LL_OVERHEAD = 9;
+    // ATT opcode + handle (3) + L2CAP header (4)
+    private static final int ATT_L2CAP_OVERHEAD = 7;
+    private static final double T_IFS = 150e-6;
+
+    private double connInterval = 0.0075;
+    private int packetsPerEvent = 6, mtu = 23, dataLength = 27, peripheralBuffer = 32, commandSize = 20;
+    private Phy phy = Phy.LE_1M;
+    private double packetLoss = 0, duration = 60;
+    private QueueMode queueMode = QueueMode.SHARED;
+    private long seed = 0;
+
+    /**
+     * Sets the connection interval
+     * @param millis    Interval in milliseconds, between 7.5 and 4000
+     * @return Calling object
+     */
+    public LinkLayerSimulator connectionInterval(double millis) {
+        if (millis < 7.5 || millis > 4000) {
+            throw new IllegalArgumentException("Connection interval must be between 7.5ms and 4000ms");
+        }
+        connInterval = millis / 1000.0;
+        return this;
+    }
+
+    /**
+     * Sets how many packets the central's controller exchanges per connection event
+     * @param count    Max packets per connection event
+     * @return Calling object
+     */
+    public LinkLayerSimulator packetsPerEvent(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Packets per event must be at least 1");
+        }
+        packetsPerEvent = count;
+        return this;
+    }
+
+    /**
+     * Sets the negotiated ATT MTU
+     * @param mtu    MTU, between 23 and 517
+     * @return Calling object
+     */
+    public LinkLayerSimulator mtu(int mtu) {
+        if (mtu < 23 || mtu > 517) {
+            throw new IllegalArgumentException("MTU must be between 23 and 517");
+        }
+        this.mtu = mtu;
+        return this;
+    }
+
+    /**
+     * Sets the link layer data length, 27 without and up to 251 with data length extension
+     * @param octets    Max link layer payload, between 27 and 251
+     * @return Calling object
+     */
+    public LinkLayerSimulator dataLength(int octets) {
+        if (octets < 27 || octets > 251) {
+            throw new IllegalArgumentException("Data length must be between 27 and 251");
+        }
+        dataLength = octets;
+        return this;
+    }
+
+    /**
+     * Sets the physical layer
+     * @param phy    Phy to use
+     * @return Calling object
+     */
+    public LinkLayerSimulator phy(Phy phy) {
+        if (phy == null) {
+            throw new IllegalArgumentException("Phy cannot be null");
+        }
+        this.phy = phy;
+        return this;
+    }
+
+    /**
+     * Sets the probability that any one packet is lost and must be retransmitted
+     * @param probability    Packet loss probability, at least 0 and less than 1
+     * @return Calling object
+     */
+    public LinkLayerSimulator packetLoss(double probability) {
+        if (!(probability >= 0 && probability < 1)) {
+            throw new IllegalArgumentException("Packet loss must be at least 0 and less than 1");
+        }
+        packetLoss = probability;
+        return this;
+    }
+
+    /**
+     * Sets how many link layer packets a peripheral can buffer before it drops samples
+     * @param packets    Peripheral transmit buffer size
+     * @return Calling object
+     */
+    public LinkLayerSimulator peripheralBuffer(int packets) {
+        if (packets < 1) {
+            throw new IllegalArgumentException("Peripheral buffer must hold at least 1 packet");
+        }
+        peripheralBuffer = packets;
+        return this;
+    }
+
+    /**
+     * Sets the size of the commands the central writes
+     * @param bytes    Command size
+     * @return Calling object
+     */
+    public LinkLayerSimulator commandSize(int bytes) {
+        if (bytes < 1) {
+            throw new IllegalArgumentException("Command size must be at least 1 byte");
+        }
+        commandSize = bytes;
+        return this;
+    }
+
+    /**
+     * Sets how central operations are queued
+     * @param mode    Queue mode
+     * @return Calling object
+     */
+    public LinkLayerSimulator queueMode(QueueMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("Queue mode cannot be null");
+        }
+        queueMode = mode;
+        return this;
+    }
+
+    /**
+     * Sets how much time to simulate
+     * @param seconds    Simulated duration
+     * @return Calling object
+     */
+    public LinkLayerSimulator duration(double seconds) {
+        if (!(seconds > 0)) {
+            throw new IllegalArgumentException("Duration must be positive");
+        }
+        duration = seconds;
+        return this;
+    }
+
+    /**
+     * Sets the seed for the packet loss generator, runs with the same seed and parameters give the same result
+     * @param seed    Random seed
+     * @return Calling object
+     */
+    public LinkLayerSimulator seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    private int packetsFor(int attPayload) {
+        return Math.max(1, (attPayload + ATT_L2CAP_OVERHEAD + dataLength - 1) / dataLength);
+    }
+
+    private double packetAirtime(int llPayload) {
+        // Data packet followed by the empty acknowledgement from the other side
+        double dataBits = (phy.preambleBytes + LL_OVERHEAD + llPayload) * 8, emptyBits = (phy.preambleBytes + LL_OVERHEAD) * 8;
+        return (dataBits + emptyBits) / phy.bitsPerSecond + 2 * T_IFS;
+    }
+
+    private static final class Op {
+        final int device;
+        final double queued;
+        final boolean needsResponse;
+        int requestPackets, responsePackets;
+        long responseEvent = -1;
+
+        Op(int device, double queued, boolean needsResponse, int requestPackets, int responsePackets) {
+            this.device = device;
+            this.queued = queued;
+            this.needsResponse = needsResponse;
+            this.requestPackets = requestPackets;
+            this.responsePackets = responsePackets;
+        }
+    }
+
+    /**
+     * Runs a simulation where every device streams samples as notifications while the central writes commands to each
+     * device with write requests
+     * @param devices            Number of connected devices
+     * @param sampleRate         Samples each device produces per second
+     * @param sampleSize         Size of each sample, in bytes
+     * @param commandRate        Commands per second the central writes to each device, 0 for none
+     * @return Simulation result
+     */
+    public Result run(int devices, double sampleRate, int sampleSize, double commandRate) {
+        if (devices < 1) {
+            throw new IllegalArgumentException("Must simulate at least 1 device");
+        }
+        if (sampleSize < 1) {
+            throw new IllegalArgumentException("Sample size must be at least 1 byte");
+        }
+        if (!(sampleRate >= 0) || !(commandRate >= 0)) {
+            throw new IllegalArgumentException("Sample and command rates cannot be negative");
+        }
+
+        Random random = new Random(seed);
+        int notifyPayload = mtu - 3;
+        int notificationsPerSample = (sampleSize + notifyPayload - 1) / notifyPayload;
+        int lastPayload = sampleSize - (notificationsPerSample - 1) * notifyPayload;
+        int packetsPerSample = (notificationsPerSample - 1) * packetsFor(notifyPayload) + packetsFor(lastPayload);
+        int commandPackets = packetsFor(Math.min(commandSize, mtu - 3));
+
+        // Radio time of each interval is split between the connections
+        double eventBudget = connInterval / devices;
+        int slotsPerEvent = (int) Math.min(packetsPerEvent, Math.floor(eventBudget / packetAirtime(dataLength)));
+
+        int[] backlog = new int[devices];
+        double[] sampleAcc = new double[devices], commandAcc = new double[devices];
+        long generated = 0, dropped = 0, deliveredPackets = 0;
+
+        int queueCount = queueMode == QueueMode.SHARED ? 1 : devices;
+        ArrayList<ArrayDeque<Op>> queues = new ArrayList<>(queueCount);
+        for (int i = 0; i < queueCount; i++) {
+            queues.add(new ArrayDeque<Op>());
+        }
+        Op[] inFlight = new Op[queueCount];
+        double[] latencies = new double[1024];
+        int completed = 0;
+
+        long events = (long) Math.ceil(duration / connInterval);
+        for (long k = 0; k < events; k++) {
+            for (int d = 0; d < devices; d++) {
+                double now = k * connInterval + d * eventBudget;
+                int queue = queueMode == QueueMode.SHARED ? 0 : d;
+
+                sampleAcc[d] += sampleRate * connInterval;
+                while (sampleAcc[d] >= 1) {
+                    sampleAcc[d] -= 1;
+                    generated++;
+                    if (backlog[d] + packetsPerSample <= peripheralBuffer) {
+                        backlog[d] += packetsPerSample;
+                    } else {
+                        dropped++;
+                    }
+                }
+
+                commandAcc[d] += commandRate * connInterval;
+                while (commandAcc[d] >= 1) {
+                    commandAcc[d] -= 1;
+                    queues.get(queue).add(new Op(d, now, true, commandPackets, 1));
+                }
+
+                if (inFlight[queue] == null) {
+                    inFlight[queue] = queues.get(queue).poll();
+                }
+
+                int slots = slotsPerEvent;
+                Op op = inFlight[queue];
+                if (op != null && op.device == d) {
+                    while (slots > 0 && op.requestPackets > 0) {
+                        slots--;
+                        if (random.nextDouble() >= packetLoss) {
+                            op.requestPackets--;
+                        }
+                    }
+                    if (op.requestPackets == 0 && op.responseEvent < 0) {
+                        // Peripheral answers in the following connection event at the earliest
+                        op.responseEvent = op.needsResponse ? k + 1 : k;
+                    }
+                    if (op.responseEvent >= 0 && op.responseEvent <= k) {
+                        while (slots > 0 && op.responsePackets > 0 && op.needsResponse) {
+                            slots--;
+                            if (random.nextDouble() >= packetLoss) {
+                                op.responsePackets--;
+                            }
+                        }
+                        if (!op.needsResponse || op.responsePackets == 0) {
+                            if (completed == latencies.length) {
+                                latencies = Arrays.copyOf(latencies, completed * 2);
+                            }
+                            latencies[completed++] = (now + eventBudget - op.queued) * 1000;
+                            inFlight[queue] = null;
+                        }
+                    }
+                }
+
+                while (slots > 0 && backlog[d] > 0) {
+                    slots--;
+                    if (random.nextDouble() >= packetLoss) {
+                        backlog[d]--;
+                        deliveredPackets++;
+                    }
+                }
+            }
+        }
+
+        double delivered = packetsPerSample == 0 ? 0 : (double) deliveredPackets / packetsPerSample * sampleSize;
+        double mean = 0, p99 = 0;
+        if (completed > 0) {
+            Arrays.sort(latencies, 0, completed);
+            for (int i = 0; i < completed; i++) {
+                mean += latencies[i];
+            }
+            mean /= completed;
+            p99 = latencies[Math.min(completed - 1, (int) Math.ceil(completed * 0.99) - 1)];
+        }
+
+        return new Result(delivered / duration / devices, generated == 0 ? 0 : (double) dropped / generated,
+                completed / duration, mean, p99);
+    }
+
+    /**
+     * Searches for the highest per device sample rate the link sustains without exceeding the drop ratio
+     * @param devices          Number of connected devices
+     * @param sampleSize       Size of each sample, in bytes
+     * @param commandRate      Commands per second the central writes to each device
+     * @param maxDropRatio     Largest acceptable fraction of dropped samples, at least 0 and less than 1
+     * @return Max sample rate, in Hz
+     */
+    public double maxSampleRate(int devices, int sampleSize, double commandRate, double maxDropRatio) {
+        if (!(maxDropRatio >= 0 && maxDropRatio < 1)) {
+            throw new IllegalArgumentException("Drop ratio must be at least 0 and less than 1");
+        }
+
+        double low = 0, high = 1;
+        while (high < 1e5 && run(devices, high, sampleSize, commandRate).dropRatio <= maxDropRatio) {
+            low = high;
+            high *= 2;
+        }
+        for (int i = 0; i < 20 && high - low > 0.5; i++) {
+            double mid = (low + high) / 2;
+            if (run(devices, mid, sampleSize, commandRate).dropRatio <= maxDropRatio) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Append-only notification log backed by memory mapped, fixed size segment files.  Each record is laid out as
+ * <pre>
+ * | record length (int) | timestamp (long) | characteristic id (short) | payload |
+ * </pre>
+ * in little endian order, where the record length includes the 14 byte header.  A record length of 0 marks the end of
+ * a segment.  Records are copied straight into the mapped pages so appending a notification does not perform a
+ * system call; the OS writes the dirty pages back to storage in the background.
+ */
+public final class MappedNotificationLog implements Closeable {
+    /** Size, in bytes, of the header preceding each payload */
+    public static final int RECORD_HEADER_SIZE = 14;
+    /** Default segment size, 4MB */
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final String SEGMENT_EXTENSION = ".seg";
+    // Files that happen to share the extension but not the numbered naming are not segments
+    private static final FilenameFilter SEGMENT_FILTER = new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+            if (!name.endsWith(SEGMENT_EXTENSION)) {
+                return false;
+            }
+            try {
+                return segmentIndex(name) >= 0;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+    };
+
+    private static File[] listSegments(File directory) {
+        File[] segments = directory.listFiles(SEGMENT_FILTER);
+        if (segments == null) {
+            return new File[0];
+        }
+        // Segment names are zero padded so lexicographic order is also the write order
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static int segmentIndex(String name) {
+        return Integer.parseInt(name.substring(0, name.length() - SEGMENT_EXTENSION.length()));
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private int nextSegmentIndex;
+    private MappedByteBuffer segment;
+    private boolean closed;
+    private Exception listenerFailure;
+    private long droppedCount;
+
+    /**
+     * Opens a log in the given directory.  Existing segments are left untouched; new records are appended to a new segment
+     * @param directory      Directory to write segment files to, created if it does not exist
+     * @param segmentSize    Size of each segment file, in bytes
+     * @throws IOException If the directory cannot be created or the first segment cannot be mapped
+     */
+    public MappedNotificationLog(File directory, int segmentSize) throws IOException {
+        if (segmentSize <= RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Segment size must be larger than " + RECORD_HEADER_SIZE + " bytes");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create log directory \'" + directory.getAbsolutePath() + "\'");
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        File[] existing = listSegments(directory);
+        nextSegmentIndex = existing.length == 0 ? 0 : segmentIndex(existing[existing.length - 1].getName()) + 1;
+
+        rotate();
+    }
+
+    /**
+     * Creates a listener that appends received notifications to this log, tagged with the given id.  The returned object
+     * can be passed directly to {@link BluetoothLeGattServer#enableNotificationsAsync(java.util.UUID, java.util.UUID, BluetoothLeGattServer.NotificationListener)}.
+     * Notifications that cannot be appended are dropped rather than thrown on the Bluetooth callback thread, which would
+     * stop the other listeners from receiving them; see {@link #listenerFailure()}
+     * @param characteristicId    Caller defined id identifying the characteristic the data came from
+     * @return Listener writing to this log
+     */
+    public BluetoothLeGattServer.NotificationListener listener(final short characteristicId) {
+        return new BluetoothLeGattServer.NotificationListener() {
+            @Override
+            public void onChange(byte[] value) {
+                try {
+                    append(characteristicId, System.currentTimeMillis(), value);
+                } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+                    listenerFailed(e);
+                }
+            }
+        };
+    }
+
+    private synchronized void listenerFailed(Exception e) {
+        if (listenerFailure == null) {
+            listenerFailure = e;
+        }
+        droppedCount++;
+    }
+
+    /**
+     * Retrieves the first error that made a listener from {@link #listener(short)} drop a notification
+     * @return First failure, null if no notification has been dropped
+     */
+    public synchronized Exception listenerFailure() {
+        return listenerFailure;
+    }
+
+    /**
+     * Retrieves how many notifications listeners from {@link #listener(short)} have dropped
+     * @return Number of dropped notifications
+     */
+    public synchronized long droppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Appends a record to the log, starting a new segment if the current one cannot fit the record
+     * @param characteristicId    Id identifying the characteristic the data came from
+     * @param timestamp           Time the data was received, in milliseconds
+     * @param value               Record payload
+     * @throws IOException If a new segment could not be created
+     */
+    public synchronized void append(short characteristicId, long timestamp, byte[] value) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Log has been closed");
+        }
+
+        int recordSize = RECORD_HEADER_SIZE + value.length;
+        if (recordSize > segmentSize) {
+            throw new IllegalArgumentException("Record of " + recordSize + " bytes does not fit in a " + segmentSize + " byte segment");
+        }
+        if (segment.remaining() < recordSize) {
+            // Remaining bytes are already zero, which readers treat as the end of segment marker
+            rotate();
+        }
+
+        segment.putInt(recordSize)
+                .putLong(timestamp)
+                .putShort(characteristicId)
+                .put(value);
+    }
+
+    /**
+     * Forces the current segment's contents to be written to storage
+     */
+    public synchronized void flush() {
+        if (!closed) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Writes the current segment to storage and closes the log
+     * @throws IOException If listeners dropped notifications, with the first failure as the cause
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            segment.force();
+            segment = null;
+            closed = true;
+
+            if (listenerFailure != null) {
+                throw new IOException(droppedCount + " notification(s) could not be appended to the log", listenerFailure);
+            }
+        }
+    }
+
+    private void rotate() throws IOException {
+        File next = new File(directory, String.format(Locale.US, "%010d%s", nextSegmentIndex, SEGMENT_EXTENSION));
+        nextSegmentIndex++;
+
+        RandomAccessFile file = new RandomAccessFile(next, "rw");
+        try {
+            // Mapping past the end of the file extends it, zero filled
+            segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            // The mapping stays valid after the channel is closed
+            file.close();
+        }
+    }
+
+    /**
+     * Sequentially reads records from a log directory, oldest segment first.  The reader reuses its state between records
+     * so iterating through a log does not allocate per record
+     */
+    public static final class Reader implements Closeable {
+        private final File[] segments;
+        private int segmentPos = -1;
+        private MappedByteBuffer segment;
+        private int payloadOffset, payloadLength;
+        private long timestamp;
+        private short characteristicId;
+
+        /**
+         * Creates a reader for the log stored in the directory
+         * @param directory    Directory the log was written to
+         */
+        public Reader(File directory) {
+            segments = listSegments(directory);
+        }
+
+        /**
+         * Advances to the next record
+         * @return True if a record is available, false if the end of the log has been reached
+         * @throws IOException If a segment cannot be mapped
+         */
+        public boolean next() throws IOException {
+            while (true) {
+                if (segment != null && segment.remaining() >= RECORD_HEADER_SIZE) {
+                    int recordSize = segment.getInt(segment.position());
+                    if (recordSize >= RECORD_HEADER_SIZE && recordSize <= segment.remaining()) {
+                        segment.getInt();
+                        timestamp = segment.getLong();
+                        characteristicId = segment.getShort();
+                        payloadOffset = segment.position();
+                        payloadLength = recordSize - RECORD_HEADER_SIZE;
+                        segment.position(payloadOffset + payloadLength);
+                        return true;
+                    }
+                }
+
+                if (segmentPos + 1 >= segments.length) {
+                    segment = null;
+                    return false;
+                }
+
+                segmentPos++;
+                RandomAccessFile file = new RandomAccessFile(segments[segmentPos], "r");
+                try {
+                    segment = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                    segment.order(ByteOrder.LITTLE_ENDIAN);
+                } finally {
+                    file.close();
+                }
+            }
+        }
+
+        /**
+         * Retrieves when the current record was received
+         * @return Record timestamp, in milliseconds
+         */
+        public long timestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Retrieves the id the current record was tagged with
+         * @return Characteristic id
+         */
+        public short characteristicId() {
+            return characteristicId;
+        }
+
+        /**
+         * Retrieves the size of the current record's payload
+         * @return Payload length, in bytes
+         */
+        public int payloadLength() {
+            return payloadLength;
+        }
+
+        /**
+         * Copies the current record's payload into the provided array
+         * @param dest      Array to copy into
+         * @param offset    Position in the array to start copying at
+         * @return Number of bytes copied
+         */
+        public int readPayload(byte[] dest, int offset) {
+            int count = Math.min(payloadLength, dest.length - offset);
+            int end = segment.position();
+            segment.position(payloadOffset);
+            segment.get(dest, offset, count);
+            segment.position(end);
+            return count;
+        }
+
+        /**
+         * Retrieves one byte from the current record's payload without copying the payload
+         * @param index    Position in the payload
+         * @return Byte at the position
+         */
+        public byte payloadByte(int index) {
+            if (index < 0 || index >= payloadLength) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for payload of length " + payloadLength);
+            }
+            return segment.get(payloadOffset + index);
+        }
+
+        @Override
+        public void close() {
+            segment = null;
+            segmentPos = segments.length;
+        }
+    }
+}
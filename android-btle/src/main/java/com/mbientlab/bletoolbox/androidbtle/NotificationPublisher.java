@@ -0,0 +1,291 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bolts.Continuation;
+import bolts.Task;
+
+/**
+ * Reactive Streams {@link Publisher} emitting a characteristic's notifications.  Each subscriber adds its own listener
+ * to the characteristic, so notifications are enabled with the first subscriber and disabled once the last one cancels.
+ * Notifications that arrive faster than a subscriber requests them are held in a bounded per subscriber buffer; once
+ * the buffer is full, the publisher's {@link OverflowStrategy} decides what happens to new values.  Subscribers are
+ * completed when the connection is closed with {@link BluetoothLeGattServer#closeAsync()} and receive an error if the
+ * connection is lost.
+ */
+public final class NotificationPublisher implements Publisher<byte[]> {
+    /**
+     * Determines how to handle notifications received when the buffer is full
+     */
+    public enum OverflowStrategy {
+        /** Discard the oldest buffered value to make room for the new one */
+        DROP_OLDEST,
+        /** Discard the newly received value */
+        DROP_LATEST,
+        /** Terminate the subscription with a {@link BufferOverflowException} */
+        ERROR
+    }
+
+    /**
+     * Signalled to the subscriber when the buffer overflows and the strategy is {@link OverflowStrategy#ERROR}
+     */
+    public static class BufferOverflowException extends IllegalStateException {
+        private static final long serialVersionUID = -4380562117362358236L;
+
+        BufferOverflowException(int capacity) {
+            super("Subscriber did not keep up with notifications, buffer of " + capacity + " values is full");
+        }
+    }
+
+    private final BluetoothLeGattServer server;
+    private final UUID gattService, gattChar;
+    private final int capacity;
+    private final OverflowStrategy strategy;
+
+    NotificationPublisher(BluetoothLeGattServer server, UUID gattService, UUID gattChar, int capacity, OverflowStrategy strategy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Buffer capacity must be positive");
+        }
+
+        this.server = server;
+        this.gattService = gattService;
+        this.gattChar = gattChar;
+        this.capacity = capacity;
+        this.strategy = strategy;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super byte[]> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber cannot be null");
+        }
+
+        NotificationSubscription subscription = new NotificationSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        subscription.start();
+    }
+
+    private final class NotificationSubscription implements Subscription, BluetoothLeGattServer.NotificationListener,
+            BluetoothLeGattServer.TerminalListener {
+        private final Subscriber<? super byte[]> subscriber;
+        private final byte[][] buffer = new byte[capacity][];
+        private int head, count;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled, terminated, completed;
+        private volatile Exception error;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        NotificationSubscription(Subscriber<? super byte[]> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void start() {
+            if (cancelled) {
+                return;
+            }
+
+            server.enableNotificationsAsync(gattService, gattChar, this).continueWith(new Continuation<Void, Void>() {
+                @Override
+                public Void then(Task<Void> task) throws Exception {
+                    if (task.isFaulted()) {
+                        fail(task.getError());
+                    } else if (task.isCancelled()) {
+                        fail(new IllegalStateException("Enabling notifications was cancelled"));
+                    }
+                    return null;
+                }
+            });
+        }
+
+        @Override
+        public void onChange(byte[] value) {
+            if (cancelled || terminated) {
+                return;
+            }
+
+            boolean overflow = false;
+            synchronized (buffer) {
+                if (count == capacity) {
+                    switch (strategy) {
+                        case DROP_OLDEST:
+                            buffer[head] = value;
+                            head = (head + 1) % capacity;
+                            break;
+                        case DROP_LATEST:
+                            break;
+                        case ERROR:
+                            overflow = true;
+                            break;
+                    }
+                } else {
+                    buffer[(head + count) % capacity] = value;
+                    count++;
+                }
+            }
+
+            if (overflow) {
+                fail(new BufferOverflowException(capacity));
+            } else {
+                drain();
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                fail(new IllegalArgumentException("Requested amount must be positive (rule 3.9), was " + n));
+                return;
+            }
+
+            long current, next;
+            do {
+                current = requested.get();
+                if (current == Long.MAX_VALUE) {
+                    break;
+                }
+                next = current + n;
+                if (next < 0) {
+                    next = Long.MAX_VALUE;
+                }
+            } while (!requested.compareAndSet(current, next));
+
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                release();
+                drain();
+            }
+        }
+
+        @Override
+        public void onConnectionClosed(Exception error) {
+            // Server already dropped the listener along with the connection
+            released.set(true);
+            if (error != null) {
+                fail(error);
+            } else if (!cancelled && !terminated) {
+                completed = true;
+                drain();
+            }
+        }
+
+        private void fail(Exception e) {
+            if (!cancelled && !terminated) {
+                error = e;
+                drain();
+            }
+        }
+
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                server.disableNotificationsAsync(gattService, gattChar, this);
+            }
+        }
+
+        private byte[] poll() {
+            synchronized (buffer) {
+                if (count == 0) {
+                    return null;
+                }
+
+                byte[] value = buffer[head];
+                buffer[head] = null;
+                head = (head + 1) % capacity;
+                count--;
+                return value;
+            }
+        }
+
+        private boolean isEmpty() {
+            synchronized (buffer) {
+                return count == 0;
+            }
+        }
+
+        private void clear() {
+            synchronized (buffer) {
+                for (int i = 0; i < capacity; i++) {
+                    buffer[i] = null;
+                }
+                head = 0;
+                count = 0;
+            }
+        }
+
+        // Serializes signals to the subscriber, only one thread emits at a time (rule 1.3)
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+
+            int missed = 1;
+            do {
+                if (cancelled || terminated) {
+                    clear();
+                } else if (error != null) {
+                    terminated = true;
+                    clear();
+                    release();
+                    subscriber.onError(error);
+                } else {
+                    long demand = requested.get(), emitted = 0;
+                    byte[] next;
+                    while (emitted != demand && !cancelled && error == null && (next = poll()) != null) {
+                        subscriber.onNext(next);
+                        emitted++;
+                    }
+
+                    if (emitted != 0 && demand != Long.MAX_VALUE) {
+                        requested.addAndGet(-emitted);
+                    }
+                    if (error != null || cancelled) {
+                        continue;
+                    }
+                    // Buffered values are still delivered before completing
+                    if (completed && isEmpty()) {
+                        terminated = true;
+                        subscriber.onComplete();
+                    }
+                }
+
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
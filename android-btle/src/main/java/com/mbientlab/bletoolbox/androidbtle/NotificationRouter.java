@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+/**
+ * Notification listener that dispatches each value to the handler registered for the longest matching prefix of the
+ * value, e.g. the module and register id bytes of a MetaWear response.  Handlers are stored in a byte trie so dispatch
+ * cost depends only on the prefix length, not on how many handlers are registered.  Values that do not match any
+ * prefix are sent to the fallback handler, if one is set.
+ * <p>
+ * Registration is copy on write, handlers can be changed while notifications are being dispatched.
+ */
+public final class NotificationRouter implements BluetoothLeGattServer.NotificationListener {
+    private static final class Node {
+        BluetoothLeGattServer.NotificationListener handler;
+        Node[] children;
+
+        Node copy() {
+            Node copy = new Node();
+            copy.handler = handler;
+            copy.children = children == null ? null : children.clone();
+            return copy;
+        }
+
+        boolean isEmpty() {
+            if (handler != null) {
+                return false;
+            }
+            if (children != null) {
+                for (Node it : children) {
+                    if (it != null) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    private static Node update(Node node, byte[] prefix, int depth, BluetoothLeGattServer.NotificationListener handler) {
+        Node copy = node == null ? new Node() : node.copy();
+
+        if (depth == prefix.length) {
+            copy.handler = handler;
+        } else {
+            int index = prefix[depth] & 0xff;
+            if (copy.children == null) {
+                copy.children = new Node[256];
+            }
+            copy.children[index] = update(copy.children[index], prefix, depth + 1, handler);
+        }
+
+        return copy.isEmpty() ? null : copy;
+    }
+
+    private volatile Node root;
+    private volatile BluetoothLeGattServer.NotificationListener fallback;
+
+    /**
+     * Registers a handler for values starting with the given bytes, replacing any handler previously registered for
+     * the same prefix
+     * @param prefix     Leading bytes identifying the stream
+     * @param handler    Handler to receive the values
+     * @return Calling object
+     */
+    public synchronized NotificationRouter register(byte[] prefix, BluetoothLeGattServer.NotificationListener handler) {
+        if (handler == null) {
+            throw new NullPointerException("Handler cannot be null, use unregister to remove a handler");
+        }
+        root = update(root, prefix.clone(), 0, handler);
+        return this;
+    }
+
+    /**
+     * Removes the handler registered for the prefix
+     * @param prefix    Prefix the handler was registered with
+     * @return Calling object
+     */
+    public synchronized NotificationRouter unregister(byte[] prefix) {
+        root = update(root, prefix, 0, null);
+        return this;
+    }
+
+    /**
+     * Sets the handler for values that do not match any registered prefix
+     * @param handler    Fallback handler, null to drop unmatched values
+     * @return Calling object
+     */
+    public NotificationRouter setFallback(BluetoothLeGattServer.NotificationListener handler) {
+        fallback = handler;
+        return this;
+    }
+
+    @Override
+    public void onChange(byte[] value) {
+        BluetoothLeGattServer.NotificationListener match = null;
+        Node node = root;
+
+        for (int i = 0; node != null; i++) {
+            if (node.handler != null) {
+                match = node.handler;
+            }
+            if (i == value.length || node.children == null) {
+                break;
+            }
+            node = node.children[value[i] & 0xff];
+        }
+
+        if (match == null) {
+            match = fallback;
+        }
+        if (match != null) {
+            match.onChange(value);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import bolts.Task;
+import bolts.TaskCompletionSource;
+
+/**
+ * Bounds how many operations one connection can have in the gatt operation queue.  Without a bound, a producer that
+ * issues operations faster than the link drains them grows the queue, and the latency of every later operation,
+ * without limit.  Once the capacity is reached, new operations are handled according to the {@link Policy}.  Enabling
+ * and disabling notifications is not counted against the capacity.
+ */
+public final class QueueLimit {
+    /**
+     * What to do with a new operation when the queue is full
+     */
+    public enum Policy {
+        /** Fail the new operation */
+        FAIL_FAST,
+        /** Hold the new operation outside of the queue until space frees up */
+        SUSPEND,
+        /** Fail the oldest operation that has not started yet to make room, e.g. for telemetry where only recent values matter */
+        DROP_OLDEST
+    }
+
+    /** Capacity of a queue without a bound */
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    private final BluetoothLeGattServer server;
+    private final ArrayDeque<BluetoothLeGattServer.GattTask> suspended = new ArrayDeque<>();
+    private final ArrayDeque<TaskCompletionSource<Void>> spaceWaiters = new ArrayDeque<>();
+    private int capacity = UNBOUNDED, depth;
+    private Policy policy = Policy.FAIL_FAST;
+    private long rejected, dropped;
+
+    QueueLimit(BluetoothLeGattServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Sets the max number of operations the connection can have queued, including the one in progress.  Operations
+     * already queued are not affected by a lower capacity
+     * @param capacity    Max number of queued operations, or {@link #UNBOUNDED}
+     * @param policy      What to do with new operations once the queue is full
+     */
+    public void setCapacity(int capacity, Policy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+
+        synchronized (this) {
+            this.capacity = capacity;
+            this.policy = policy;
+        }
+        // A larger capacity may have room for held operations and waiting producers
+        release();
+    }
+
+    /**
+     * Retrieves the max number of operations the connection can have queued
+     * @return Queue capacity
+     */
+    public synchronized int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Retrieves the policy applied when the queue is full
+     * @return Overflow policy
+     */
+    public synchronized Policy policy() {
+        return policy;
+    }
+
+    /**
+     * Retrieves how many of the connection's operations are in the queue, including the one in progress
+     * @return Queue depth
+     */
+    public synchronized int depth() {
+        return depth;
+    }
+
+    /**
+     * Retrieves how many operations are held by the {@link Policy#SUSPEND} policy waiting for space in the queue
+     * @return Number of held operations
+     */
+    public synchronized int suspendedCount() {
+        return suspended.size();
+    }
+
+    /**
+     * Retrieves how many operations were failed by the {@link Policy#FAIL_FAST} policy, or by {@link Policy#DROP_OLDEST}
+     * when every queued operation had already started
+     * @return Rejected count
+     */
+    public synchronized long rejectedCount() {
+        return rejected;
+    }
+
+    /**
+     * Retrieves how many queued operations were failed by the {@link Policy#DROP_OLDEST} policy
+     * @return Dropped count
+     */
+    public synchronized long droppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Waits for the queue to have room for another operation.  Producers can chain their next operation on the returned
+     * task to pace themselves to the link instead of relying on the overflow policy.  Waiting producers are released one
+     * per freed slot
+     * @return Task that is completed when the next operation would be admitted into the queue
+     */
+    public Task<Void> spaceAsync() {
+        synchronized (this) {
+            if (depth >= capacity || !suspended.isEmpty() || !spaceWaiters.isEmpty()) {
+                TaskCompletionSource<Void> waiter = new TaskCompletionSource<>();
+                spaceWaiters.add(waiter);
+                return waiter.getTask();
+            }
+        }
+        return Task.forResult(null);
+    }
+
+    void offer(BluetoothLeGattServer.GattTask task) {
+        task.limit = this;
+
+        BluetoothLeGattServer.GattTask victim = null;
+        boolean admit = false;
+        int full = -1;
+        synchronized (this) {
+            if (depth < capacity && suspended.isEmpty()) {
+                depth++;
+                admit = true;
+            } else if (policy == Policy.SUSPEND) {
+                suspended.add(task);
+            } else if (policy == Policy.DROP_OLDEST && (victim = findDroppable()) != null) {
+                // The new operation takes over the dropped operation's slot
+                dropped++;
+                admit = true;
+            } else if (policy == Policy.DROP_OLDEST && !suspended.isEmpty()) {
+                // Queued operations have all started, the oldest held operation gives up its place instead
+                victim = suspended.poll();
+                suspended.add(task);
+                dropped++;
+            } else {
+                rejected++;
+                full = capacity;
+            }
+        }
+
+        if (victim != null) {
+            server.runtime().pendingGattTasks.remove(victim);
+            fail(victim, new IllegalStateException("Operation was dropped to make room in the operation queue"));
+        }
+        if (admit) {
+            admit(task);
+        } else if (full != -1) {
+            fail(task, new IllegalStateException("Operation queue is full (" + full + " operations)"));
+        }
+    }
+
+    // Oldest of this connection's queued operations that has not been issued yet
+    private BluetoothLeGattServer.GattTask findDroppable() {
+        Iterator<BluetoothLeGattServer.GattTask> it = server.runtime().pendingGattTasks.iterator();
+        while (it.hasNext()) {
+            BluetoothLeGattServer.GattTask queued = it.next();
+            if (queued.limit == this && queued.drop()) {
+                return queued;
+            }
+        }
+        return null;
+    }
+
+    private void admit(BluetoothLeGattServer.GattTask task) {
+        GattRuntime runtime = server.runtime();
+        runtime.pendingGattTasks.add(task);
+        runtime.executeGattOperation(false);
+    }
+
+    private void fail(BluetoothLeGattServer.GattTask task, Exception error) {
+        server.gattTaskCompleted();
+        task.completion().setError(error);
+    }
+
+    /**
+     * Called when one of the connection's queued operations has finished
+     */
+    void completed() {
+        synchronized (this) {
+            depth--;
+        }
+        release();
+    }
+
+    // Fills free slots with held operations first, then with waiting producers
+    private void release() {
+        while (true) {
+            BluetoothLeGattServer.GattTask next = null;
+            TaskCompletionSource<Void> waiter = null;
+            synchronized (this) {
+                if (depth >= capacity) {
+                    return;
+                }
+                if (!suspended.isEmpty()) {
+                    next = suspended.poll();
+                    depth++;
+                } else if (!spaceWaiters.isEmpty()) {
+                    waiter = spaceWaiters.poll();
+                } else {
+                    return;
+                }
+            }
+
+            if (next != null) {
+                admit(next);
+            } else {
+                waiter.setResult(null);
+                // Only one waiter per free slot, the released producer has yet to queue its operation
+                return;
+            }
+        }
+    }
+
+    /**
+     * Fails held operations and waiting producers when the connection is abandoned
+     */
+    void abandon(Exception error) {
+        ArrayList<BluetoothLeGattServer.GattTask> held;
+        ArrayList<TaskCompletionSource<Void>> waiters;
+        synchronized (this) {
+            held = new ArrayList<>(suspended);
+            waiters = new ArrayList<>(spaceWaiters);
+            suspended.clear();
+            spaceWaiters.clear();
+        }
+
+        for (BluetoothLeGattServer.GattTask it : held) {
+            fail(it, error);
+        }
+        for (TaskCompletionSource<Void> it : waiters) {
+            it.trySetError(error);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import android.util.Pair;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Optional cache for the characteristic reads of one connection.  While enabled, a read of a characteristic that
+ * already has a read in flight waits for that read instead of queueing another one, and values are kept for the
+ * characteristic's time to live so repeated reads complete without a round trip.  Writes to a characteristic drop its
+ * cached value.  Bulk reads use and refresh cached values but are not coalesced; batches and streaming reads always
+ * read from the device.
+ */
+public final class ReadCache {
+    /** Time to live for values that never change, e.g. the strings of the Device Information service */
+    public static final long FOREVER = Long.MAX_VALUE;
+
+    private static final class Entry {
+        byte[] value;
+        long expires;
+        // Non-null while a read is in flight
+        ArrayList<BluetoothLeGattServer.GattCompletion> waiting;
+    }
+
+    private final HashMap<Pair<UUID, UUID>, Entry> entries = new HashMap<>();
+    private final HashMap<Pair<UUID, UUID>, Long> ttls = new HashMap<>();
+    private long defaultTtl;
+    private boolean enabled;
+    private long hits, coalesced, misses;
+
+    ReadCache() { }
+
+    /**
+     * Turns the cache on or off.  Turning it off drops all cached values
+     * @param enabled    True to cache and coalesce reads
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Checks if the cache is on
+     * @return True if reads are cached and coalesced
+     */
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets how long a characteristic's value is reused
+     * @param gattService    Service the characteristic belongs to
+     * @param gattChar       Characteristic to configure
+     * @param ttl            Time to live in milliseconds, {@link #FOREVER} to keep the value for the whole connection,
+     *                       or 0 to only coalesce concurrent reads
+     */
+    public synchronized void setTtl(UUID gattService, UUID gattChar, long ttl) {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("Time to live cannot be negative (" + ttl + ")");
+        }
+        ttls.put(new Pair<>(gattService, gattChar), ttl);
+    }
+
+    /**
+     * Sets the time to live used for characteristics without their own, 0 by default
+     * @param ttl    Time to live in milliseconds
+     */
+    public synchronized void setDefaultTtl(long ttl) {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("Time to live cannot be negative (" + ttl + ")");
+        }
+        defaultTtl = ttl;
+    }
+
+    /**
+     * Drops a characteristic's cached value so the next read goes to the device
+     * @param gattService    Service the characteristic belongs to
+     * @param gattChar       Characteristic to invalidate
+     */
+    public synchronized void invalidate(UUID gattService, UUID gattChar) {
+        if (!entries.isEmpty()) {
+            entries.remove(new Pair<>(gattService, gattChar));
+        }
+    }
+
+    /**
+     * Drops all cached values
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Retrieves how many reads were answered from a cached value
+     * @return Number of cache hits
+     */
+    public synchronized long hitCount() {
+        return hits;
+    }
+
+    /**
+     * Retrieves how many reads waited on a read already in flight
+     * @return Number of coalesced reads
+     */
+    public synchronized long coalescedCount() {
+        return coalesced;
+    }
+
+    /**
+     * Retrieves how many reads were sent to the device
+     * @return Number of cache misses
+     */
+    public synchronized long missCount() {
+        return misses;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    /**
+     * Retrieves a characteristic's cached value
+     * @return Copy of the value, null if nothing valid is cached
+     */
+    synchronized byte[] lookup(UUID gattService, UUID gattChar) {
+        if (!enabled) {
+            return null;
+        }
+
+        Entry entry = entries.get(new Pair<>(gattService, gattChar));
+        if (entry != null && entry.value != null && now() < entry.expires) {
+            hits++;
+            return entry.value.clone();
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Caches a value read outside of {@link #begin}, unless a read of the characteristic is in flight
+     */
+    synchronized void store(UUID gattService, UUID gattChar, byte[] value) {
+        if (!enabled) {
+            return;
+        }
+
+        Pair<UUID, UUID> key = new Pair<>(gattService, gattChar);
+        Long ttl = ttls.get(key);
+        long time = ttl == null ? defaultTtl : ttl;
+        Entry entry = entries.get(key);
+        if (time > 0 && (entry == null || entry.waiting == null)) {
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(key, entry);
+            }
+            entry.value = value.clone();
+            entry.expires = time == FOREVER ? Long.MAX_VALUE : now() + time;
+        }
+    }
+
+    /**
+     * Looks up a read in the cache
+     * @return Completion to pass to the queued read, or null if the read was answered or joined an in-flight read
+     */
+    BluetoothLeGattServer.GattCompletion begin(UUID gattService, UUID gattChar, BluetoothLeGattServer.GattCompletion completion) {
+        final Pair<UUID, UUID> key = new Pair<>(gattService, gattChar);
+        final Entry inFlight;
+        byte[] cached = null;
+
+        synchronized (this) {
+            if (!enabled) {
+                return completion;
+            }
+
+            Entry entry = entries.get(key);
+            if (entry != null && entry.waiting != null) {
+                entry.waiting.add(completion);
+                coalesced++;
+                return null;
+            }
+            if (entry != null && entry.value != null && now() < entry.expires) {
+                hits++;
+                cached = entry.value;
+            }
+
+            if (cached == null) {
+                misses++;
+                inFlight = new Entry();
+                inFlight.waiting = new ArrayList<>();
+                inFlight.waiting.add(completion);
+                entries.put(key, inFlight);
+            } else {
+                inFlight = null;
+            }
+        }
+
+        if (cached != null) {
+            completion.setResult(cached.clone());
+            return null;
+        }
+
+        return new BluetoothLeGattServer.GattCompletion() {
+            @Override
+            public void setResult(byte[] value) {
+                ArrayList<BluetoothLeGattServer.GattCompletion> waiting;
+                synchronized (ReadCache.this) {
+                    waiting = inFlight.waiting;
+                    inFlight.waiting = null;
+
+                    // Entry is gone if a write invalidated it while the read was in flight
+                    if (entries.get(key) == inFlight) {
+                        Long ttl = ttls.get(key);
+                        long time = ttl == null ? defaultTtl : ttl;
+                        if (time > 0) {
+                            inFlight.value = value.clone();
+                            inFlight.expires = time == FOREVER ? Long.MAX_VALUE : now() + time;
+                        } else {
+                            entries.remove(key);
+                        }
+                    }
+                }
+
+                for (BluetoothLeGattServer.GattCompletion it : waiting) {
+                    it.setResult(value.clone());
+                }
+            }
+
+            @Override
+            public void setError(Exception error) {
+                ArrayList<BluetoothLeGattServer.GattCompletion> waiting;
+                synchronized (ReadCache.this) {
+                    waiting = inFlight.waiting;
+                    inFlight.waiting = null;
+                    entries.remove(key, inFlight);
+                }
+
+                for (BluetoothLeGattServer.GattCompletion it : waiting) {
+                    it.setError(error);
+                }
+            }
+        };
+    }
+}
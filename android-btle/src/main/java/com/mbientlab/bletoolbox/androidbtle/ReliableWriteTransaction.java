@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+import bolts.Task;
+import bolts.TaskCompletionSource;
+
+/**
+ * Group of prepared writes that the remote device commits atomically.  Writes are staged on the device with a reliable
+ * write and only applied once all of them have been acknowledged and echoed back correctly; if any write fails, the
+ * transaction is aborted and the device discards everything staged so far.  The same happens if the connection drops
+ * before the transaction is executed.  Create instances with {@link BluetoothLeGattServer#beginReliableWrite()}.
+ */
+public final class ReliableWriteTransaction {
+    final ArrayList<UUID[]> targets = new ArrayList<>();
+    final ArrayList<byte[]> values = new ArrayList<>();
+    private final BluetoothLeGattServer server;
+    private boolean committed;
+    volatile boolean aborted;
+
+    ReliableWriteTransaction(BluetoothLeGattServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Adds a write to the transaction
+     * @param gattService    Service the characteristic belongs to
+     * @param gattChar       Characteristic to write
+     * @param value          Value to write
+     * @return Calling object
+     */
+    public synchronized ReliableWriteTransaction write(UUID gattService, UUID gattChar, byte[] value) {
+        if (committed) {
+            throw new IllegalStateException("Cannot add writes to a committed transaction");
+        }
+
+        targets.add(new UUID[] {gattService, gattChar});
+        values.add(value);
+        return this;
+    }
+
+    /**
+     * Queues the transaction.  All of the writes are executed back to back as one unit in the operation queue
+     * @return Task that is completed when the device has committed the writes
+     */
+    public synchronized Task<Void> commitAsync() {
+        if (committed) {
+            return Task.forError(new IllegalStateException("Transaction has already been committed"));
+        }
+        if (aborted) {
+            return Task.forError(new IllegalStateException("Transaction has been aborted"));
+        }
+        committed = true;
+
+        final TaskCompletionSource<Void> taskSource = new TaskCompletionSource<>();
+        server.queueReliableWrite(this, BluetoothLeGattServer.voidCompletion(taskSource));
+        return taskSource.getTask();
+    }
+
+    /**
+     * Aborts the transaction.  If the transaction is in progress, the staged writes are discarded at the next step and
+     * the commit task fails
+     */
+    public void abort() {
+        aborted = true;
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import bolts.Task;
+
+/**
+ * Periodically samples the RSSI of every connection in a runtime.  Polls are only issued when the runtime's operation
+ * queue is idle so they never delay application operations, and only one poll is in flight at a time.  Between polls
+ * the sampler sleeps until the next device is due, and checks for new connections once per min interval when there
+ * is nothing to sample.  Samples are kept per device in a fixed size {@link RssiSeries} and passed to the listener as
+ * ints, without boxing or packing them into byte arrays.  The interval is either fixed, or adapts per device: it
+ * doubles while the RSSI is stable and resets to the minimum when it moves.
+ */
+public final class RssiSampler {
+    /**
+     * Receives each RSSI sample.  Called from a Bluetooth binder thread
+     */
+    public interface SampleListener {
+        /**
+         * Called when a device's RSSI has been sampled
+         * @param device       Device that was sampled
+         * @param rssi         RSSI, in dBm
+         * @param timestamp    When the sample was taken, in SystemClock.elapsedRealtime() time
+         */
+        void onSample(BluetoothDevice device, int rssi, long timestamp);
+    }
+
+    /**
+     * Fixed size history of a device's RSSI samples, the oldest samples are overwritten once it is full
+     */
+    public static final class RssiSeries {
+        private final long[] timestamps;
+        private final int[] values;
+        private int head, count;
+
+        RssiSeries(int capacity) {
+            timestamps = new long[capacity];
+            values = new int[capacity];
+        }
+
+        synchronized void add(long timestamp, int rssi) {
+            timestamps[head] = timestamp;
+            values[head] = rssi;
+            head = (head + 1) % values.length;
+            count = Math.min(count + 1, values.length);
+        }
+
+        private int slot(int i) {
+            if (i < 0 || i >= count) {
+                throw new IndexOutOfBoundsException("Sample " + i + " does not exist (" + count + " samples)");
+            }
+            return (head - count + i + values.length) % values.length;
+        }
+
+        /**
+         * Retrieves how many samples the series holds
+         * @return Number of samples
+         */
+        public synchronized int size() {
+            return count;
+        }
+
+        /**
+         * Retrieves the max number of samples the series holds
+         * @return Series capacity
+         */
+        public int capacity() {
+            return values.length;
+        }
+
+        /**
+         * Retrieves a sample's RSSI value
+         * @param i    Sample index, 0 being the oldest sample
+         * @return RSSI, in dBm
+         */
+        public synchronized int rssi(int i) {
+            return values[slot(i)];
+        }
+
+        /**
+         * Retrieves when a sample was taken
+         * @param i    Sample index, 0 being the oldest sample
+         * @return Timestamp in SystemClock.elapsedRealtime() time
+         */
+        public synchronized long timestamp(int i) {
+            return timestamps[slot(i)];
+        }
+
+        /**
+         * Retrieves the most recent RSSI value
+         * @return RSSI, in dBm
+         */
+        public synchronized int latest() {
+            return values[slot(count - 1)];
+        }
+
+        /**
+         * Computes the average of the held samples
+         * @return Mean RSSI in dBm, NaN if the series is empty
+         */
+        public synchronized float mean() {
+            if (count == 0) {
+                return Float.NaN;
+            }
+
+            long sum = 0;
+            for (int i = 0; i < count; i++) {
+                sum += values[i];
+            }
+            return sum / (float) count;
+        }
+
+        /**
+         * Copies the held samples, oldest first, into caller owned arrays
+         * @param timestamps    Array to write the timestamps to, can be null
+         * @param rssis         Array to write the RSSI values to
+         * @return Number of samples copied, limited by the length of the arrays
+         */
+        public synchronized int copy(long[] timestamps, int[] rssis) {
+            int n = Math.min(count, rssis.length);
+            if (timestamps != null) {
+                n = Math.min(n, timestamps.length);
+            }
+
+            for (int i = 0; i < n; i++) {
+                int j = slot(count - n + i);
+                if (timestamps != null) {
+                    timestamps[i] = this.timestamps[j];
+                }
+                rssis[i] = values[j];
+            }
+            return n;
+        }
+    }
+
+    /** Default time between samples of a device, in milliseconds */
+    public static final long DEFAULT_INTERVAL = 1000L;
+    // How long to wait before checking again when a device is due but the queue is busy
+    private static final long BUSY_RETRY = 50L;
+
+    private final class Channel extends BluetoothLeGattServer.RssiCompletion {
+        final BluetoothLeGattServer server;
+        final BluetoothDevice device;
+        final RssiSeries series;
+        long interval, nextDue, issued;
+        boolean pending, hasLast;
+        int last;
+
+        Channel(BluetoothLeGattServer server, BluetoothDevice device, RssiSeries series) {
+            this.server = server;
+            this.device = device;
+            this.series = series;
+        }
+
+        @Override
+        void setRssi(int rssi) {
+            long now = SystemClock.elapsedRealtime();
+            SampleListener current;
+            synchronized (RssiSampler.this) {
+                if (maxInterval != minInterval) {
+                    interval = hasLast && Math.abs(rssi - last) <= stableThreshold ? Math.min(interval * 2, maxInterval) : minInterval;
+                }
+                nextDue = issued + interval;
+                last = rssi;
+                hasLast = true;
+                pending = false;
+                current = listener;
+            }
+
+            series.add(now, rssi);
+            if (current != null) {
+                current.onSample(device, rssi, now);
+            }
+            sampleNext();
+        }
+
+        @Override
+        public void setError(Exception error) {
+            synchronized (RssiSampler.this) {
+                pending = false;
+            }
+            sampleNext();
+        }
+    }
+
+    private final GattRuntime runtime;
+    private final int historySize;
+    private final HashMap<BluetoothDevice, Channel> channels = new HashMap<>();
+    private final HashMap<BluetoothDevice, RssiSeries> history = new HashMap<>();
+    private long minInterval = DEFAULT_INTERVAL, maxInterval = DEFAULT_INTERVAL;
+    private int stableThreshold;
+    private SampleListener listener;
+    private boolean running;
+    private ScheduledFuture<?> wakeup;
+
+    /**
+     * Creates a sampler for the connections of a runtime
+     * @param runtime        Runtime whose connections are sampled
+     * @param historySize    Number of samples to keep per device
+     */
+    public RssiSampler(GattRuntime runtime, int historySize) {
+        if (historySize < 1) {
+            throw new IllegalArgumentException("History size must be at least 1");
+        }
+        this.runtime = runtime;
+        this.historySize = historySize;
+    }
+
+    /**
+     * Samples every device at a fixed interval
+     * @param interval    Time between samples of a device, in milliseconds
+     * @return Calling object
+     */
+    public synchronized RssiSampler setInterval(long interval) {
+        return setAdaptiveInterval(interval, interval, 0);
+    }
+
+    /**
+     * Samples each device at an interval that doubles, up to the max, while its RSSI stays within the threshold of the
+     * previous sample, and drops back to the min when it does not
+     * @param minInterval        Shortest time between samples of a device, in milliseconds
+     * @param maxInterval        Longest time between samples of a device, in milliseconds
+     * @param stableThreshold    Largest RSSI change, in dBm, that counts as stable
+     * @return Calling object
+     */
+    public synchronized RssiSampler setAdaptiveInterval(long minInterval, long maxInterval, int stableThreshold) {
+        if (minInterval <= 0 || maxInterval < minInterval) {
+            throw new IllegalArgumentException("Intervals must be positive with the max no shorter than the min");
+        }
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.stableThreshold = stableThreshold;
+        for (Channel it : channels.values()) {
+            it.interval = minInterval;
+        }
+        return this;
+    }
+
+    /**
+     * Sets the listener to receive samples
+     * @param listener    Sample listener, null to remove the current one
+     * @return Calling object
+     */
+    public synchronized RssiSampler setSampleListener(SampleListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Starts sampling, does nothing if already started
+     */
+    public synchronized void start() {
+        if (!running) {
+            running = true;
+            wakeAfter(0);
+        }
+    }
+
+    /**
+     * Stops sampling.  A poll already in flight still adds its sample to the history
+     */
+    public synchronized void stop() {
+        running = false;
+        if (wakeup != null) {
+            wakeup.cancel(false);
+            wakeup = null;
+        }
+    }
+
+    /**
+     * Checks if the sampler is running
+     * @return True if {@link #start()} was called without a following {@link #stop()}
+     */
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Retrieves the sample history of a device.  Histories are kept across reconnects until {@link #clear()} is called
+     * @param device    Device to look up
+     * @return Device's samples, null if the device has never been sampled
+     */
+    public synchronized RssiSeries series(BluetoothDevice device) {
+        return history.get(device);
+    }
+
+    /**
+     * Removes the histories of devices that are no longer connected
+     */
+    public synchronized void clear() {
+        history.keySet().retainAll(channels.keySet());
+    }
+
+    private static boolean isConnected(BluetoothLeGattServer server) {
+        Task<BluetoothLeGattServer> connect = server.connectTask();
+        return server.isValid() && connect.isCompleted() && !connect.isFaulted() && !connect.isCancelled();
+    }
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (RssiSampler.this) {
+                Iterator<Channel> it = channels.values().iterator();
+                while (it.hasNext()) {
+                    Channel channel = it.next();
+                    if (runtime.activeObjects.get(channel.device) != channel.server || !channel.server.isValid()) {
+                        it.remove();
+                    }
+                }
+
+                for (Map.Entry<BluetoothDevice, BluetoothLeGattServer> entry : runtime.activeObjects.entrySet()) {
+                    BluetoothDevice device = entry.getKey();
+                    BluetoothLeGattServer server = entry.getValue();
+                    if (!channels.containsKey(device) && isConnected(server)) {
+                        RssiSeries series = history.get(device);
+                        if (series == null) {
+                            series = new RssiSeries(historySize);
+                            history.put(device, series);
+                        }
+
+                        Channel channel = new Channel(server, device, series);
+                        channel.interval = minInterval;
+                        channels.put(device, channel);
+                    }
+                }
+            }
+
+            sampleNext();
+        }
+    };
+
+    // Replaces the scheduled wakeup, caller must hold the lock
+    private void wakeAfter(long delay) {
+        if (wakeup != null) {
+            wakeup.cancel(false);
+            wakeup = null;
+        }
+        if (runtime.isShutdown()) {
+            running = false;
+            return;
+        }
+        wakeup = runtime.scheduler().schedule(tick, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Polls the most overdue device if the queue is idle, otherwise sleeps until there is something to do
+    private void sampleNext() {
+        Channel next = null;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+
+            for (Channel it : channels.values()) {
+                if (it.pending) {
+                    // The poll's completion picks the next device
+                    return;
+                }
+                if (next == null || it.nextDue < next.nextDue) {
+                    next = it;
+                }
+            }
+
+            long now = SystemClock.elapsedRealtime();
+            if (next == null) {
+                // Nothing connected, check for new connections once per interval
+                wakeAfter(minInterval);
+                return;
+            }
+            if (next.nextDue > now) {
+                wakeAfter(next.nextDue - now);
+                return;
+            }
+            if (!runtime.pendingGattTasks.isEmpty()) {
+                wakeAfter(BUSY_RETRY);
+                return;
+            }
+
+            next.pending = true;
+            next.issued = now;
+            next.nextDue = now + next.interval;
+        }
+
+        next.server.queueReadRssi(next);
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.os.ParcelUuid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import bolts.CancellationToken;
+import bolts.CancellationTokenSource;
+import bolts.Continuation;
+import bolts.Task;
+import bolts.TaskCompletionSource;
+
+/**
+ * Combines discovery and connection into one step.  The scan runs in low latency mode and is stopped from the scan
+ * callback of the first matching advertisement, then {@link BluetoothLeGattServer#connect} is called immediately on
+ * the same thread so the radio is not shared between scanning and connection setup.  Connections are made through the
+ * default {@link GattRuntime} unless another runtime is passed in.
+ */
+public final class ScanConnector {
+    /**
+     * Decides if an advertisement belongs to the device to connect to
+     */
+    public interface AdvertisementMatcher {
+        /**
+         * Checks an advertisement.  Called from a Bluetooth binder thread so implementations should return quickly
+         * @param device        Device that sent the advertisement
+         * @param rssi          Received signal strength, in dBm
+         * @param scanRecord    Raw advertisement bytes, null if unavailable
+         * @return True to stop scanning and connect to the device
+         */
+        boolean matches(BluetoothDevice device, int rssi, byte[] scanRecord);
+    }
+
+    private ScanConnector() {
+    }
+
+    private static BluetoothAdapter getAdapter(Context ctx) {
+        return ((BluetoothManager) ctx.getSystemService(Context.BLUETOOTH_SERVICE)).getAdapter();
+    }
+
+    /**
+     * Connects to a device by MAC address without scanning, using the default runtime
+     * @param ctx           Context to connect with
+     * @param macAddress    MAC address of the device, e.g. "AA:BB:CC:DD:EE:FF"
+     * @param timeout       How long to wait for the connection, in milliseconds
+     * @return Task holding the connected server
+     * @see #connect(GattRuntime, Context, String, long)
+     */
+    public static Task<BluetoothLeGattServer> connect(Context ctx, String macAddress, long timeout) {
+        return connect(GattRuntime.getDefault(), ctx, macAddress, timeout);
+    }
+
+    /**
+     * Connects to a device by MAC address without scanning.  Use this when the address is known and the device is
+     * expected to be in range, e.g. an address entered by the user
+     * @param runtime       Runtime to connect through
+     * @param ctx           Context to connect with
+     * @param macAddress    MAC address of the device, e.g. "AA:BB:CC:DD:EE:FF"
+     * @param timeout       How long to wait for the connection, in milliseconds
+     * @return Task holding the connected server
+     */
+    public static Task<BluetoothLeGattServer> connect(GattRuntime runtime, Context ctx, String macAddress, long timeout) {
+        if (!BluetoothAdapter.checkBluetoothAddress(macAddress)) {
+            return Task.forError(new IllegalArgumentException("Invalid MAC address: " + macAddress));
+        }
+        return runtime.connect(getAdapter(ctx).getRemoteDevice(macAddress), ctx, false, timeout);
+    }
+
+    /**
+     * Scans for a device by MAC address and connects to it through the default runtime
+     * @param ctx            Context to scan and connect with
+     * @param macAddress     MAC address of the device, e.g. "AA:BB:CC:DD:EE:FF"
+     * @param scanTimeout    How long to scan before giving up, in milliseconds
+     * @param connTimeout    How long to wait for the connection once the device is found, in milliseconds
+     * @param ct             Token to stop the scan with, can be null
+     * @return Task holding the connected server, fails with a TimeoutException if the device was not found
+     * @see #scanAndConnect(GattRuntime, Context, String, long, long, CancellationToken)
+     */
+    public static Task<BluetoothLeGattServer> scanAndConnect(Context ctx, String macAddress, long scanTimeout, long connTimeout,
+                                                            CancellationToken ct) {
+        return scanAndConnect(GattRuntime.getDefault(), ctx, macAddress, scanTimeout, connTimeout, ct);
+    }
+
+    /**
+     * Scans for a device by MAC address and connects to it as soon as it advertises.  Filtering is done by the
+     * controller where supported
+     * @param runtime        Runtime to connect through
+     * @param ctx            Context to scan and connect with
+     * @param macAddress     MAC address of the device, e.g. "AA:BB:CC:DD:EE:FF"
+     * @param scanTimeout    How long to scan before giving up, in milliseconds
+     * @param connTimeout    How long to wait for the connection once the device is found, in milliseconds
+     * @param ct             Token to stop the scan with, can be null
+     * @return Task holding the connected server, fails with a TimeoutException if the device was not found
+     */
+    public static Task<BluetoothLeGattServer> scanAndConnect(GattRuntime runtime, Context ctx, String macAddress, long scanTimeout,
+                                                            long connTimeout, CancellationToken ct) {
+        if (!BluetoothAdapter.checkBluetoothAddress(macAddress)) {
+            return Task.forError(new IllegalArgumentException("Invalid MAC address: " + macAddress));
+        }
+
+        List<ScanFilter> filters = new ArrayList<>();
+        filters.add(new ScanFilter.Builder().setDeviceAddress(macAddress).build());
+        return scanAndConnect(runtime, ctx, filters, null, scanTimeout, connTimeout, ct);
+    }
+
+    /**
+     * Scans for devices advertising any of the given services and connects to the first one the matcher accepts through
+     * the default runtime
+     * @param ctx             Context to scan and connect with
+     * @param serviceUuids    Services to filter on in the controller, null or empty to check every advertisement
+     * @param matcher         Selects the device to connect to, null to connect to the first device passing the filter
+     * @param scanTimeout     How long to scan before giving up, in milliseconds
+     * @param connTimeout     How long to wait for the connection once a device is found, in milliseconds
+     * @param ct              Token to stop the scan with, can be null
+     * @return Task holding the connected server, fails with a TimeoutException if no device matched
+     * @see #scanAndConnect(GattRuntime, Context, UUID[], AdvertisementMatcher, long, long, CancellationToken)
+     */
+    public static Task<BluetoothLeGattServer> scanAndConnect(Context ctx, UUID[] serviceUuids, AdvertisementMatcher matcher,
+                                                            long scanTimeout, long connTimeout, CancellationToken ct) {
+        return scanAndConnect(GattRuntime.getDefault(), ctx, serviceUuids, matcher, scanTimeout, connTimeout, ct);
+    }
+
+    /**
+     * Scans for devices advertising any of the given services and connects to the first one the matcher accepts
+     * @param runtime         Runtime to connect through
+     * @param ctx             Context to scan and connect with
+     * @param serviceUuids    Services to filter on in the controller, null or empty to check every advertisement
+     * @param matcher         Selects the device to connect to, null to connect to the first device passing the filter
+     * @param scanTimeout     How long to scan before giving up, in milliseconds
+     * @param connTimeout     How long to wait for the connection once a device is found, in milliseconds
+     * @param ct              Token to stop the scan with, can be null
+     * @return Task holding the connected server, fails with a TimeoutException if no device matched
+     */
+    public static Task<BluetoothLeGattServer> scanAndConnect(GattRuntime runtime, Context ctx, UUID[] serviceUuids, AdvertisementMatcher matcher,
+                                                            long scanTimeout, long connTimeout, CancellationToken ct) {
+        List<ScanFilter> filters = null;
+        if (serviceUuids != null && serviceUuids.length != 0) {
+            filters = new ArrayList<>();
+            for (UUID uuid : serviceUuids) {
+                filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(uuid)).build());
+            }
+        }
+        return scanAndConnect(runtime, ctx, filters, matcher, scanTimeout, connTimeout, ct);
+    }
+
+    private static Task<BluetoothLeGattServer> scanAndConnect(final GattRuntime runtime, final Context ctx, List<ScanFilter> filters,
+                                                             final AdvertisementMatcher matcher, final long scanTimeout, final long connTimeout,
+                                                             CancellationToken ct) {
+        if (ct != null && ct.isCancellationRequested()) {
+            return Task.cancelled();
+        }
+
+        final BluetoothLeScanner scanner = getAdapter(ctx).getBluetoothLeScanner();
+        if (scanner == null) {
+            return Task.forError(new IllegalStateException("Bluetooth is not enabled"));
+        }
+
+        final TaskCompletionSource<BluetoothLeGattServer> taskSource = new TaskCompletionSource<>();
+        final CancellationTokenSource timeoutCts = new CancellationTokenSource();
+        // Set once by whichever of match, timeout, cancel, or scan failure happens first
+        final AtomicBoolean finished = new AtomicBoolean();
+
+        final ScanCallback callback = new ScanCallback() {
+            @Override
+            public void onScanResult(int callbackType, ScanResult result) {
+                if (finished.get()) {
+                    return;
+                }
+
+                ScanRecord record = result.getScanRecord();
+                if (matcher != null && !matcher.matches(result.getDevice(), result.getRssi(), record == null ? null : record.getBytes())) {
+                    return;
+                }
+
+                if (finished.compareAndSet(false, true)) {
+                    scanner.stopScan(this);
+                    timeoutCts.cancel();
+
+                    runtime.connect(result.getDevice(), ctx, false, connTimeout).continueWith(new Continuation<BluetoothLeGattServer, Void>() {
+                        @Override
+                        public Void then(Task<BluetoothLeGattServer> task) throws Exception {
+                            if (task.isFaulted()) {
+                                taskSource.setError(task.getError());
+                            } else if (task.isCancelled()) {
+                                taskSource.setCancelled();
+                            } else {
+                                taskSource.setResult(task.getResult());
+                            }
+                            return null;
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public void onBatchScanResults(List<ScanResult> results) {
+                for (ScanResult it : results) {
+                    onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, it);
+                }
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+                if (finished.compareAndSet(false, true)) {
+                    timeoutCts.cancel();
+                    taskSource.setError(new IllegalStateException("Failed to start the scan, error code = " + errorCode));
+                }
+            }
+        };
+
+        ScanSettings settings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+                .build();
+        scanner.startScan(filters, settings, callback);
+
+        // Registered after the scan starts so a timeout or cancel cannot run before there is a scan to stop
+        if (ct != null) {
+            ct.register(new Runnable() {
+                @Override
+                public void run() {
+                    if (finished.compareAndSet(false, true)) {
+                        scanner.stopScan(callback);
+                        timeoutCts.cancel();
+                        taskSource.setCancelled();
+                    }
+                }
+            });
+        }
+
+        Task.delay(scanTimeout, timeoutCts.getToken()).continueWith(new Continuation<Void, Void>() {
+            @Override
+            public Void then(Task<Void> task) throws Exception {
+                if (!task.isCancelled() && finished.compareAndSet(false, true)) {
+                    scanner.stopScan(callback);
+                    taskSource.setError(new TimeoutException("Did not find a matching device within " + scanTimeout + "ms"));
+                }
+                return null;
+            }
+        });
+
+        return taskSource.getTask();
+    }
+}
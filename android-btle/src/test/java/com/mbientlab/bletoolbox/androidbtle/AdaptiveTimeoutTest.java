@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveTimeoutTest {
+    @Test
+    public void usesInitialTimeoutBeforeAnyMeasurement() {
+        assertEquals(AdaptiveTimeout.DEFAULT_INITIAL, new AdaptiveTimeout().current());
+    }
+
+    @Test
+    public void firstMeasurementSetsSmoothedLatencyAndDeviation() {
+        AdaptiveTimeout timeout = new AdaptiveTimeout();
+        timeout.onLatency(200);
+
+        assertEquals(200.0, timeout.smoothedLatency(), 0.001);
+        // srtt + 4 * (srtt / 2)
+        assertEquals(600L, timeout.current());
+    }
+
+    @Test
+    public void steadyLatencyConvergesTowardsSmoothedValue() {
+        AdaptiveTimeout timeout = new AdaptiveTimeout();
+        for (int i = 0; i < 100; i++) {
+            timeout.onLatency(400);
+        }
+
+        assertEquals(400.0, timeout.smoothedLatency(), 0.001);
+        assertEquals(400.0, timeout.current(), 1.0);
+    }
+
+    @Test
+    public void neverDropsBelowFloor() {
+        AdaptiveTimeout timeout = new AdaptiveTimeout();
+        for (int i = 0; i < 100; i++) {
+            timeout.onLatency(5);
+        }
+
+        assertEquals(AdaptiveTimeout.DEFAULT_FLOOR, timeout.current());
+    }
+
+    @Test
+    public void timeoutsDoubleUpToCeiling() {
+        AdaptiveTimeout timeout = new AdaptiveTimeout();
+        timeout.setBounds(100, 1000);
+        timeout.onLatency(100);
+
+        assertEquals(300L, timeout.current());
+        timeout.onTimeout();
+        assertEquals(600L, timeout.current());
+        timeout.onTimeout();
+        assertEquals(1000L, timeout.current());
+        timeout.onTimeout();
+        assertEquals(1000L, timeout.current());
+    }
+
+    @Test
+    public void overrideBypassesEstimate() {
+        AdaptiveTimeout timeout = new AdaptiveTimeout();
+        timeout.onLatency(200);
+        timeout.setOverride(50);
+        assertEquals(50L, timeout.current());
+
+        timeout.setOverride(0);
+        assertEquals(600L, timeout.current());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsFloorAboveCeiling() {
+        new AdaptiveTimeout().setBounds(500, 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeOverride() {
+        new AdaptiveTimeout().setOverride(-1);
+    }
+}
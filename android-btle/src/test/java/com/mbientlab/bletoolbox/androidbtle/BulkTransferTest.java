@@ -0,0 +1,164 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import bolts.Task;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class BulkTransferTest {
+    private static final UUID SERVICE = UUID.fromString("326a9000-85cb-9195-d9dd-464cfbbae75a"),
+            DATA = UUID.fromString("326a9001-85cb-9195-d9dd-464cfbbae75a");
+    private static final int CHUNK_SIZE = 16, WINDOW = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<BluetoothLeGattServer.GattCompletion> writes = new ArrayList<>();
+    private byte[] payload;
+    private BluetoothLeGattServer server;
+    private BulkTransfer transfer;
+
+    @Before
+    public void setup() throws Exception {
+        payload = new byte[CHUNK_SIZE * 16];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+
+        server = mock(BluetoothLeGattServer.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                writes.add(invocation.<BluetoothLeGattServer.GattCompletion>getArgument(4));
+                return null;
+            }
+        }).when(server).queueWrite(eq(SERVICE), eq(DATA), any(BluetoothLeGattServer.WriteType.class), any(byte[].class),
+                any(BluetoothLeGattServer.GattCompletion.class));
+
+        transfer = new BulkTransfer(payload, SERVICE, DATA, new File(folder.getRoot(), "payload.ckpt"))
+                .setChunkSize(CHUNK_SIZE)
+                .setWindow(WINDOW)
+                .setCheckpointInterval(CHUNK_SIZE * 4);
+    }
+
+    // Acknowledges writes in queue order until the transfer stops issuing new ones
+    private void acknowledgeFrom(int index) {
+        while (index < writes.size()) {
+            writes.get(index++).setResult(null);
+        }
+    }
+
+    @Test
+    public void completesInOrder() {
+        Task<BulkTransfer.Result> task = transfer.startAsync(server);
+        assertEquals(WINDOW, writes.size());
+
+        acknowledgeFrom(0);
+        assertTrue(task.isCompleted());
+        assertFalse(task.isFaulted());
+        assertEquals(payload.length / CHUNK_SIZE, writes.size());
+        assertEquals(0, task.getResult().resumedFrom());
+    }
+
+    @Test
+    public void resumesFromCheckpoint() {
+        Task<BulkTransfer.Result> first = transfer.startAsync(server);
+        for (int i = 0; i < WINDOW; i++) {
+            writes.get(i).setResult(null);
+        }
+        writes.get(WINDOW).setError(new IllegalStateException("Link dropped"));
+        assertTrue(first.isFaulted());
+        assertEquals(CHUNK_SIZE * WINDOW, transfer.checkpointOffset());
+
+        int resumedAt = writes.size();
+        Task<BulkTransfer.Result> second = transfer.startAsync(server);
+        acknowledgeFrom(resumedAt);
+        assertFalse(second.isFaulted());
+        assertEquals(CHUNK_SIZE * WINDOW, second.getResult().resumedFrom());
+    }
+
+    @Test
+    public void rejectsConcurrentStart() {
+        transfer.startAsync(server);
+        assertTrue(transfer.startAsync(server).isFaulted());
+    }
+
+    @Test
+    public void ignoresCompletionsFromAbandonedAttempt() {
+        Task<BulkTransfer.Result> first = transfer.startAsync(server);
+        List<BluetoothLeGattServer.GattCompletion> stale = new ArrayList<>(writes.subList(1, WINDOW));
+        writes.get(0).setError(new IllegalStateException("Link dropped"));
+        assertTrue(first.isFaulted());
+
+        writes.clear();
+        Task<BulkTransfer.Result> second = transfer.startAsync(server);
+        assertEquals(WINDOW, writes.size());
+
+        // Old writes finishing late must not commit bytes, fill the window, or fail the new attempt
+        for (BluetoothLeGattServer.GattCompletion it : stale) {
+            it.setResult(null);
+        }
+        stale.get(0).setError(new IllegalStateException("Late failure"));
+        assertEquals(WINDOW, writes.size());
+        assertFalse(second.isCompleted());
+        assertEquals(0, transfer.checkpointOffset());
+
+        acknowledgeFrom(0);
+        assertFalse(second.isFaulted());
+        assertEquals(payload.length / CHUNK_SIZE, writes.size());
+        assertEquals(payload.length, second.getResult().length());
+    }
+
+    @Test
+    public void reportsProgressAtCheckpoints() {
+        final List<Long> committed = new ArrayList<>();
+        transfer.setTransferListener(new BulkTransfer.TransferListener() {
+            @Override
+            public void onProgress(long bytes, long total, float bytesPerSecond) {
+                committed.add(bytes);
+            }
+        });
+
+        transfer.startAsync(server);
+        acknowledgeFrom(0);
+        assertEquals(4, committed.size());
+        assertEquals(Long.valueOf(payload.length), committed.get(committed.size() - 1));
+    }
+}
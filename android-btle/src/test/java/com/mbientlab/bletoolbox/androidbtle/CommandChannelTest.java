@@ -0,0 +1,182 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import bolts.Task;
+import bolts.TaskCompletionSource;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class CommandChannelTest {
+    private static final UUID SERVICE = UUID.fromString("326a9000-85cb-9195-d9dd-464cfbbae75a"),
+            COMMAND = UUID.fromString("326a9001-85cb-9195-d9dd-464cfbbae75a"),
+            RESPONSE = UUID.fromString("326a9006-85cb-9195-d9dd-464cfbbae75a");
+    private static final long NO_TIMEOUT = 60000L;
+
+    private final List<TaskCompletionSource<Void>> writes = new ArrayList<>();
+    private BluetoothLeGattServer server;
+    private CommandChannel channel;
+
+    @Before
+    public void setup() {
+        server = mock(BluetoothLeGattServer.class);
+        when(server.writeCharacteristicAsync(eq(SERVICE), eq(COMMAND), any(BluetoothLeGattServer.WriteType.class), any(byte[].class)))
+                .thenAnswer(new Answer<Task<Void>>() {
+                    @Override
+                    public Task<Void> answer(InvocationOnMock invocation) {
+                        TaskCompletionSource<Void> write = new TaskCompletionSource<>();
+                        writes.add(write);
+                        return write.getTask();
+                    }
+                });
+        when(server.disableNotificationsAsync(any(UUID.class), any(UUID.class), any(BluetoothLeGattServer.NotificationListener.class)))
+                .thenReturn(Task.<Void>forResult(null));
+
+        channel = new CommandChannel(server, SERVICE, COMMAND, RESPONSE, BluetoothLeGattServer.WriteType.DEFAULT);
+    }
+
+    private void writesCompleted() {
+        for (TaskCompletionSource<Void> it : writes) {
+            it.trySetResult(null);
+        }
+    }
+
+    @Test
+    public void requestsArePipelined() {
+        channel.requestAsync(new byte[] {1}, new byte[] {1}, NO_TIMEOUT);
+        channel.requestAsync(new byte[] {2}, new byte[] {2}, NO_TIMEOUT);
+
+        // Second command is written without waiting for the first response
+        assertEquals(2, writes.size());
+        assertEquals(2, channel.outstandingCount());
+    }
+
+    @Test
+    public void responsesMatchInAnyOrder() {
+        Task<byte[]> first = channel.requestAsync(new byte[] {1}, new byte[] {1}, NO_TIMEOUT);
+        Task<byte[]> second = channel.requestAsync(new byte[] {2}, new byte[] {2}, NO_TIMEOUT);
+        writesCompleted();
+
+        channel.onChange(new byte[] {2, 20});
+        assertFalse(first.isCompleted());
+        assertArrayEquals(new byte[] {2, 20}, second.getResult());
+
+        channel.onChange(new byte[] {1, 10});
+        assertArrayEquals(new byte[] {1, 10}, first.getResult());
+        assertEquals(0, channel.outstandingCount());
+    }
+
+    @Test
+    public void oldestMatchingRequestAnsweredFirst() {
+        Task<byte[]> first = channel.requestAsync(new byte[] {1}, new byte[] {1}, NO_TIMEOUT);
+        Task<byte[]> second = channel.requestAsync(new byte[] {1}, new byte[] {1}, NO_TIMEOUT);
+
+        channel.onChange(new byte[] {1, 10});
+        assertTrue(first.isCompleted());
+        assertFalse(second.isCompleted());
+    }
+
+    @Test
+    public void unmatchedNotificationsAreForwarded() {
+        final List<byte[]> forwarded = new ArrayList<>();
+        channel.setUnmatchedListener(new BluetoothLeGattServer.NotificationListener() {
+            @Override
+            public void onChange(byte[] value) {
+                forwarded.add(value);
+            }
+        });
+
+        Task<byte[]> request = channel.requestAsync(new byte[] {1}, new byte[] {1}, NO_TIMEOUT);
+        channel.onChange(new byte[] {5});
+        assertEquals(1, forwarded.size());
+        assertFalse(request.isCompleted());
+    }
+
+    @Test
+    public void timeoutStartsOnceCommandIsWritten() throws InterruptedException {
+        Task<byte[]> request = channel.requestAsync(new byte[] {1}, new byte[] {1}, 50L);
+
+        // Still queued behind other operations
+        Thread.sleep(150L);
+        assertFalse(request.isCompleted());
+
+        writesCompleted();
+        assertTrue(request.waitForCompletion(1, TimeUnit.SECONDS));
+        assertTrue(request.getError() instanceof TimeoutException);
+        assertEquals(0, channel.outstandingCount());
+    }
+
+    @Test
+    public void responseBeforeTimeoutCompletesRequest() throws InterruptedException {
+        Task<byte[]> request = channel.requestAsync(new byte[] {1}, new byte[] {1}, 100L);
+        writesCompleted();
+        channel.onChange(new byte[] {1});
+
+        Thread.sleep(200L);
+        assertNull(request.getError());
+        assertArrayEquals(new byte[] {1}, request.getResult());
+    }
+
+    @Test
+    public void failedWriteFailsRequest() {
+        Task<byte[]> request = channel.requestAsync(new byte[] {1}, new byte[] {1}, NO_TIMEOUT);
+        writes.get(0).setError(new IllegalStateException("Could not write gatt characteristic"));
+
+        assertTrue(request.isFaulted());
+        assertEquals("Could not write gatt characteristic", request.getError().getMessage());
+        assertEquals(0, channel.outstandingCount());
+    }
+
+    @Test
+    public void closeFailsOutstandingRequests() {
+        Task<byte[]> request = channel.requestAsync(new byte[] {1}, new byte[] {1}, NO_TIMEOUT);
+        channel.closeAsync();
+
+        assertTrue(request.isFaulted());
+        assertEquals(0, channel.outstandingCount());
+        verify(server).disableNotificationsAsync(SERVICE, RESPONSE, channel);
+    }
+
+    @Test
+    public void prefixMatcherComparesLeadingBytes() {
+        CommandChannel.ResponseMatcher matcher = CommandChannel.prefixMatcher(new byte[] {1, 2});
+        assertTrue(matcher.matches(new byte[] {1, 2, 3}));
+        assertFalse(matcher.matches(new byte[] {1}));
+        assertFalse(matcher.matches(new byte[] {1, 3, 3}));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import bolts.Task;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class CompletableGattServerTest {
+    private static final UUID SERVICE = UUID.fromString("326a9000-85cb-9195-d9dd-464cfbbae75a"),
+            CHAR_A = UUID.fromString("326a9001-85cb-9195-d9dd-464cfbbae75a");
+
+    private GattRuntime runtime;
+    private BluetoothGatt gatt;
+    private BluetoothGattCharacteristic charA;
+    private BluetoothLeGattServer server;
+
+    // Holds completions until the test runs them
+    private final List<Runnable> queued = new ArrayList<>();
+    private final Executor executor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            queued.add(command);
+        }
+    };
+
+    @Before
+    public void connect() {
+        runtime = new GattRuntime(1);
+
+        BluetoothDevice device = mock(BluetoothDevice.class);
+        gatt = mock(BluetoothGatt.class);
+        BluetoothGattService service = mock(BluetoothGattService.class);
+        charA = mock(BluetoothGattCharacteristic.class);
+
+        when(device.connectGatt(any(), anyBoolean(), any())).thenReturn(gatt);
+        when(gatt.getDevice()).thenReturn(device);
+        when(gatt.getService(SERVICE)).thenReturn(service);
+        when(service.getCharacteristic(CHAR_A)).thenReturn(charA);
+        when(gatt.readCharacteristic(any())).thenReturn(true);
+        when(gatt.writeCharacteristic(any())).thenReturn(true);
+        when(gatt.readRemoteRssi()).thenReturn(true);
+
+        server = new BluetoothLeGattServer(runtime, device, null, false, 10000L);
+        runtime.gattCallback.onServicesDiscovered(gatt, 0);
+    }
+
+    @After
+    public void shutdown() {
+        runtime.shutdown();
+    }
+
+    @Test
+    public void directExecutorCompletesOnCallbackThread() {
+        CompletableFuture<byte[]> read = server.completable(CompletableGattServer.DIRECT_EXECUTOR).readCharacteristic(SERVICE, CHAR_A);
+        assertFalse(read.isDone());
+
+        when(charA.getValue()).thenReturn(new byte[] {1, 2});
+        runtime.gattCallback.onCharacteristicRead(gatt, charA, 0);
+        assertArrayEquals(new byte[] {1, 2}, read.getNow(null));
+    }
+
+    @Test
+    public void completesOnGivenExecutor() throws Exception {
+        CompletableFuture<Void> write = server.completable(executor)
+                .writeCharacteristic(SERVICE, CHAR_A, BluetoothLeGattServer.WriteType.DEFAULT, new byte[] {1});
+        runtime.gattCallback.onCharacteristicWrite(gatt, charA, 0);
+        assertFalse(write.isDone());
+
+        assertEquals(1, queued.size());
+        queued.get(0).run();
+        assertTrue(write.isDone());
+        assertNull(write.get());
+    }
+
+    @Test
+    public void errorsCompleteExceptionally() throws InterruptedException {
+        CompletableFuture<byte[]> read = server.completable(executor).readCharacteristic(SERVICE, CHAR_A);
+        runtime.gattCallback.onCharacteristicRead(gatt, charA, 133);
+        queued.get(0).run();
+
+        try {
+            read.get();
+            fail("Failed read completed normally");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("133"));
+        }
+    }
+
+    @Test
+    public void rssiIsDeliveredAsInt() {
+        CompletableFuture<Integer> rssi = server.completable(CompletableGattServer.DIRECT_EXECUTOR).readRssi();
+        runtime.gattCallback.onReadRemoteRssi(gatt, -55, 0);
+        assertEquals(Integer.valueOf(-55), rssi.getNow(null));
+    }
+
+    @Test
+    public void futuresAndTasksShareQueue() {
+        Task<Integer> task = server.readRssiAsync();
+        CompletableFuture<byte[]> future = server.completable(CompletableGattServer.DIRECT_EXECUTOR).readCharacteristic(SERVICE, CHAR_A);
+        verify(gatt, never()).readCharacteristic(charA);
+
+        runtime.gattCallback.onReadRemoteRssi(gatt, -40, 0);
+        assertEquals(Integer.valueOf(-40), task.getResult());
+        verify(gatt).readCharacteristic(charA);
+
+        runtime.gattCallback.onCharacteristicRead(gatt, charA, 0);
+        assertTrue(future.isDone());
+    }
+
+    @Test
+    public void viewWrapsServer() {
+        assertSame(server, server.completable(executor).server());
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import bolts.Task;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class GattBatchTest {
+    private static final UUID SERVICE = UUID.fromString("326a9000-85cb-9195-d9dd-464cfbbae75a"),
+            CHAR_A = UUID.fromString("326a9001-85cb-9195-d9dd-464cfbbae75a"),
+            CHAR_B = UUID.fromString("326a9006-85cb-9195-d9dd-464cfbbae75a"),
+            UNKNOWN = UUID.fromString("326a9008-85cb-9195-d9dd-464cfbbae75a"),
+            CCCD = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private GattRuntime runtime;
+    private BluetoothGatt gatt;
+    private BluetoothGattCharacteristic charA, charB;
+    private BluetoothGattDescriptor configA;
+    private BluetoothLeGattServer server;
+
+    private final BluetoothLeGattServer.NotificationListener listener = new BluetoothLeGattServer.NotificationListener() {
+        @Override
+        public void onChange(byte[] value) {
+        }
+    };
+
+    @Before
+    public void connect() {
+        runtime = new GattRuntime(1);
+
+        BluetoothDevice device = mock(BluetoothDevice.class);
+        gatt = mock(BluetoothGatt.class);
+        BluetoothGattService service = mock(BluetoothGattService.class);
+        charA = mock(BluetoothGattCharacteristic.class);
+        charB = mock(BluetoothGattCharacteristic.class);
+        configA = mock(BluetoothGattDescriptor.class);
+
+        when(device.connectGatt(any(), anyBoolean(), any())).thenReturn(gatt);
+        when(gatt.getDevice()).thenReturn(device);
+        when(gatt.getService(SERVICE)).thenReturn(service);
+        when(service.getCharacteristic(CHAR_A)).thenReturn(charA);
+        when(service.getCharacteristic(CHAR_B)).thenReturn(charB);
+        when(charA.getProperties()).thenReturn(BluetoothGattCharacteristic.PROPERTY_NOTIFY);
+        when(charA.getDescriptor(CCCD)).thenReturn(configA);
+        when(gatt.readCharacteristic(any())).thenReturn(true);
+        when(gatt.writeCharacteristic(any())).thenReturn(true);
+        when(gatt.writeDescriptor(any())).thenReturn(true);
+
+        server = new BluetoothLeGattServer(runtime, device, null, false, 10000L);
+        runtime.gattCallback.onServicesDiscovered(gatt, 0);
+    }
+
+    @After
+    public void shutdown() {
+        runtime.shutdown();
+    }
+
+    @Test
+    public void enableJoinsDescriptorWriteQueuedBehindBatch() {
+        Task<BulkReadResult> batch = server.beginBatch()
+                .read(SERVICE, CHAR_B)
+                .enableNotifications(SERVICE, CHAR_A, listener)
+                .commitAsync();
+        // Subscribes first, but its descriptor write is queued behind the batch
+        Task<Void> enable = server.enableNotificationsAsync(SERVICE, CHAR_A, listener);
+
+        when(charB.getValue()).thenReturn(new byte[] {1});
+        runtime.gattCallback.onCharacteristicRead(gatt, charB, 0);
+        verify(gatt).writeDescriptor(configA);
+        assertFalse(batch.isCompleted());
+
+        runtime.gattCallback.onDescriptorWrite(gatt, configA, 133);
+        assertTrue(enable.isFaulted());
+        assertTrue(batch.isCompleted());
+        assertFalse(batch.isFaulted());
+
+        BulkReadResult results = batch.getResult();
+        assertTrue(results.isSuccessful(0));
+        assertArrayEquals(new byte[] {1}, results.getValue(0));
+        assertFalse(results.isSuccessful(1));
+        assertTrue(results.getError(1).getMessage().contains("133"));
+    }
+
+    @Test
+    public void enableJoinsSuccessfulDescriptorWrite() {
+        Task<BulkReadResult> batch = server.beginBatch()
+                .read(SERVICE, CHAR_B)
+                .enableNotifications(SERVICE, CHAR_A, listener)
+                .commitAsync();
+        Task<Void> enable = server.enableNotificationsAsync(SERVICE, CHAR_A, listener);
+
+        runtime.gattCallback.onCharacteristicRead(gatt, charB, 0);
+        assertFalse(batch.isCompleted());
+
+        runtime.gattCallback.onDescriptorWrite(gatt, configA, 0);
+        assertNull(enable.getError());
+        assertTrue(batch.isCompleted());
+        assertEquals(0, batch.getResult().failureCount());
+    }
+
+    @Test
+    public void enableOnActiveSubscriptionSucceedsImmediately() {
+        Task<Void> enable = server.enableNotificationsAsync(SERVICE, CHAR_A, listener);
+        runtime.gattCallback.onDescriptorWrite(gatt, configA, 0);
+        assertNull(enable.getError());
+
+        Task<BulkReadResult> batch = server.beginBatch().enableNotifications(SERVICE, CHAR_A, listener).commitAsync();
+        assertTrue(batch.isCompleted());
+        assertTrue(batch.getResult().isSuccessful(0));
+        verify(gatt, times(1)).writeDescriptor(configA);
+    }
+
+    @Test
+    public void emptyBatchCompletesImmediately() {
+        GattBatch batch = server.beginBatch();
+        assertEquals(0, batch.size());
+
+        Task<BulkReadResult> task = batch.commitAsync();
+        assertTrue(task.isCompleted());
+        assertEquals(0, task.getResult().size());
+        verify(gatt, never()).readCharacteristic(any());
+        verify(gatt, never()).writeCharacteristic(any());
+    }
+
+    @Test
+    public void resultsFollowStepOrder() {
+        Task<BulkReadResult> task = server.beginBatch()
+                .read(SERVICE, CHAR_A)
+                .write(SERVICE, CHAR_B, BluetoothLeGattServer.WriteType.DEFAULT, new byte[] {2})
+                .read(SERVICE, CHAR_B)
+                .commitAsync();
+
+        when(charA.getValue()).thenReturn(new byte[] {1});
+        runtime.gattCallback.onCharacteristicRead(gatt, charA, 0);
+        verify(gatt).writeCharacteristic(charB);
+        runtime.gattCallback.onCharacteristicWrite(gatt, charB, 0);
+        when(charB.getValue()).thenReturn(new byte[] {3});
+        runtime.gattCallback.onCharacteristicRead(gatt, charB, 0);
+
+        BulkReadResult results = task.getResult();
+        assertEquals(3, results.size());
+        assertEquals(0, results.failureCount());
+        assertArrayEquals(new byte[] {1}, results.getValue(0));
+        assertNull(results.getValue(1));
+        assertArrayEquals(new byte[] {3}, results.getValue(2));
+    }
+
+    @Test
+    public void abortOnErrorSkipsRemainingSteps() {
+        Task<BulkReadResult> task = server.beginBatch()
+                .write(SERVICE, CHAR_A, BluetoothLeGattServer.WriteType.DEFAULT, new byte[] {1})
+                .read(SERVICE, CHAR_B)
+                .setAbortOnError(true)
+                .commitAsync();
+
+        runtime.gattCallback.onCharacteristicWrite(gatt, charA, 133);
+        BulkReadResult results = task.getResult();
+        assertEquals(2, results.failureCount());
+        assertTrue(results.getError(0).getMessage().contains("133"));
+        assertEquals("Skipped since the batch was aborted", results.getError(1).getMessage());
+        verify(gatt, never()).readCharacteristic(charB);
+    }
+
+    @Test
+    public void failedStepDoesNotStopBatchByDefault() {
+        Task<BulkReadResult> task = server.beginBatch()
+                .write(SERVICE, CHAR_A, BluetoothLeGattServer.WriteType.DEFAULT, new byte[] {1})
+                .read(SERVICE, CHAR_B)
+                .commitAsync();
+
+        runtime.gattCallback.onCharacteristicWrite(gatt, charA, 133);
+        verify(gatt).readCharacteristic(charB);
+        runtime.gattCallback.onCharacteristicRead(gatt, charB, 0);
+
+        BulkReadResult results = task.getResult();
+        assertFalse(results.isSuccessful(0));
+        assertTrue(results.isSuccessful(1));
+    }
+
+    @Test
+    public void unresolvedStepAbortsBeforeQueueing() {
+        Task<BulkReadResult> task = server.beginBatch()
+                .read(SERVICE, CHAR_A)
+                .read(SERVICE, UNKNOWN)
+                .setAbortOnError(true)
+                .commitAsync();
+
+        assertTrue(task.isCompleted());
+        BulkReadResult results = task.getResult();
+        assertEquals("Skipped since the batch was aborted", results.getError(0).getMessage());
+        assertTrue(results.getError(1).getMessage().contains("does not exist"));
+        verify(gatt, never()).readCharacteristic(any());
+    }
+
+    @Test
+    public void unresolvedStepFailsAloneWithoutAbort() {
+        Task<BulkReadResult> task = server.beginBatch()
+                .read(SERVICE, UNKNOWN)
+                .read(SERVICE, CHAR_A)
+                .commitAsync();
+
+        runtime.gattCallback.onCharacteristicRead(gatt, charA, 0);
+        BulkReadResult results = task.getResult();
+        assertTrue(results.getError(0).getMessage().contains("does not exist"));
+        assertTrue(results.isSuccessful(1));
+    }
+
+    @Test
+    public void committedBatchCannotChange() {
+        GattBatch batch = server.beginBatch().read(SERVICE, CHAR_A);
+        batch.commitAsync();
+
+        assertTrue(batch.commitAsync().isFaulted());
+        try {
+            batch.read(SERVICE, CHAR_B);
+            fail("Steps were added to a committed batch");
+        } catch (IllegalStateException ignored) {
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import bolts.Task;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class GattOperationQueueTest {
+    private static final UUID SERVICE = UUID.fromString("326a9000-85cb-9195-d9dd-464cfbbae75a"),
+            CHAR_A = UUID.fromString("326a9001-85cb-9195-d9dd-464cfbbae75a"),
+            CHAR_B = UUID.fromString("326a9006-85cb-9195-d9dd-464cfbbae75a");
+
+    private GattRuntime runtime;
+    private BluetoothGatt gatt;
+    private BluetoothGattCharacteristic charA, charB;
+    private BluetoothLeGattServer server;
+
+    @Before
+    public void connect() {
+        runtime = new GattRuntime(1);
+
+        BluetoothDevice device = mock(BluetoothDevice.class);
+        gatt = mock(BluetoothGatt.class);
+        BluetoothGattService service = mock(BluetoothGattService.class);
+        charA = mock(BluetoothGattCharacteristic.class);
+        charB = mock(BluetoothGattCharacteristic.class);
+
+        when(device.connectGatt(any(), anyBoolean(), any())).thenReturn(gatt);
+        when(gatt.getDevice()).thenReturn(device);
+        when(gatt.getService(SERVICE)).thenReturn(service);
+        when(service.getCharacteristic(CHAR_A)).thenReturn(charA);
+        when(service.getCharacteristic(CHAR_B)).thenReturn(charB);
+        when(gatt.writeCharacteristic(any())).thenReturn(true);
+        when(gatt.readRemoteRssi()).thenReturn(true);
+
+        server = new BluetoothLeGattServer(runtime, device, null, false, 10000L);
+        runtime.gattCallback.onServicesDiscovered(gatt, 0);
+    }
+
+    @After
+    public void shutdown() {
+        runtime.shutdown();
+    }
+
+    @Test
+    public void lateCallbackIsNotAppliedToNextOperation() throws InterruptedException {
+        server.operationTimeout().setOverride(50);
+        Task<Integer> rssi = server.readRssiAsync();
+        Task<Void> write = server.writeCharacteristicAsync(SERVICE, CHAR_A, BluetoothLeGattServer.WriteType.DEFAULT, new byte[] {1});
+
+        assertTrue(rssi.waitForCompletion(1, TimeUnit.SECONDS));
+        assertTrue(rssi.getError() instanceof TimeoutException);
+        // Queue advances on the timeout thread right after the read fails
+        verify(gatt, timeout(1000)).writeCharacteristic(charA);
+
+        // Answer to the read that already timed out
+        runtime.gattCallback.onReadRemoteRssi(gatt, -60, 0);
+        assertFalse(write.isCompleted());
+
+        runtime.gattCallback.onCharacteristicWrite(gatt, charA, 0);
+        assertTrue(write.isCompleted());
+        assertNull(write.getError());
+    }
+
+    @Test
+    public void callbackForAnotherCharacteristicIsIgnored() {
+        Task<Void> write = server.writeCharacteristicAsync(SERVICE, CHAR_A, BluetoothLeGattServer.WriteType.DEFAULT, new byte[] {1});
+
+        runtime.gattCallback.onCharacteristicWrite(gatt, charB, 0);
+        assertFalse(write.isCompleted());
+
+        runtime.gattCallback.onCharacteristicWrite(gatt, charA, 0);
+        assertTrue(write.isCompleted());
+    }
+
+    @Test
+    public void rejectedOperationFailsWithoutWaitingForCallback() {
+        when(gatt.writeCharacteristic(charA)).thenReturn(false);
+        Task<Void> first = server.writeCharacteristicAsync(SERVICE, CHAR_A, BluetoothLeGattServer.WriteType.DEFAULT, new byte[] {1});
+        Task<Void> second = server.writeCharacteristicAsync(SERVICE, CHAR_B, BluetoothLeGattServer.WriteType.DEFAULT, new byte[] {2});
+
+        assertTrue(first.isFaulted());
+        verify(gatt).writeCharacteristic(charB);
+
+        runtime.gattCallback.onCharacteristicWrite(gatt, charB, 0);
+        assertTrue(second.isCompleted());
+        assertNull(second.getError());
+    }
+
+    @Test
+    public void failedReliableWriteWaitsForAbortBeforeNextOperation() {
+        when(gatt.beginReliableWrite()).thenReturn(true);
+        when(charA.getValue()).thenReturn(new byte[] {9});
+        Task<Void> commit = server.beginReliableWrite()
+                .write(SERVICE, CHAR_A, new byte[] {1})
+                .write(SERVICE, CHAR_B, new byte[] {2})
+                .commitAsync();
+        Task<Void> next = server.writeCharacteristicAsync(SERVICE, CHAR_B, BluetoothLeGattServer.WriteType.DEFAULT, new byte[] {3});
+
+        // Device echoes the wrong value for the first prepared write
+        runtime.gattCallback.onCharacteristicWrite(gatt, charA, 0);
+        verify(gatt).abortReliableWrite();
+        assertFalse(commit.isCompleted());
+        verify(gatt, never()).writeCharacteristic(charB);
+
+        runtime.gattCallback.onReliableWriteCompleted(gatt, 0);
+        assertTrue(commit.isFaulted());
+        assertTrue(commit.getError().getMessage().contains("incorrect value"));
+        verify(gatt).writeCharacteristic(charB);
+
+        runtime.gattCallback.onCharacteristicWrite(gatt, charB, 0);
+        assertTrue(next.isCompleted());
+        assertNull(next.getError());
+    }
+
+    @Test
+    public void abortWithoutCallbackTimesOut() throws InterruptedException {
+        server.operationTimeout().setOverride(50);
+        when(gatt.beginReliableWrite()).thenReturn(true);
+        Task<Void> commit = server.beginReliableWrite().write(SERVICE, CHAR_A, new byte[] {1}).commitAsync();
+        Task<Void> next = server.writeCharacteristicAsync(SERVICE, CHAR_B, BluetoothLeGattServer.WriteType.DEFAULT, new byte[] {3});
+
+        runtime.gattCallback.onCharacteristicWrite(gatt, charA, 133);
+        assertTrue(commit.waitForCompletion(1, TimeUnit.SECONDS));
+        assertTrue(commit.getError().getMessage().contains("133"));
+        verify(gatt, timeout(1000)).writeCharacteristic(charB);
+
+        runtime.gattCallback.onCharacteristicWrite(gatt, charB, 0);
+        assertTrue(next.isCompleted());
+    }
+
+    @Test
+    public void failedBeginFinishesTransactionImmediately() {
+        when(gatt.beginReliableWrite()).thenReturn(false);
+        Task<Void> commit = server.beginReliableWrite().write(SERVICE, CHAR_A, new byte[] {1}).commitAsync();
+        Task<Void> next = server.writeCharacteristicAsync(SERVICE, CHAR_B, BluetoothLeGattServer.WriteType.DEFAULT, new byte[] {3});
+
+        assertTrue(commit.isFaulted());
+        verify(gatt, never()).writeCharacteristic(charA);
+        verify(gatt).writeCharacteristic(charB);
+
+        runtime.gattCallback.onCharacteristicWrite(gatt, charB, 0);
+        assertTrue(next.isCompleted());
+        assertNull(next.getError());
+    }
+
+    @Test
+    public void successfulReliableWriteExecutesAfterAllEchoes() {
+        when(gatt.beginReliableWrite()).thenReturn(true);
+        when(gatt.executeReliableWrite()).thenReturn(true);
+        when(charA.getValue()).thenReturn(new byte[] {1});
+        when(charB.getValue()).thenReturn(new byte[] {2});
+        Task<Void> commit = server.beginReliableWrite()
+                .write(SERVICE, CHAR_A, new byte[] {1})
+                .write(SERVICE, CHAR_B, new byte[] {2})
+                .commitAsync();
+
+        runtime.gattCallback.onCharacteristicWrite(gatt, charA, 0);
+        runtime.gattCallback.onCharacteristicWrite(gatt, charB, 0);
+        verify(gatt).executeReliableWrite();
+        assertFalse(commit.isCompleted());
+
+        runtime.gattCallback.onReliableWriteCompleted(gatt, 0);
+        assertTrue(commit.isCompleted());
+        assertNull(commit.getError());
+    }
+}
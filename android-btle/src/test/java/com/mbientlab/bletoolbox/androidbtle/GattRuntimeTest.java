@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import bolts.Task;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class GattRuntimeTest {
+    private static final UUID SERVICE = UUID.fromString("326a9000-85cb-9195-d9dd-464cfbbae75a"),
+            CHAR_A = UUID.fromString("326a9001-85cb-9195-d9dd-464cfbbae75a");
+
+    private static class RecordingTask extends BluetoothLeGattServer.GattTask {
+        final BluetoothLeGattServer.GattCompletion completion = mock(BluetoothLeGattServer.GattCompletion.class);
+        int executed;
+
+        @Override
+        void execute() {
+            executed++;
+        }
+
+        @Override
+        BluetoothLeGattServer.GattCompletion completion() {
+            return completion;
+        }
+    }
+
+    private static BluetoothGatt connect(GattRuntime runtime) {
+        BluetoothDevice device = mock(BluetoothDevice.class);
+        BluetoothGatt gatt = mock(BluetoothGatt.class);
+        BluetoothGattService service = mock(BluetoothGattService.class);
+        BluetoothGattCharacteristic charA = mock(BluetoothGattCharacteristic.class);
+
+        when(device.connectGatt(any(), anyBoolean(), any())).thenReturn(gatt);
+        when(gatt.getDevice()).thenReturn(device);
+        when(gatt.getService(SERVICE)).thenReturn(service);
+        when(service.getCharacteristic(CHAR_A)).thenReturn(charA);
+        when(gatt.writeCharacteristic(any())).thenReturn(true);
+
+        new BluetoothLeGattServer(runtime, device, null, false, 10000L);
+        runtime.gattCallback.onServicesDiscovered(gatt, 0);
+        return gatt;
+    }
+
+    @Test
+    public void droppedTaskIsSkipped() {
+        GattRuntime runtime = new GattRuntime(1);
+        RecordingTask dropped = new RecordingTask(), next = new RecordingTask();
+        runtime.pendingGattTasks.add(dropped);
+        runtime.pendingGattTasks.add(next);
+
+        assertTrue(dropped.drop());
+        runtime.executeGattOperation(true);
+
+        assertEquals(0, dropped.executed);
+        assertEquals(1, next.executed);
+        assertSame(next, runtime.pendingGattTasks.peek());
+        assertEquals(1, runtime.pendingGattTasks.size());
+    }
+
+    @Test
+    public void startedTaskIsNotRestarted() {
+        GattRuntime runtime = new GattRuntime(1);
+        RecordingTask task = new RecordingTask();
+        runtime.pendingGattTasks.add(task);
+
+        runtime.executeGattOperation(false);
+        runtime.executeGattOperation(true);
+        assertEquals(1, task.executed);
+        assertFalse(task.drop());
+    }
+
+    @Test
+    public void shutdownFailsQueuedOperations() {
+        GattRuntime runtime = new GattRuntime(1);
+        BluetoothGatt gatt = connect(runtime);
+        BluetoothLeGattServer server = runtime.activeObjects.get(gatt.getDevice());
+
+        Task<Void> inFlight = server.writeCharacteristicAsync(SERVICE, CHAR_A, BluetoothLeGattServer.WriteType.DEFAULT, new byte[] {1});
+        Task<Void> queued = server.writeCharacteristicAsync(SERVICE, CHAR_A, BluetoothLeGattServer.WriteType.DEFAULT, new byte[] {2});
+        verify(gatt, times(1)).writeCharacteristic(any());
+
+        runtime.shutdown();
+        assertTrue(runtime.isShutdown());
+        assertTrue(inFlight.isFaulted());
+        assertTrue(queued.isFaulted());
+        assertEquals("Gatt runtime has been shut down", queued.getError().getMessage());
+        assertTrue(runtime.pendingGattTasks.isEmpty());
+        verify(gatt, times(1)).writeCharacteristic(any());
+    }
+
+    @Test
+    public void shutdownRuntimeRejectsConnections() {
+        GattRuntime runtime = new GattRuntime(1);
+        runtime.shutdown();
+        runtime.shutdown();
+
+        assertTrue(runtime.connect(mock(BluetoothDevice.class), null, false, 1000L).isFaulted());
+        try {
+            runtime.scheduler();
+            fail("Scheduler was created after shutdown");
+        } catch (IllegalStateException ignored) {
+        }
+    }
+
+    @Test
+    public void runtimesDoNotShareQueues() {
+        GattRuntime first = new GattRuntime(1), second = new GattRuntime(1);
+        try {
+            BluetoothGatt firstGatt = connect(first), secondGatt = connect(second);
+            first.activeObjects.get(firstGatt.getDevice())
+                    .writeCharacteristicAsync(SERVICE, CHAR_A, BluetoothLeGattServer.WriteType.DEFAULT, new byte[] {1});
+            second.activeObjects.get(secondGatt.getDevice())
+                    .writeCharacteristicAsync(SERVICE, CHAR_A, BluetoothLeGattServer.WriteType.DEFAULT, new byte[] {1});
+
+            // Neither write waits on the other runtime's operation
+            verify(firstGatt).writeCharacteristic(any());
+            verify(secondGatt).writeCharacteristic(any());
+        } finally {
+            first.shutdown();
+            second.shutdown();
+        }
+    }
+
+    @Test
+    public void defaultRuntimeReplacedAfterShutdown() {
+        GattRuntime runtime = GattRuntime.getDefault();
+        assertSame(runtime, GattRuntime.getDefault());
+
+        runtime.shutdown();
+        assertNotSame(runtime, GattRuntime.getDefault());
+    }
+}
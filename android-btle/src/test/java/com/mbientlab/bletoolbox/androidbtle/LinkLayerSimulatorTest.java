@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LinkLayerSimulatorTest {
+    @Test
+    public void lightLoadIsDeliveredWithoutDrops() {
+        LinkLayerSimulator.Result result = new LinkLayerSimulator().duration(10).run(1, 50, 20, 0);
+
+        assertEquals(0.0, result.dropRatio, 0.0);
+        assertEquals(50 * 20, result.notifyThroughput, 20);
+    }
+
+    @Test
+    public void sameSeedGivesSameResult() {
+        LinkLayerSimulator sim = new LinkLayerSimulator().packetLoss(0.1).duration(5).seed(42);
+        LinkLayerSimulator.Result first = sim.run(3, 200, 20, 10), second = sim.run(3, 200, 20, 10);
+
+        assertEquals(first.notifyThroughput, second.notifyThroughput, 0.0);
+        assertEquals(first.dropRatio, second.dropRatio, 0.0);
+        assertEquals(first.p99OpLatency, second.p99OpLatency, 0.0);
+    }
+
+    @Test
+    public void overloadedLinkDropsSamples() {
+        LinkLayerSimulator.Result result = new LinkLayerSimulator().duration(5).run(8, 2000, 20, 0);
+        assertTrue(result.dropRatio > 0);
+    }
+
+    @Test
+    public void perConnectionQueuesLowerOperationLatency() {
+        LinkLayerSimulator sim = new LinkLayerSimulator().duration(10);
+        LinkLayerSimulator.Result shared = sim.queueMode(LinkLayerSimulator.QueueMode.SHARED).run(4, 10, 20, 10),
+                perConnection = sim.queueMode(LinkLayerSimulator.QueueMode.PER_CONNECTION).run(4, 10, 20, 10);
+
+        assertTrue(perConnection.meanOpLatency < shared.meanOpLatency);
+        assertTrue(perConnection.opsPerSecond >= shared.opsPerSecond);
+    }
+
+    @Test
+    public void largerMtuSustainsHigherRateForLargeSamples() {
+        double small = new LinkLayerSimulator().duration(5).maxSampleRate(1, 100, 0, 0.001),
+                large = new LinkLayerSimulator().duration(5).mtu(247).dataLength(251).maxSampleRate(1, 100, 0, 0.001);
+
+        assertTrue(large > small);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTinyMtu() {
+        new LinkLayerSimulator().mtu(3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCertainPacketLoss() {
+        new LinkLayerSimulator().packetLoss(1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDropRatioOfOne() {
+        new LinkLayerSimulator().maxSampleRate(1, 20, 0, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeDropRatio() {
+        new LinkLayerSimulator().maxSampleRate(1, 20, 0, -0.1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroPacketsPerEvent() {
+        new LinkLayerSimulator().packetsPerEvent(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOversizedDataLength() {
+        new LinkLayerSimulator().dataLength(252);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRunWithoutDevices() {
+        new LinkLayerSimulator().run(0, 10, 20, 0);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class MappedNotificationLogTest {
+    // Room for exactly 2 records with 10 byte payloads
+    private static final int SEGMENT_SIZE = 2 * (MappedNotificationLog.RECORD_HEADER_SIZE + 10);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] payload(int seed) {
+        byte[] value = new byte[10];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) (seed + i);
+        }
+        return value;
+    }
+
+    private static int countRecords(File directory) throws IOException {
+        int count = 0;
+        MappedNotificationLog.Reader reader = new MappedNotificationLog.Reader(directory);
+        while (reader.next()) {
+            count++;
+        }
+        reader.close();
+        return count;
+    }
+
+    @Test
+    public void recordsAreReadBackInOrderAcrossSegments() throws IOException {
+        File dir = folder.newFolder();
+        MappedNotificationLog log = new MappedNotificationLog(dir, SEGMENT_SIZE);
+        for (int i = 0; i < 5; i++) {
+            log.append((short) i, 1000L + i, payload(i));
+        }
+        log.close();
+
+        assertEquals(3, dir.listFiles().length);
+
+        MappedNotificationLog.Reader reader = new MappedNotificationLog.Reader(dir);
+        byte[] dest = new byte[10];
+        for (int i = 0; i < 5; i++) {
+            assertTrue(reader.next());
+            assertEquals(i, reader.characteristicId());
+            assertEquals(1000L + i, reader.timestamp());
+            assertEquals(10, reader.payloadLength());
+            assertEquals(10, reader.readPayload(dest, 0));
+            assertArrayEquals(payload(i), dest);
+            assertEquals((byte) (i + 9), reader.payloadByte(9));
+        }
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void reopenedLogAppendsToNewSegment() throws IOException {
+        File dir = folder.newFolder();
+        MappedNotificationLog log = new MappedNotificationLog(dir, SEGMENT_SIZE);
+        log.append((short) 1, 0L, payload(0));
+        log.close();
+
+        log = new MappedNotificationLog(dir, SEGMENT_SIZE);
+        log.append((short) 2, 1L, payload(1));
+        log.close();
+
+        assertEquals(2, dir.listFiles().length);
+        assertEquals(2, countRecords(dir));
+    }
+
+    @Test
+    public void strayFilesWithSegmentExtensionAreIgnored() throws IOException {
+        File dir = folder.newFolder();
+        assertTrue(new File(dir, "notes.seg").createNewFile());
+
+        MappedNotificationLog log = new MappedNotificationLog(dir, SEGMENT_SIZE);
+        log.append((short) 1, 0L, payload(0));
+        log.close();
+
+        assertEquals(1, countRecords(dir));
+    }
+
+    @Test
+    public void listenerRecordsFailuresInsteadOfThrowing() throws IOException {
+        MappedNotificationLog log = new MappedNotificationLog(folder.newFolder(), SEGMENT_SIZE);
+        BluetoothLeGattServer.NotificationListener listener = log.listener((short) 1);
+
+        listener.onChange(new byte[SEGMENT_SIZE]);
+        listener.onChange(payload(0));
+
+        assertEquals(1, log.droppedCount());
+        assertTrue(log.listenerFailure() instanceof IllegalArgumentException);
+        try {
+            log.close();
+            fail("Close should report the dropped notification");
+        } catch (IOException e) {
+            assertSame(log.listenerFailure(), e.getCause());
+        }
+    }
+}
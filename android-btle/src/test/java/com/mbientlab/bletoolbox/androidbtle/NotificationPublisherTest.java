@@ -0,0 +1,216 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import bolts.Task;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class NotificationPublisherTest {
+    private static final UUID SERVICE = UUID.fromString("326a9000-85cb-9195-d9dd-464cfbbae75a"),
+            CHAR_A = UUID.fromString("326a9001-85cb-9195-d9dd-464cfbbae75a");
+
+    private static final class RecordingSubscriber implements Subscriber<byte[]> {
+        final List<Byte> values = new ArrayList<>();
+        Subscription subscription;
+        Throwable error;
+        boolean completed;
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            subscription = s;
+        }
+
+        @Override
+        public void onNext(byte[] value) {
+            values.add(value[0]);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    private BluetoothLeGattServer server;
+    private RecordingSubscriber subscriber;
+    private BluetoothLeGattServer.NotificationListener listener;
+
+    @Before
+    public void setup() {
+        server = mock(BluetoothLeGattServer.class);
+        when(server.enableNotificationsAsync(any(UUID.class), any(UUID.class), any(BluetoothLeGattServer.NotificationListener.class)))
+                .thenReturn(Task.<Void>forResult(null));
+        when(server.disableNotificationsAsync(any(UUID.class), any(UUID.class), any(BluetoothLeGattServer.NotificationListener.class)))
+                .thenReturn(Task.<Void>forResult(null));
+        subscriber = new RecordingSubscriber();
+    }
+
+    private void subscribe(int capacity, NotificationPublisher.OverflowStrategy strategy) {
+        new NotificationPublisher(server, SERVICE, CHAR_A, capacity, strategy).subscribe(subscriber);
+
+        ArgumentCaptor<BluetoothLeGattServer.NotificationListener> captor = ArgumentCaptor.forClass(BluetoothLeGattServer.NotificationListener.class);
+        verify(server).enableNotificationsAsync(eq(SERVICE), eq(CHAR_A), captor.capture());
+        listener = captor.getValue();
+    }
+
+    private void notify(int... values) {
+        for (int it : values) {
+            listener.onChange(new byte[] {(byte) it});
+        }
+    }
+
+    @Test
+    public void emitsOnlyRequestedValues() {
+        subscribe(8, NotificationPublisher.OverflowStrategy.ERROR);
+        subscriber.subscription.request(2);
+        notify(1, 2, 3);
+        assertEquals(2, subscriber.values.size());
+
+        subscriber.subscription.request(1);
+        assertEquals(3, subscriber.values.size());
+        notify(4);
+        assertEquals(3, subscriber.values.size());
+
+        subscriber.subscription.request(5);
+        assertEquals(4, subscriber.values.size());
+        assertEquals(Byte.valueOf((byte) 4), subscriber.values.get(3));
+        assertNull(subscriber.error);
+    }
+
+    @Test
+    public void unboundedDemandIsNotDecremented() {
+        subscribe(2, NotificationPublisher.OverflowStrategy.ERROR);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        subscriber.subscription.request(1);
+        notify(1, 2, 3, 4, 5);
+        assertEquals(5, subscriber.values.size());
+        assertNull(subscriber.error);
+    }
+
+    @Test
+    public void dropLatestKeepsBufferedValues() {
+        subscribe(2, NotificationPublisher.OverflowStrategy.DROP_LATEST);
+        notify(1, 2, 3);
+
+        subscriber.subscription.request(5);
+        assertEquals(2, subscriber.values.size());
+        assertEquals(Byte.valueOf((byte) 1), subscriber.values.get(0));
+        assertEquals(Byte.valueOf((byte) 2), subscriber.values.get(1));
+    }
+
+    @Test
+    public void dropOldestKeepsNewestValues() {
+        subscribe(2, NotificationPublisher.OverflowStrategy.DROP_OLDEST);
+        notify(1, 2, 3);
+
+        subscriber.subscription.request(5);
+        assertEquals(2, subscriber.values.size());
+        assertEquals(Byte.valueOf((byte) 2), subscriber.values.get(0));
+        assertEquals(Byte.valueOf((byte) 3), subscriber.values.get(1));
+    }
+
+    @Test
+    public void overflowSignalsError() {
+        subscribe(2, NotificationPublisher.OverflowStrategy.ERROR);
+        notify(1, 2);
+        assertNull(subscriber.error);
+
+        notify(3);
+        assertTrue(subscriber.error instanceof NotificationPublisher.BufferOverflowException);
+        verify(server).disableNotificationsAsync(SERVICE, CHAR_A, listener);
+
+        // Terminated, buffered values are discarded
+        subscriber.subscription.request(5);
+        assertTrue(subscriber.values.isEmpty());
+    }
+
+    @Test
+    public void cancelStopsDelivery() {
+        subscribe(4, NotificationPublisher.OverflowStrategy.ERROR);
+        subscriber.subscription.request(10);
+        notify(1);
+        subscriber.subscription.cancel();
+        notify(2, 3);
+
+        assertEquals(1, subscriber.values.size());
+        verify(server, times(1)).disableNotificationsAsync(SERVICE, CHAR_A, listener);
+        subscriber.subscription.cancel();
+        verify(server, times(1)).disableNotificationsAsync(SERVICE, CHAR_A, listener);
+        assertNull(subscriber.error);
+    }
+
+    @Test
+    public void nonPositiveRequestSignalsError() {
+        subscribe(4, NotificationPublisher.OverflowStrategy.ERROR);
+        subscriber.subscription.request(0);
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void closedConnectionCompletesAfterBufferedValues() {
+        subscribe(4, NotificationPublisher.OverflowStrategy.ERROR);
+        notify(1, 2);
+        ((BluetoothLeGattServer.TerminalListener) listener).onConnectionClosed(null);
+        assertFalse(subscriber.completed);
+
+        subscriber.subscription.request(1);
+        assertFalse(subscriber.completed);
+        subscriber.subscription.request(1);
+        assertTrue(subscriber.completed);
+        assertEquals(2, subscriber.values.size());
+        verify(server, never()).disableNotificationsAsync(any(UUID.class), any(UUID.class), any(BluetoothLeGattServer.NotificationListener.class));
+    }
+
+    @Test
+    public void failedEnableSignalsError() {
+        when(server.enableNotificationsAsync(any(UUID.class), any(UUID.class), any(BluetoothLeGattServer.NotificationListener.class)))
+                .thenReturn(Task.<Void>forError(new IllegalStateException("Characteristic does not exist")));
+        subscribe(4, NotificationPublisher.OverflowStrategy.ERROR);
+        assertTrue(subscriber.error instanceof IllegalStateException);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyBuffer() {
+        new NotificationPublisher(server, SERVICE, CHAR_A, 0, NotificationPublisher.OverflowStrategy.ERROR);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NotificationRouterTest {
+    private static final class Recorder implements BluetoothLeGattServer.NotificationListener {
+        final List<byte[]> values = new ArrayList<>();
+
+        @Override
+        public void onChange(byte[] value) {
+            values.add(value);
+        }
+    }
+
+    private NotificationRouter router;
+    private Recorder module, register, fallback;
+
+    @Before
+    public void setup() {
+        router = new NotificationRouter();
+        module = new Recorder();
+        register = new Recorder();
+        fallback = new Recorder();
+    }
+
+    @Test
+    public void longestMatchingPrefixWins() {
+        router.register(new byte[] {0x03}, module).register(new byte[] {0x03, 0x04}, register);
+
+        router.onChange(new byte[] {0x03, 0x04, 0x10});
+        router.onChange(new byte[] {0x03, 0x05, 0x10});
+
+        assertEquals(1, register.values.size());
+        assertEquals(1, module.values.size());
+        assertArrayEquals(new byte[] {0x03, 0x05, 0x10}, module.values.get(0));
+    }
+
+    @Test
+    public void unmatchedValuesGoToFallback() {
+        router.register(new byte[] {0x03, 0x04}, register).setFallback(fallback);
+
+        router.onChange(new byte[] {0x03});
+        router.onChange(new byte[] {(byte) 0xff, 0x04});
+
+        assertTrue(register.values.isEmpty());
+        assertEquals(2, fallback.values.size());
+    }
+
+    @Test
+    public void unmatchedValuesAreDroppedWithoutFallback() {
+        router.register(new byte[] {0x03}, module);
+        router.onChange(new byte[] {0x04});
+
+        assertTrue(module.values.isEmpty());
+    }
+
+    @Test
+    public void valueEqualToPrefixMatches() {
+        router.register(new byte[] {0x03, 0x04}, register);
+        router.onChange(new byte[] {0x03, 0x04});
+
+        assertEquals(1, register.values.size());
+    }
+
+    @Test
+    public void emptyPrefixMatchesEverything() {
+        router.register(new byte[0], module).register(new byte[] {0x01}, register);
+
+        router.onChange(new byte[] {0x01, 0x02});
+        router.onChange(new byte[] {0x02});
+        router.onChange(new byte[0]);
+
+        assertEquals(1, register.values.size());
+        assertEquals(2, module.values.size());
+    }
+
+    @Test
+    public void unregisterFallsBackToShorterPrefix() {
+        router.register(new byte[] {0x03}, module).register(new byte[] {0x03, 0x04}, register);
+        router.unregister(new byte[] {0x03, 0x04});
+
+        router.onChange(new byte[] {0x03, 0x04});
+
+        assertTrue(register.values.isEmpty());
+        assertEquals(1, module.values.size());
+    }
+
+    @Test
+    public void unregisteringUnknownPrefixIsHarmless() {
+        router.unregister(new byte[] {0x01, 0x02}).setFallback(fallback);
+        router.onChange(new byte[] {0x01, 0x02});
+
+        assertEquals(1, fallback.values.size());
+    }
+
+    @Test
+    public void registeringCopiesPrefix() {
+        byte[] prefix = new byte[] {0x03};
+        router.register(prefix, module);
+        prefix[0] = 0x04;
+
+        router.onChange(new byte[] {0x03});
+        assertEquals(1, module.values.size());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void rejectsNullHandler() {
+        router.register(new byte[] {0x01}, null);
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import bolts.Task;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class QueueLimitTest {
+    private static final UUID SERVICE = UUID.fromString("326a9000-85cb-9195-d9dd-464cfbbae75a"),
+            CHAR_A = UUID.fromString("326a9001-85cb-9195-d9dd-464cfbbae75a"),
+            CHAR_B = UUID.fromString("326a9006-85cb-9195-d9dd-464cfbbae75a"),
+            CHAR_C = UUID.fromString("326a9007-85cb-9195-d9dd-464cfbbae75a");
+
+    private GattRuntime runtime;
+    private BluetoothGatt gatt;
+    private BluetoothGattCharacteristic charA, charB, charC;
+    private BluetoothLeGattServer server;
+    private QueueLimit limit;
+
+    @Before
+    public void connect() {
+        runtime = new GattRuntime(1);
+
+        BluetoothDevice device = mock(BluetoothDevice.class);
+        gatt = mock(BluetoothGatt.class);
+        BluetoothGattService service = mock(BluetoothGattService.class);
+        charA = mock(BluetoothGattCharacteristic.class);
+        charB = mock(BluetoothGattCharacteristic.class);
+        charC = mock(BluetoothGattCharacteristic.class);
+
+        when(device.connectGatt(any(), anyBoolean(), any())).thenReturn(gatt);
+        when(gatt.getDevice()).thenReturn(device);
+        when(gatt.getService(SERVICE)).thenReturn(service);
+        when(service.getCharacteristic(CHAR_A)).thenReturn(charA);
+        when(service.getCharacteristic(CHAR_B)).thenReturn(charB);
+        when(service.getCharacteristic(CHAR_C)).thenReturn(charC);
+        when(gatt.writeCharacteristic(any())).thenReturn(true);
+
+        server = new BluetoothLeGattServer(runtime, device, null, false, 10000L);
+        runtime.gattCallback.onServicesDiscovered(gatt, 0);
+        limit = server.queueLimit();
+    }
+
+    @After
+    public void shutdown() {
+        runtime.shutdown();
+    }
+
+    private Task<Void> write(UUID gattChar) {
+        return server.writeCharacteristicAsync(SERVICE, gattChar, BluetoothLeGattServer.WriteType.DEFAULT, new byte[] {1});
+    }
+
+    @Test
+    public void suspendReleasesHeldOperationsInOrder() {
+        limit.setCapacity(1, QueueLimit.Policy.SUSPEND);
+        Task<Void> first = write(CHAR_A), second = write(CHAR_B), third = write(CHAR_C);
+
+        assertEquals(1, limit.depth());
+        assertEquals(2, limit.suspendedCount());
+        verify(gatt, never()).writeCharacteristic(charB);
+
+        runtime.gattCallback.onCharacteristicWrite(gatt, charA, 0);
+        assertNull(first.getError());
+        verify(gatt).writeCharacteristic(charB);
+        verify(gatt, never()).writeCharacteristic(charC);
+        assertEquals(1, limit.suspendedCount());
+
+        runtime.gattCallback.onCharacteristicWrite(gatt, charB, 0);
+        assertNull(second.getError());
+        verify(gatt).writeCharacteristic(charC);
+        assertEquals(0, limit.suspendedCount());
+
+        runtime.gattCallback.onCharacteristicWrite(gatt, charC, 0);
+        assertNull(third.getError());
+        assertEquals(0, limit.depth());
+        assertEquals(0, limit.rejectedCount());
+    }
+
+    @Test
+    public void dropOldestNeverDropsInFlightOperation() {
+        limit.setCapacity(2, QueueLimit.Policy.DROP_OLDEST);
+        Task<Void> inFlight = write(CHAR_A), queued = write(CHAR_B), newest = write(CHAR_C);
+
+        assertTrue(queued.isFaulted());
+        assertTrue(queued.getError().getMessage().contains("dropped"));
+        assertFalse(inFlight.isCompleted());
+        assertEquals(1, limit.droppedCount());
+        assertEquals(2, limit.depth());
+
+        runtime.gattCallback.onCharacteristicWrite(gatt, charA, 0);
+        assertNull(inFlight.getError());
+        verify(gatt).writeCharacteristic(charC);
+        verify(gatt, never()).writeCharacteristic(charB);
+
+        runtime.gattCallback.onCharacteristicWrite(gatt, charC, 0);
+        assertNull(newest.getError());
+        assertEquals(0, limit.depth());
+    }
+
+    @Test
+    public void dropOldestFallsBackToHeldOperation() {
+        limit.setCapacity(1, QueueLimit.Policy.SUSPEND);
+        Task<Void> inFlight = write(CHAR_A), held = write(CHAR_B);
+
+        limit.setCapacity(1, QueueLimit.Policy.DROP_OLDEST);
+        Task<Void> newest = write(CHAR_C);
+        assertTrue(held.isFaulted());
+        assertEquals(1, limit.droppedCount());
+        assertEquals(1, limit.suspendedCount());
+
+        runtime.gattCallback.onCharacteristicWrite(gatt, charA, 0);
+        assertNull(inFlight.getError());
+        verify(gatt).writeCharacteristic(charC);
+        verify(gatt, never()).writeCharacteristic(charB);
+
+        runtime.gattCallback.onCharacteristicWrite(gatt, charC, 0);
+        assertNull(newest.getError());
+    }
+
+    @Test
+    public void dropOldestRejectsWhenOnlyInFlightOperationIsQueued() {
+        limit.setCapacity(1, QueueLimit.Policy.DROP_OLDEST);
+        Task<Void> inFlight = write(CHAR_A), rejected = write(CHAR_B);
+
+        assertTrue(rejected.isFaulted());
+        assertTrue(rejected.getError().getMessage().contains("full"));
+        assertFalse(inFlight.isCompleted());
+        assertEquals(1, limit.rejectedCount());
+        assertEquals(0, limit.droppedCount());
+    }
+
+    @Test
+    public void failFastCountsRejectedOperations() {
+        limit.setCapacity(1, QueueLimit.Policy.FAIL_FAST);
+        Task<Void> first = write(CHAR_A);
+        assertTrue(write(CHAR_B).isFaulted());
+        assertTrue(write(CHAR_C).isFaulted());
+
+        assertEquals(2, limit.rejectedCount());
+        assertEquals(0, limit.droppedCount());
+        assertEquals(1, limit.depth());
+        verify(gatt, never()).writeCharacteristic(charB);
+
+        runtime.gattCallback.onCharacteristicWrite(gatt, charA, 0);
+        assertNull(first.getError());
+        assertEquals(0, limit.depth());
+
+        assertFalse(write(CHAR_B).isFaulted());
+        verify(gatt).writeCharacteristic(charB);
+        assertEquals(2, limit.rejectedCount());
+    }
+
+    @Test
+    public void spaceWaitersReleasedOnePerFreedSlot() {
+        assertTrue(limit.spaceAsync().isCompleted());
+
+        limit.setCapacity(1, QueueLimit.Policy.FAIL_FAST);
+        write(CHAR_A);
+        Task<Void> firstWaiter = limit.spaceAsync(), secondWaiter = limit.spaceAsync();
+        assertFalse(firstWaiter.isCompleted());
+
+        runtime.gattCallback.onCharacteristicWrite(gatt, charA, 0);
+        assertTrue(firstWaiter.isCompleted());
+        assertFalse(secondWaiter.isCompleted());
+
+        // Released producer takes the slot, the next waiter goes once it frees up
+        write(CHAR_B);
+        assertFalse(secondWaiter.isCompleted());
+        runtime.gattCallback.onCharacteristicWrite(gatt, charB, 0);
+        assertTrue(secondWaiter.isCompleted());
+    }
+
+    @Test
+    public void largerCapacityReleasesHeldOperations() {
+        limit.setCapacity(1, QueueLimit.Policy.SUSPEND);
+        write(CHAR_A);
+        write(CHAR_B);
+        assertEquals(1, limit.suspendedCount());
+
+        limit.setCapacity(2, QueueLimit.Policy.SUSPEND);
+        assertEquals(0, limit.suspendedCount());
+        assertEquals(2, limit.depth());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroCapacity() {
+        limit.setCapacity(0, QueueLimit.Policy.FAIL_FAST);
+    }
+}
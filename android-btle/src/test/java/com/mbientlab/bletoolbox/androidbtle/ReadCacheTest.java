@@ -0,0 +1,202 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import bolts.Task;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class ReadCacheTest {
+    private static final UUID SERVICE = UUID.fromString("326a9000-85cb-9195-d9dd-464cfbbae75a"),
+            CHAR_A = UUID.fromString("326a9001-85cb-9195-d9dd-464cfbbae75a");
+
+    private GattRuntime runtime;
+    private BluetoothGatt gatt;
+    private BluetoothGattCharacteristic charA;
+    private BluetoothLeGattServer server;
+    private ReadCache cache;
+
+    @Before
+    public void connect() {
+        runtime = new GattRuntime(1);
+
+        BluetoothDevice device = mock(BluetoothDevice.class);
+        gatt = mock(BluetoothGatt.class);
+        BluetoothGattService service = mock(BluetoothGattService.class);
+        charA = mock(BluetoothGattCharacteristic.class);
+
+        when(device.connectGatt(any(), anyBoolean(), any())).thenReturn(gatt);
+        when(gatt.getDevice()).thenReturn(device);
+        when(gatt.getService(SERVICE)).thenReturn(service);
+        when(service.getCharacteristic(CHAR_A)).thenReturn(charA);
+        when(gatt.readCharacteristic(any())).thenReturn(true);
+        when(gatt.writeCharacteristic(any())).thenReturn(true);
+
+        server = new BluetoothLeGattServer(runtime, device, null, false, 10000L);
+        runtime.gattCallback.onServicesDiscovered(gatt, 0);
+        cache = server.readCache();
+        cache.setEnabled(true);
+    }
+
+    @After
+    public void shutdown() {
+        runtime.shutdown();
+    }
+
+    private Task<byte[]> read() {
+        return server.readCharacteristicAsync(SERVICE, CHAR_A);
+    }
+
+    // Device answers the read in flight with the given value
+    private void answerRead(byte value) {
+        when(charA.getValue()).thenReturn(new byte[] {value});
+        runtime.gattCallback.onCharacteristicRead(gatt, charA, 0);
+    }
+
+    @Test
+    public void concurrentReadsShareOneQueuedRead() {
+        Task<byte[]> first = read(), second = read(), third = read();
+        verify(gatt, times(1)).readCharacteristic(charA);
+        assertFalse(first.isCompleted());
+
+        answerRead((byte) 7);
+        assertArrayEquals(new byte[] {7}, first.getResult());
+        assertArrayEquals(new byte[] {7}, second.getResult());
+        assertArrayEquals(new byte[] {7}, third.getResult());
+        assertEquals(1, cache.missCount());
+        assertEquals(2, cache.coalescedCount());
+    }
+
+    @Test
+    public void coalescedReadsShareFailure() {
+        Task<byte[]> first = read(), second = read();
+        runtime.gattCallback.onCharacteristicRead(gatt, charA, 133);
+        assertTrue(first.isFaulted());
+        assertTrue(second.isFaulted());
+
+        // Failed read is not cached
+        read();
+        verify(gatt, times(2)).readCharacteristic(charA);
+    }
+
+    @Test
+    public void valueReusedUntilTtlExpires() throws InterruptedException {
+        cache.setTtl(SERVICE, CHAR_A, 100L);
+        read();
+        answerRead((byte) 1);
+
+        Task<byte[]> cached = read();
+        assertArrayEquals(new byte[] {1}, cached.getResult());
+        assertEquals(1, cache.hitCount());
+        verify(gatt, times(1)).readCharacteristic(charA);
+
+        Thread.sleep(150L);
+        Task<byte[]> expired = read();
+        verify(gatt, times(2)).readCharacteristic(charA);
+        answerRead((byte) 2);
+        assertArrayEquals(new byte[] {2}, expired.getResult());
+    }
+
+    @Test
+    public void zeroTtlOnlyCoalesces() {
+        read();
+        answerRead((byte) 1);
+
+        read();
+        verify(gatt, times(2)).readCharacteristic(charA);
+        assertEquals(0, cache.hitCount());
+    }
+
+    @Test
+    public void writeDropsCachedValue() {
+        cache.setTtl(SERVICE, CHAR_A, ReadCache.FOREVER);
+        read();
+        answerRead((byte) 1);
+
+        server.writeCharacteristicAsync(SERVICE, CHAR_A, BluetoothLeGattServer.WriteType.DEFAULT, new byte[] {2});
+        runtime.gattCallback.onCharacteristicWrite(gatt, charA, 0);
+
+        read();
+        verify(gatt, times(2)).readCharacteristic(charA);
+    }
+
+    @Test
+    public void batchWriteDropsCachedValue() {
+        cache.setTtl(SERVICE, CHAR_A, ReadCache.FOREVER);
+        read();
+        answerRead((byte) 1);
+
+        server.beginBatch().write(SERVICE, CHAR_A, BluetoothLeGattServer.WriteType.DEFAULT, new byte[] {2}).commitAsync();
+        runtime.gattCallback.onCharacteristicWrite(gatt, charA, 0);
+
+        read();
+        verify(gatt, times(2)).readCharacteristic(charA);
+    }
+
+    @Test
+    public void readInFlightDuringWriteIsNotCached() {
+        cache.setTtl(SERVICE, CHAR_A, ReadCache.FOREVER);
+        Task<byte[]> stale = read();
+        server.writeCharacteristicAsync(SERVICE, CHAR_A, BluetoothLeGattServer.WriteType.DEFAULT, new byte[] {2});
+
+        // Read started before the write, its value is delivered but must not repopulate the cache
+        answerRead((byte) 1);
+        assertArrayEquals(new byte[] {1}, stale.getResult());
+        runtime.gattCallback.onCharacteristicWrite(gatt, charA, 0);
+
+        Task<byte[]> fresh = read();
+        verify(gatt, times(2)).readCharacteristic(charA);
+        answerRead((byte) 2);
+        assertArrayEquals(new byte[] {2}, fresh.getResult());
+    }
+
+    @Test
+    public void disabledCacheReadsEveryTime() {
+        cache.setEnabled(false);
+        read();
+        read();
+        answerRead((byte) 1);
+        verify(gatt, timeout(1000).times(2)).readCharacteristic(charA);
+        assertEquals(0, cache.coalescedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeTtl() {
+        cache.setTtl(SERVICE, CHAR_A, -1L);
+    }
+}
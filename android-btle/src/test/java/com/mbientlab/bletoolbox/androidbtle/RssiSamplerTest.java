@@ -0,0 +1,252 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class RssiSamplerTest {
+    private static final UUID SERVICE = UUID.fromString("326a9000-85cb-9195-d9dd-464cfbbae75a"),
+            CHAR_A = UUID.fromString("326a9001-85cb-9195-d9dd-464cfbbae75a");
+
+    private MockedStatic<SystemClock> clock;
+    private long now = 10000L;
+
+    private GattRuntime runtime;
+    private ScheduledFuture<?> future;
+    // Sampler wakeups, the first one scheduled after start() identifies the sampler's runnable
+    private Runnable tick;
+    private final List<Long> wakeups = new ArrayList<>();
+
+    private BluetoothGatt gatt;
+    private BluetoothGattCharacteristic charA;
+    private final List<Integer> samples = new ArrayList<>();
+    private RssiSampler sampler;
+
+    @Before
+    public void setup() {
+        clock = mockStatic(SystemClock.class);
+        clock.when(SystemClock::elapsedRealtime).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) {
+                return now;
+            }
+        });
+
+        future = mock(ScheduledFuture.class);
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        doAnswer(new Answer<ScheduledFuture<?>>() {
+            @Override
+            public ScheduledFuture<?> answer(InvocationOnMock invocation) {
+                Runnable task = invocation.getArgument(0);
+                if (tick == null && sampler != null && sampler.isRunning()) {
+                    tick = task;
+                }
+                if (task == tick) {
+                    wakeups.add(invocation.<Long>getArgument(1));
+                }
+                return future;
+            }
+        }).when(scheduler).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+
+        runtime = spy(new GattRuntime(1));
+        doReturn(scheduler).when(runtime).scheduler();
+
+        sampler = new RssiSampler(runtime, 4).setSampleListener(new RssiSampler.SampleListener() {
+            @Override
+            public void onSample(BluetoothDevice device, int rssi, long timestamp) {
+                samples.add(rssi);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        sampler.stop();
+        runtime.shutdown();
+        clock.close();
+    }
+
+    private void connect() {
+        BluetoothDevice device = mock(BluetoothDevice.class);
+        gatt = mock(BluetoothGatt.class);
+        BluetoothGattService service = mock(BluetoothGattService.class);
+        charA = mock(BluetoothGattCharacteristic.class);
+
+        when(device.connectGatt(any(), anyBoolean(), any())).thenReturn(gatt);
+        when(gatt.getDevice()).thenReturn(device);
+        when(gatt.getService(SERVICE)).thenReturn(service);
+        when(service.getCharacteristic(CHAR_A)).thenReturn(charA);
+        when(gatt.readRemoteRssi()).thenReturn(true);
+        when(gatt.writeCharacteristic(any())).thenReturn(true);
+
+        new BluetoothLeGattServer(runtime, device, null, false, 10000L);
+        runtime.gattCallback.onServicesDiscovered(gatt, 0);
+    }
+
+    private long lastWakeup() {
+        return wakeups.get(wakeups.size() - 1);
+    }
+
+    // Runs the wakeup and answers the poll it issues
+    private void sample(int rssi) {
+        tick.run();
+        runtime.gattCallback.onReadRemoteRssi(gatt, rssi, 0);
+    }
+
+    @Test
+    public void idleWithoutConnectionsWakesOncePerInterval() {
+        sampler.setInterval(500L);
+        sampler.start();
+        assertEquals(0L, lastWakeup());
+
+        tick.run();
+        assertEquals(500L, lastWakeup());
+        assertEquals(2, wakeups.size());
+    }
+
+    @Test
+    public void sleepsUntilNextDeviceIsDue() {
+        connect();
+        sampler.setInterval(1000L);
+        sampler.start();
+
+        sample(-60);
+        assertEquals(1, samples.size());
+        verify(gatt, times(1)).readRemoteRssi();
+        assertEquals(1000L, lastWakeup());
+
+        // Woken early, goes back to sleep for the rest of the interval
+        now += 400L;
+        tick.run();
+        verify(gatt, times(1)).readRemoteRssi();
+        assertEquals(600L, lastWakeup());
+
+        now += 600L;
+        sample(-61);
+        assertEquals(2, samples.size());
+        verify(gatt, times(2)).readRemoteRssi();
+    }
+
+    @Test
+    public void busyQueueDelaysPoll() {
+        connect();
+        sampler.start();
+
+        BluetoothLeGattServer server = runtime.activeObjects.get(gatt.getDevice());
+        server.writeCharacteristicAsync(SERVICE, CHAR_A, BluetoothLeGattServer.WriteType.DEFAULT, new byte[] {1});
+        tick.run();
+        verify(gatt, never()).readRemoteRssi();
+        assertEquals(50L, lastWakeup());
+
+        runtime.gattCallback.onCharacteristicWrite(gatt, charA, 0);
+        tick.run();
+        verify(gatt).readRemoteRssi();
+    }
+
+    @Test
+    public void adaptiveIntervalDoublesWhileStable() {
+        connect();
+        sampler.setAdaptiveInterval(100L, 800L, 2);
+        sampler.start();
+
+        long[] expected = {100L, 200L, 400L, 800L, 800L};
+        int[] rssis = {-60, -61, -60, -62, -61};
+        for (int i = 0; i < rssis.length; i++) {
+            sample(rssis[i]);
+            assertEquals("Sample " + i, expected[i], lastWakeup());
+            now += lastWakeup();
+        }
+
+        // Movement beyond the threshold drops back to the min
+        sample(-70);
+        assertEquals(100L, lastWakeup());
+    }
+
+    @Test
+    public void stopCancelsWakeup() {
+        sampler.start();
+        assertTrue(sampler.isRunning());
+
+        sampler.stop();
+        assertFalse(sampler.isRunning());
+        verify(future).cancel(false);
+    }
+
+    @Test
+    public void seriesKeepsNewestSamples() {
+        RssiSampler.RssiSeries series = new RssiSampler.RssiSeries(3);
+        assertTrue(Float.isNaN(series.mean()));
+
+        for (int i = 1; i <= 5; i++) {
+            series.add(i * 100L, -i);
+        }
+        assertEquals(3, series.size());
+        assertEquals(3, series.capacity());
+        assertEquals(-3, series.rssi(0));
+        assertEquals(300L, series.timestamp(0));
+        assertEquals(-5, series.latest());
+        assertEquals(-4f, series.mean(), 0.0001f);
+
+        int[] rssis = new int[2];
+        long[] timestamps = new long[2];
+        assertEquals(2, series.copy(timestamps, rssis));
+        assertArrayEquals(new int[] {-4, -5}, rssis);
+        assertArrayEquals(new long[] {400L, 500L}, timestamps);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void seriesRejectsMissingSample() {
+        RssiSampler.RssiSeries series = new RssiSampler.RssiSeries(3);
+        series.add(100L, -50);
+        series.rssi(1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMaxIntervalBelowMin() {
+        sampler.setAdaptiveInterval(200L, 100L, 2);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014-2015 MbientLab Inc. All rights reserved.
+ *
+ * IMPORTANT: Your use of this Software is limited to those specific rights granted under the terms of a software
+ * license agreement between the user who downloaded the software, his/her employer (which must be your
+ * employer) and MbientLab Inc, (the "License").  You may not use this Software unless you agree to abide by the
+ * terms of the License which can be found at www.mbientlab.com/terms.  The License limits your use, and you
+ * acknowledge, that the Software may be modified, copied, and distributed when used in conjunction with an
+ * MbientLab Inc, product.  Other than for the foregoing purpose, you may not use, reproduce, copy, prepare
+ * derivative works of, modify, distribute, perform, display or sell this Software and/or its documentation for any
+ * purpose.
+ *
+ * YOU FURTHER ACKNOWLEDGE AND AGREE THAT THE SOFTWARE AND DOCUMENTATION ARE PROVIDED "AS IS" WITHOUT WARRANTY
+ * OF ANY KIND, EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION, ANY WARRANTY OF MERCHANTABILITY, TITLE,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE. IN NO EVENT SHALL MBIENTLAB OR ITS LICENSORS BE LIABLE OR
+ * OBLIGATED UNDER CONTRACT, NEGLIGENCE, STRICT LIABILITY, CONTRIBUTION, BREACH OF WARRANTY, OR OTHER LEGAL EQUITABLE
+ * THEORY ANY DIRECT OR INDIRECT DAMAGES OR EXPENSES INCLUDING BUT NOT LIMITED TO ANY INCIDENTAL, SPECIAL, INDIRECT,
+ * PUNITIVE OR CONSEQUENTIAL DAMAGES, LOST PROFITS OR LOST DATA, COST OF PROCUREMENT OF SUBSTITUTE GOODS, TECHNOLOGY,
+ * SERVICES, OR ANY CLAIMS BY THIRD PARTIES (INCLUDING BUT NOT LIMITED TO ANY DEFENSE THEREOF), OR OTHER SIMILAR COSTS.
+ *
+ * Should you have any questions regarding your right to use this Software, contact MbientLab via email:
+ * hello@mbientlab.com.
+ */
+
+package com.mbientlab.bletoolbox.androidbtle;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.MockedConstruction;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import bolts.CancellationTokenSource;
+import bolts.Task;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class ScanConnectorTest {
+    private static final long NO_TIMEOUT = 60000L;
+
+    private MockedConstruction<ScanSettings.Builder> settingsBuilder;
+    private Context ctx;
+    private BluetoothAdapter adapter;
+    private BluetoothLeScanner scanner;
+    private GattRuntime runtime;
+
+    @Before
+    public void setup() {
+        // Framework builders are stubs in local tests, let the chained calls return the builder
+        settingsBuilder = mockConstruction(ScanSettings.Builder.class, withSettings().defaultAnswer(RETURNS_SELF));
+
+        ctx = mock(Context.class);
+        BluetoothManager manager = mock(BluetoothManager.class);
+        adapter = mock(BluetoothAdapter.class);
+        scanner = mock(BluetoothLeScanner.class);
+        when(ctx.getSystemService(Context.BLUETOOTH_SERVICE)).thenReturn(manager);
+        when(manager.getAdapter()).thenReturn(adapter);
+        when(adapter.getBluetoothLeScanner()).thenReturn(scanner);
+
+        runtime = new GattRuntime(1);
+    }
+
+    @After
+    public void tearDown() {
+        runtime.shutdown();
+        settingsBuilder.close();
+    }
+
+    private ScanCallback scanCallback() {
+        ArgumentCaptor<ScanCallback> captor = ArgumentCaptor.forClass(ScanCallback.class);
+        verify(scanner).startScan(any(), any(), captor.capture());
+        return captor.getValue();
+    }
+
+    private static ScanResult advertisement(BluetoothDevice device, int rssi) {
+        ScanResult result = mock(ScanResult.class);
+        when(result.getDevice()).thenReturn(device);
+        when(result.getRssi()).thenReturn(rssi);
+        return result;
+    }
+
+    @Test
+    public void connectsToFirstMatchThroughSuppliedRuntime() {
+        BluetoothDevice far = mock(BluetoothDevice.class), near = mock(BluetoothDevice.class);
+        BluetoothGatt gatt = mock(BluetoothGatt.class);
+        when(near.connectGatt(any(), anyBoolean(), any())).thenReturn(gatt);
+        when(gatt.getDevice()).thenReturn(near);
+
+        Task<BluetoothLeGattServer> task = ScanConnector.scanAndConnect(runtime, ctx, null, new ScanConnector.AdvertisementMatcher() {
+            @Override
+            public boolean matches(BluetoothDevice device, int rssi, byte[] scanRecord) {
+                return rssi > -70;
+            }
+        }, NO_TIMEOUT, NO_TIMEOUT, null);
+        ScanCallback callback = scanCallback();
+
+        callback.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, advertisement(far, -90));
+        verify(scanner, never()).stopScan(any(ScanCallback.class));
+        verify(far, never()).connectGatt(any(), anyBoolean(), any());
+
+        callback.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, advertisement(near, -50));
+        verify(scanner).stopScan(callback);
+        assertTrue(runtime.activeObjects.containsKey(near));
+
+        // Later advertisements are ignored once a device is picked
+        callback.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, advertisement(near, -50));
+        verify(near, times(1)).connectGatt(any(), anyBoolean(), any());
+
+        runtime.gattCallback.onServicesDiscovered(gatt, 0);
+        assertSame(runtime.activeObjects.get(near), task.getResult());
+    }
+
+    @Test
+    public void failsWhenNothingMatchesInTime() throws InterruptedException {
+        Task<BluetoothLeGattServer> task = ScanConnector.scanAndConnect(runtime, ctx, null, null, 50L, NO_TIMEOUT, null);
+        ScanCallback callback = scanCallback();
+
+        assertTrue(task.waitForCompletion(1, TimeUnit.SECONDS));
+        assertTrue(task.getError() instanceof TimeoutException);
+        verify(scanner).stopScan(callback);
+    }
+
+    @Test
+    public void cancelStopsScan() {
+        CancellationTokenSource cts = new CancellationTokenSource();
+        Task<BluetoothLeGattServer> task = ScanConnector.scanAndConnect(runtime, ctx, null, null, NO_TIMEOUT, NO_TIMEOUT, cts.getToken());
+        ScanCallback callback = scanCallback();
+
+        cts.cancel();
+        assertTrue(task.isCancelled());
+        verify(scanner).stopScan(callback);
+    }
+
+    @Test
+    public void scanFailureFailsTask() {
+        Task<BluetoothLeGattServer> task = ScanConnector.scanAndConnect(runtime, ctx, null, null, NO_TIMEOUT, NO_TIMEOUT, null);
+        scanCallback().onScanFailed(ScanCallback.SCAN_FAILED_INTERNAL_ERROR);
+
+        assertTrue(task.isFaulted());
+        assertTrue(task.getError().getMessage().contains("error code"));
+    }
+
+    @Test
+    public void disabledAdapterFailsImmediately() {
+        when(adapter.getBluetoothLeScanner()).thenReturn(null);
+        Task<BluetoothLeGattServer> task = ScanConnector.scanAndConnect(runtime, ctx, null, null, NO_TIMEOUT, NO_TIMEOUT, null);
+
+        assertTrue(task.isFaulted());
+        verifyNoInteractions(scanner);
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2015 MbientLab Inc. All rights reserved.
+ */
+
+package com.mbientlab.bletoolbox.scanner;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+/**
+ * {@link BleScanner.Callback} stage that drops repeated advertisements before they reach the wrapped callback.  An
+ * advertisement is forwarded only if the device is new, its payload changed, its RSSI moved by at least the threshold
+ * since the last forwarded advertisement, or the repeat window has passed.  Devices are tracked by a 64-bit hash of the
+ * payload in primitive arrays keyed by the packed MAC address, so suppressed advertisements do not allocate.
+ */
+public class AdvertisementDeduplicator implements BleScanner.Callback {
+    /** Default time identical advertisements are suppressed for, in milliseconds */
+    public static final long DEFAULT_REPEAT_WINDOW= 1000L;
+    /** Default RSSI change that is always forwarded, in dBm */
+    public static final int DEFAULT_RSSI_THRESHOLD= 5;
+
+    private static final long EMPTY= -1L;
+    private static final long FNV_OFFSET= 0xcbf29ce484222325L, FNV_PRIME= 0x100000001b3L;
+
+    private final BleScanner.Callback callback;
+    private long repeatWindow= DEFAULT_REPEAT_WINDOW;
+    private int rssiThreshold= DEFAULT_RSSI_THRESHOLD;
+
+    private long[] keys, hashes, lastForwarded;
+    private int[] lastRssi;
+    private int size, mask;
+
+    private long received, forwarded, suppressed;
+
+    /**
+     * Creates a stage in front of a callback
+     * @param callback    Receives the advertisements that pass the stage
+     */
+    public AdvertisementDeduplicator(BleScanner.Callback callback) {
+        this.callback= callback;
+        allocate(64);
+    }
+
+    private void allocate(int capacity) {
+        keys= new long[capacity];
+        hashes= new long[capacity];
+        lastForwarded= new long[capacity];
+        lastRssi= new int[capacity];
+        mask= capacity - 1;
+        size= 0;
+        for (int i= 0; i < capacity; i++) {
+            keys[i]= EMPTY;
+        }
+    }
+
+    /**
+     * Sets how long identical advertisements from a device are suppressed for
+     * @param window    Repeat window, in milliseconds
+     * @return Calling object
+     */
+    public synchronized AdvertisementDeduplicator setRepeatWindow(long window) {
+        repeatWindow= window;
+        return this;
+    }
+
+    /**
+     * Sets how far the RSSI must move from the last forwarded value for an otherwise identical advertisement to pass
+     * @param threshold    RSSI change, in dBm
+     * @return Calling object
+     */
+    public synchronized AdvertisementDeduplicator setRssiThreshold(int threshold) {
+        rssiThreshold= threshold;
+        return this;
+    }
+
+    @Override
+    public void onDeviceFound(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        if (accept(DeviceRegistry.packAddress(device.getAddress()), rssi, scanRecord, SystemClock.elapsedRealtime())) {
+            callback.onDeviceFound(device, rssi, scanRecord);
+        }
+    }
+
+    @Override
+    public void onScanFailed(int errorCode) {
+        callback.onScanFailed(errorCode);
+    }
+
+    private static long hash(byte[] scanRecord) {
+        long hash= FNV_OFFSET;
+        if (scanRecord != null) {
+            for (byte b : scanRecord) {
+                hash= (hash ^ (b & 0xff)) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    private int slotOf(long key) {
+        long hash= key * 0x9e3779b97f4a7c15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private synchronized boolean accept(long key, int rssi, byte[] scanRecord, long now) {
+        received++;
+
+        long payloadHash= hash(scanRecord);
+        int i= slotOf(key);
+        while (keys[i] != EMPTY && keys[i] != key) {
+            i= (i + 1) & mask;
+        }
+
+        if (keys[i] == key && hashes[i] == payloadHash && now - lastForwarded[i] < repeatWindow &&
+                Math.abs(rssi - lastRssi[i]) < rssiThreshold) {
+            suppressed++;
+            return false;
+        }
+
+        if (keys[i] == EMPTY) {
+            if ((size + 1) * 2 > keys.length) {
+                rebuild(now);
+                return acceptNew(key, payloadHash, rssi, now);
+            }
+            keys[i]= key;
+            size++;
+        }
+        hashes[i]= payloadHash;
+        lastRssi[i]= rssi;
+        lastForwarded[i]= now;
+        forwarded++;
+        return true;
+    }
+
+    private boolean acceptNew(long key, long payloadHash, int rssi, long now) {
+        int i= slotOf(key);
+        while (keys[i] != EMPTY) {
+            i= (i + 1) & mask;
+        }
+        keys[i]= key;
+        hashes[i]= payloadHash;
+        lastRssi[i]= rssi;
+        lastForwarded[i]= now;
+        size++;
+        forwarded++;
+        return true;
+    }
+
+    // Devices whose window has passed would be forwarded anyway, so they are dropped instead of copied
+    private void rebuild(long now) {
+        long[] oldKeys= keys, oldHashes= hashes, oldForwarded= lastForwarded;
+        int[] oldRssi= lastRssi;
+
+        int live= 0;
+        for (int j= 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != EMPTY && now - oldForwarded[j] < repeatWindow) {
+                live++;
+            }
+        }
+
+        allocate(live * 4 > oldKeys.length ? oldKeys.length * 2 : oldKeys.length);
+        for (int j= 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != EMPTY && now - oldForwarded[j] < repeatWindow) {
+                int i= slotOf(oldKeys[j]);
+                while (keys[i] != EMPTY) {
+                    i= (i + 1) & mask;
+                }
+                keys[i]= oldKeys[j];
+                hashes[i]= oldHashes[j];
+                lastForwarded[i]= oldForwarded[j];
+                lastRssi[i]= oldRssi[j];
+                size++;
+            }
+        }
+    }
+
+    /**
+     * Forgets every device so the next advertisement from each one is forwarded, e.g. when a new scan starts
+     */
+    public synchronized void clear() {
+        for (int i= 0; i < keys.length; i++) {
+            keys[i]= EMPTY;
+        }
+        size= 0;
+    }
+
+    /**
+     * Retrieves how many advertisements the stage has received
+     * @return Received count
+     */
+    public synchronized long receivedCount() {
+        return received;
+    }
+
+    /**
+     * Retrieves how many advertisements were passed to the wrapped callback
+     * @return Forwarded count
+     */
+    public synchronized long forwardedCount() {
+        return forwarded;
+    }
+
+    /**
+     * Retrieves how many advertisements were dropped as repeats
+     * @return Suppressed count
+     */
+    public synchronized long suppressedCount() {
+        return suppressed;
+    }
+
+    /**
+     * Sets the received, forwarded, and suppressed counts back to 0
+     */
+    public synchronized void resetCounters() {
+        received= 0;
+        forwarded= 0;
+        suppressed= 0;
+    }
+}
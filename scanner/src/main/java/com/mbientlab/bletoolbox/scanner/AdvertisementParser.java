@@ -0,0 +1,409 @@
+/*
+ * Copyright 2015 MbientLab Inc. All rights reserved.
+ */
+
+package com.mbientlab.bletoolbox.scanner;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Parses the AD structures of a Bluetooth LE advertisement or scan response in place.  Results are exposed as offsets
+ * into the parsed array and as primitive UUID halves, so a parser instance can be reused for every scan result without
+ * allocating.  Instances are not thread safe; use one parser per scan callback thread.
+ */
+public final class AdvertisementParser {
+    /** AD type of the incomplete list of 16-bit service UUIDs */
+    public static final int TYPE_INCOMPLETE_16BIT_UUIDS= 0x02;
+    /** AD type of the complete list of 16-bit service UUIDs */
+    public static final int TYPE_COMPLETE_16BIT_UUIDS= 0x03;
+    /** AD type of the incomplete list of 32-bit service UUIDs */
+    public static final int TYPE_INCOMPLETE_32BIT_UUIDS= 0x04;
+    /** AD type of the complete list of 32-bit service UUIDs */
+    public static final int TYPE_COMPLETE_32BIT_UUIDS= 0x05;
+    /** AD type of the incomplete list of 128-bit service UUIDs */
+    public static final int TYPE_INCOMPLETE_128BIT_UUIDS= 0x06;
+    /** AD type of the complete list of 128-bit service UUIDs */
+    public static final int TYPE_COMPLETE_128BIT_UUIDS= 0x07;
+    /** AD type of the shortened local name */
+    public static final int TYPE_SHORTENED_LOCAL_NAME= 0x08;
+    /** AD type of the complete local name */
+    public static final int TYPE_COMPLETE_LOCAL_NAME= 0x09;
+    /** AD type of the TX power level */
+    public static final int TYPE_TX_POWER_LEVEL= 0x0a;
+    /** AD type of service data keyed by a 16-bit UUID */
+    public static final int TYPE_SERVICE_DATA_16BIT= 0x16;
+    /** AD type of service data keyed by a 32-bit UUID */
+    public static final int TYPE_SERVICE_DATA_32BIT= 0x20;
+    /** AD type of service data keyed by a 128-bit UUID */
+    public static final int TYPE_SERVICE_DATA_128BIT= 0x21;
+    /** AD type of manufacturer specific data */
+    public static final int TYPE_MANUFACTURER_DATA= 0xff;
+
+    // Short UUIDs are offsets into the Bluetooth base UUID 00000000-0000-1000-8000-00805f9b34fb
+    private static final long BASE_UUID_MSB= 0x0000000000001000L, BASE_UUID_LSB= 0x800000805f9b34fbL;
+    private static final Charset UTF8= Charset.forName("UTF-8");
+
+    private byte[] record;
+    private int uuidCount, serviceDataCount, manufacturerDataCount;
+    private long[] uuidMsb= new long[4], uuidLsb= new long[4];
+    private long[] serviceDataMsb= new long[2], serviceDataLsb= new long[2];
+    private int[] serviceDataOffset= new int[2], serviceDataLength= new int[2];
+    private int[] manufacturerId= new int[2], manufacturerOffset= new int[2], manufacturerLength= new int[2];
+    private int nameOffset, nameLength;
+    private boolean completeName, hasTxPower;
+    private int txPower;
+
+    /**
+     * Parses a complete advertising payload
+     * @param record    Raw advertisement bytes, e.g. the scanRecord parameter of onLeScan or ScanRecord.getBytes()
+     * @return True if every AD structure was well formed, false if parsing stopped at a malformed structure
+     */
+    public boolean parse(byte[] record) {
+        return parse(record, 0, record.length);
+    }
+
+    /**
+     * Parses part of an array as an advertising payload
+     * @param record    Array holding the advertisement
+     * @param offset    Position of the first AD structure
+     * @param length    Number of bytes to parse
+     * @return True if every AD structure was well formed, false if parsing stopped at a malformed structure
+     */
+    public boolean parse(byte[] record, int offset, int length) {
+        this.record= record;
+        uuidCount= 0;
+        serviceDataCount= 0;
+        manufacturerDataCount= 0;
+        nameOffset= -1;
+        nameLength= 0;
+        completeName= false;
+        hasTxPower= false;
+
+        int pos= offset, end= offset + length;
+        while (pos < end) {
+            int adLength= record[pos] & 0xff;
+            if (adLength == 0) {
+                // Remaining bytes are zero padding
+                return true;
+            }
+            if (pos + 1 + adLength > end) {
+                return false;
+            }
+
+            int type= record[pos + 1] & 0xff, data= pos + 2, dataLength= adLength - 1;
+            switch (type) {
+                case TYPE_INCOMPLETE_16BIT_UUIDS:
+                case TYPE_COMPLETE_16BIT_UUIDS:
+                    for (int i= 0; i + 2 <= dataLength; i+= 2) {
+                        addUuid(BASE_UUID_MSB | (readUint(data + i, 2) << 32), BASE_UUID_LSB);
+                    }
+                    break;
+                case TYPE_INCOMPLETE_32BIT_UUIDS:
+                case TYPE_COMPLETE_32BIT_UUIDS:
+                    for (int i= 0; i + 4 <= dataLength; i+= 4) {
+                        addUuid(BASE_UUID_MSB | (readUint(data + i, 4) << 32), BASE_UUID_LSB);
+                    }
+                    break;
+                case TYPE_INCOMPLETE_128BIT_UUIDS:
+                case TYPE_COMPLETE_128BIT_UUIDS:
+                    for (int i= 0; i + 16 <= dataLength; i+= 16) {
+                        addUuid(readUint(data + i + 8, 8), readUint(data + i, 8));
+                    }
+                    break;
+                case TYPE_SHORTENED_LOCAL_NAME:
+                case TYPE_COMPLETE_LOCAL_NAME:
+                    nameOffset= data;
+                    nameLength= dataLength;
+                    completeName= type == TYPE_COMPLETE_LOCAL_NAME;
+                    break;
+                case TYPE_TX_POWER_LEVEL:
+                    if (dataLength >= 1) {
+                        hasTxPower= true;
+                        txPower= record[data];
+                    }
+                    break;
+                case TYPE_SERVICE_DATA_16BIT:
+                    if (dataLength >= 2) {
+                        addServiceData(BASE_UUID_MSB | (readUint(data, 2) << 32), BASE_UUID_LSB, data + 2, dataLength - 2);
+                    }
+                    break;
+                case TYPE_SERVICE_DATA_32BIT:
+                    if (dataLength >= 4) {
+                        addServiceData(BASE_UUID_MSB | (readUint(data, 4) << 32), BASE_UUID_LSB, data + 4, dataLength - 4);
+                    }
+                    break;
+                case TYPE_SERVICE_DATA_128BIT:
+                    if (dataLength >= 16) {
+                        addServiceData(readUint(data + 8, 8), readUint(data, 8), data + 16, dataLength - 16);
+                    }
+                    break;
+                case TYPE_MANUFACTURER_DATA:
+                    if (dataLength >= 2) {
+                        addManufacturerData((int) readUint(data, 2), data + 2, dataLength - 2);
+                    }
+                    break;
+            }
+
+            pos+= adLength + 1;
+        }
+        return true;
+    }
+
+    private long readUint(int offset, int size) {
+        long value= 0;
+        for (int i= size - 1; i >= 0; i--) {
+            value= (value << 8) | (record[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    private void addUuid(long msb, long lsb) {
+        if (uuidCount == uuidMsb.length) {
+            uuidMsb= grow(uuidMsb);
+            uuidLsb= grow(uuidLsb);
+        }
+        uuidMsb[uuidCount]= msb;
+        uuidLsb[uuidCount]= lsb;
+        uuidCount++;
+    }
+
+    private void addServiceData(long msb, long lsb, int offset, int length) {
+        if (serviceDataCount == serviceDataMsb.length) {
+            serviceDataMsb= grow(serviceDataMsb);
+            serviceDataLsb= grow(serviceDataLsb);
+            serviceDataOffset= grow(serviceDataOffset);
+            serviceDataLength= grow(serviceDataLength);
+        }
+        serviceDataMsb[serviceDataCount]= msb;
+        serviceDataLsb[serviceDataCount]= lsb;
+        serviceDataOffset[serviceDataCount]= offset;
+        serviceDataLength[serviceDataCount]= length;
+        serviceDataCount++;
+    }
+
+    private void addManufacturerData(int id, int offset, int length) {
+        if (manufacturerDataCount == manufacturerId.length) {
+            manufacturerId= grow(manufacturerId);
+            manufacturerOffset= grow(manufacturerOffset);
+            manufacturerLength= grow(manufacturerLength);
+        }
+        manufacturerId[manufacturerDataCount]= id;
+        manufacturerOffset[manufacturerDataCount]= offset;
+        manufacturerLength[manufacturerDataCount]= length;
+        manufacturerDataCount++;
+    }
+
+    private static long[] grow(long[] array) {
+        long[] copy= new long[array.length * 2];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] copy= new int[array.length * 2];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+    /**
+     * Retrieves the array that was last parsed, which the offsets returned by this object refer to
+     * @return Parsed advertisement
+     */
+    public byte[] record() {
+        return record;
+    }
+
+    /**
+     * Retrieves how many service UUIDs were advertised, counting 16, 32, and 128-bit UUIDs
+     * @return Number of service UUIDs
+     */
+    public int serviceUuidCount() {
+        return uuidCount;
+    }
+
+    /**
+     * Retrieves the most significant bits of a service UUID, short UUIDs are expanded with the Bluetooth base UUID
+     * @param index    Position of the UUID, between 0 and {@link #serviceUuidCount()}
+     * @return Most significant 64 bits
+     */
+    public long serviceUuidMsb(int index) {
+        return uuidMsb[checkIndex(index, uuidCount)];
+    }
+
+    /**
+     * Retrieves the least significant bits of a service UUID, short UUIDs are expanded with the Bluetooth base UUID
+     * @param index    Position of the UUID, between 0 and {@link #serviceUuidCount()}
+     * @return Least significant 64 bits
+     */
+    public long serviceUuidLsb(int index) {
+        return uuidLsb[checkIndex(index, uuidCount)];
+    }
+
+    /**
+     * Creates a UUID object for an advertised service UUID.  Unlike the other getters, this method allocates
+     * @param index    Position of the UUID, between 0 and {@link #serviceUuidCount()}
+     * @return Service UUID
+     */
+    public UUID serviceUuid(int index) {
+        checkIndex(index, uuidCount);
+        return new UUID(uuidMsb[index], uuidLsb[index]);
+    }
+
+    /**
+     * Checks if a service UUID was advertised
+     * @param uuid    Service UUID to look for
+     * @return True if the UUID is in the advertisement
+     */
+    public boolean hasServiceUuid(UUID uuid) {
+        long msb= uuid.getMostSignificantBits(), lsb= uuid.getLeastSignificantBits();
+        for (int i= 0; i < uuidCount; i++) {
+            if (uuidMsb[i] == msb && uuidLsb[i] == lsb) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Retrieves how many service data structures were advertised
+     * @return Number of service data entries
+     */
+    public int serviceDataCount() {
+        return serviceDataCount;
+    }
+
+    /**
+     * Retrieves the most significant bits of the UUID a service data entry belongs to
+     * @param index    Position of the entry, between 0 and {@link #serviceDataCount()}
+     * @return Most significant 64 bits
+     */
+    public long serviceDataUuidMsb(int index) {
+        return serviceDataMsb[checkIndex(index, serviceDataCount)];
+    }
+
+    /**
+     * Retrieves the least significant bits of the UUID a service data entry belongs to
+     * @param index    Position of the entry, between 0 and {@link #serviceDataCount()}
+     * @return Least significant 64 bits
+     */
+    public long serviceDataUuidLsb(int index) {
+        return serviceDataLsb[checkIndex(index, serviceDataCount)];
+    }
+
+    /**
+     * Retrieves where a service data entry's payload starts in {@link #record()}
+     * @param index    Position of the entry, between 0 and {@link #serviceDataCount()}
+     * @return Payload offset
+     */
+    public int serviceDataOffset(int index) {
+        return serviceDataOffset[checkIndex(index, serviceDataCount)];
+    }
+
+    /**
+     * Retrieves the size of a service data entry's payload
+     * @param index    Position of the entry, between 0 and {@link #serviceDataCount()}
+     * @return Payload length, in bytes
+     */
+    public int serviceDataLength(int index) {
+        return serviceDataLength[checkIndex(index, serviceDataCount)];
+    }
+
+    /**
+     * Retrieves how many manufacturer specific data structures were advertised
+     * @return Number of manufacturer data entries
+     */
+    public int manufacturerDataCount() {
+        return manufacturerDataCount;
+    }
+
+    /**
+     * Retrieves the company identifier of a manufacturer data entry
+     * @param index    Position of the entry, between 0 and {@link #manufacturerDataCount()}
+     * @return Bluetooth SIG company identifier
+     */
+    public int manufacturerId(int index) {
+        return manufacturerId[checkIndex(index, manufacturerDataCount)];
+    }
+
+    /**
+     * Retrieves where a manufacturer data entry's payload, excluding the company identifier, starts in {@link #record()}
+     * @param index    Position of the entry, between 0 and {@link #manufacturerDataCount()}
+     * @return Payload offset
+     */
+    public int manufacturerDataOffset(int index) {
+        return manufacturerOffset[checkIndex(index, manufacturerDataCount)];
+    }
+
+    /**
+     * Retrieves the size of a manufacturer data entry's payload, excluding the company identifier
+     * @param index    Position of the entry, between 0 and {@link #manufacturerDataCount()}
+     * @return Payload length, in bytes
+     */
+    public int manufacturerDataLength(int index) {
+        return manufacturerLength[checkIndex(index, manufacturerDataCount)];
+    }
+
+    /**
+     * Checks if the advertisement has a local name
+     * @return True if a shortened or complete local name was advertised
+     */
+    public boolean hasLocalName() {
+        return nameOffset >= 0;
+    }
+
+    /**
+     * Checks if the advertised local name is the complete name rather than a shortened one
+     * @return True if the complete local name was advertised
+     */
+    public boolean isCompleteLocalName() {
+        return completeName;
+    }
+
+    /**
+     * Retrieves where the local name starts in {@link #record()}
+     * @return Name offset, -1 if no name was advertised
+     */
+    public int localNameOffset() {
+        return nameOffset;
+    }
+
+    /**
+     * Retrieves the size of the UTF-8 encoded local name
+     * @return Name length, in bytes
+     */
+    public int localNameLength() {
+        return nameLength;
+    }
+
+    /**
+     * Decodes the local name into a string.  Unlike the other getters, this method allocates
+     * @return Local name, null if no name was advertised
+     */
+    public String localName() {
+        return nameOffset < 0 ? null : new String(record, nameOffset, nameLength, UTF8);
+    }
+
+    /**
+     * Checks if the advertisement has a TX power level
+     * @return True if the TX power level was advertised
+     */
+    public boolean hasTxPower() {
+        return hasTxPower;
+    }
+
+    /**
+     * Retrieves the advertised TX power level
+     * @return TX power, in dBm
+     */
+    public int txPower() {
+        return txPower;
+    }
+
+    private static int checkIndex(int index, int count) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for " + count + " entries");
+        }
+        return index;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2015 MbientLab Inc. All rights reserved.
+ */
+
+package com.mbientlab.bletoolbox.scanner;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Bluetooth LE scanner without any UI, suitable for use in a Service or background worker.  Filtering is done by the
+ * controller on API 21+ and by parsing the advertisement on older platforms.  The caller is responsible for ensuring
+ * the adapter is enabled and the scan permissions are granted before calling {@link #start()}.
+ */
+public class BleScanner {
+    /**
+     * Receives scan results.  Methods are called from a Bluetooth binder thread.
+     */
+    public interface Callback {
+        /**
+         * Called when an advertisement matching the filters is received
+         * @param device        Device that sent the advertisement
+         * @param rssi          Received signal strength, in dBm
+         * @param scanRecord    Raw advertisement bytes, can be parsed with {@link AdvertisementParser}
+         */
+        void onDeviceFound(BluetoothDevice device, int rssi, byte[] scanRecord);
+
+        /**
+         * Called when the scan could not be started.  The scanner is stopped when this is called.
+         * @param errorCode    One of the ScanCallback.SCAN_FAILED_* constants
+         */
+        void onScanFailed(int errorCode);
+    }
+
+    private final BluetoothAdapter btAdapter;
+    private final Callback callback;
+    private UUID[] filterServiceUuids= new UUID[0];
+    private ScanSettings settings;
+    private boolean isScanning;
+
+    private BluetoothAdapter.LeScanCallback deprecatedScanCallback= null;
+    private ScanCallback api21ScanCallback= null;
+    private long api21ReportDelay;
+
+    /**
+     * Creates a scanner for an adapter
+     * @param btAdapter    Adapter to scan with
+     * @param callback     Receives the scan results
+     */
+    public BleScanner(BluetoothAdapter btAdapter, Callback callback) {
+        this.btAdapter= btAdapter;
+        this.callback= callback;
+    }
+
+    /**
+     * Sets which services a device must advertise to be reported.  Takes effect on the next call to {@link #start()}
+     * @param uuids    Service UUIDs to scan for, null or empty to report all devices
+     * @return Calling object
+     */
+    public synchronized BleScanner setFilterServiceUuids(UUID ... uuids) {
+        filterServiceUuids= uuids == null ? new UUID[0] : uuids.clone();
+        return this;
+    }
+
+    /**
+     * Sets the scan mode, match mode, callback type, and report delay used on API 21+.  Ignored on older platforms.
+     * Takes effect on the next call to {@link #start()}
+     * @param settings    Scan settings, null to use the defaults
+     * @return Calling object
+     */
+    public synchronized BleScanner setScanSettings(ScanSettings settings) {
+        this.settings= settings;
+        return this;
+    }
+
+    /**
+     * Checks if a scan is in progress
+     * @return True if scanning
+     */
+    public synchronized boolean isScanning() {
+        return isScanning;
+    }
+
+    /**
+     * Starts scanning for Bluetooth LE devices, does nothing if a scan is already in progress
+     * @return True if the scan was started
+     */
+    @TargetApi(21)
+    public synchronized boolean start() {
+        if (isScanning) {
+            return false;
+        }
+
+        final UUID[] filterUuids= filterServiceUuids;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            deprecatedScanCallback= new BluetoothAdapter.LeScanCallback() {
+                // Legacy scan callbacks arrive on a single binder thread so the parser can be reused
+                private final AdvertisementParser parser= new AdvertisementParser();
+
+                @Override
+                public void onLeScan(BluetoothDevice bluetoothDevice, int rssi, byte[] scanRecord) {
+                    parser.parse(scanRecord);
+                    if (filterUuids.length == 0) {
+                        callback.onDeviceFound(bluetoothDevice, rssi, scanRecord);
+                        return;
+                    }
+                    for (UUID uuid : filterUuids) {
+                        if (parser.hasServiceUuid(uuid)) {
+                            callback.onDeviceFound(bluetoothDevice, rssi, scanRecord);
+                            return;
+                        }
+                    }
+                }
+            };
+            isScanning= btAdapter.startLeScan(deprecatedScanCallback);
+        } else {
+            // Each filter matches one service, the controller reports devices matching any of them
+            List<ScanFilter> filters= null;
+            if (filterUuids.length != 0) {
+                filters= new ArrayList<>();
+                for (UUID uuid : filterUuids) {
+                    filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(uuid)).build());
+                }
+            }
+
+            ScanSettings scanSettings= settings == null ? new ScanSettings.Builder().build() : settings;
+            api21ReportDelay= scanSettings.getReportDelayMillis();
+
+            api21ScanCallback= new ScanCallback() {
+                @Override
+                public void onScanResult(int callbackType, ScanResult result) {
+                    // Results were already filtered by the scan filters
+                    deliver(result);
+
+                    super.onScanResult(callbackType, result);
+                }
+
+                @Override
+                public void onBatchScanResults(List<ScanResult> results) {
+                    for (ScanResult it : results) {
+                        deliver(it);
+                    }
+
+                    super.onBatchScanResults(results);
+                }
+
+                @Override
+                public void onScanFailed(int errorCode) {
+                    synchronized (BleScanner.this) {
+                        if (api21ScanCallback == this) {
+                            isScanning= false;
+                        }
+                    }
+                    callback.onScanFailed(errorCode);
+
+                    super.onScanFailed(errorCode);
+                }
+
+                private void deliver(ScanResult result) {
+                    ScanRecord record= result.getScanRecord();
+                    callback.onDeviceFound(result.getDevice(), result.getRssi(), record == null ? null : record.getBytes());
+                }
+            };
+            btAdapter.getBluetoothLeScanner().startScan(filters, scanSettings, api21ScanCallback);
+            isScanning= true;
+        }
+
+        return isScanning;
+    }
+
+    /**
+     * Delivers results the controller is holding back due to a non-zero report delay.  Does nothing on API 20 and below
+     */
+    @TargetApi(21)
+    public synchronized void flushPendingResults() {
+        if (isScanning && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && api21ReportDelay > 0) {
+            btAdapter.getBluetoothLeScanner().flushPendingScanResults(api21ScanCallback);
+        }
+    }
+
+    /**
+     * Stops the Bluetooth LE scan, does nothing if no scan is in progress.  Batched results are flushed before stopping
+     */
+    @TargetApi(21)
+    public synchronized void stop() {
+        if (isScanning) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                btAdapter.stopLeScan(deprecatedScanCallback);
+            } else {
+                flushPendingResults();
+                btAdapter.getBluetoothLeScanner().stopScan(api21ScanCallback);
+            }
+
+            isScanning= false;
+        }
+    }
+}
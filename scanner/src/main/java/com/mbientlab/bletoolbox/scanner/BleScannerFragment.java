@@ -12,9 +12,6 @@ import android.app.Fragment;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.le.ScanCallback;
-import android.bluetooth.le.ScanFilter;
-import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -23,7 +20,7 @@ import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -31,11 +28,7 @@ import android.widget.AdapterView;
 import android.widget.Button;
 import android.widget.ListView;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.Locale;
 import java.util.UUID;
 
@@ -100,6 +93,19 @@ public class BleScannerFragment extends Fragment {
         void onDeviceSelected(BluetoothDevice device);
     }
 
+    /**
+     * Optional interface the container activity can implement to control how the Bluetooth LE scan is performed.  The
+     * settings are passed to the controller along with {@link ScanFilter}s built from the filter service UUIDs, so
+     * filtering happens in hardware where supported.  A non-zero report delay delivers results in batches.
+     */
+    public interface ScanSettingsProvider {
+        /**
+         * Retrieve the settings to scan with, e.g. scan mode, match mode, callback type, and report delay
+         * @return Scan settings, null to use the defaults
+         */
+        ScanSettings getScanSettings();
+    }
+
     /**
      * Value that {@link ScannerCommunicationBus#getScanDuration getScanDuration} can return if users doesn't want to
      * set their own scan duration value
@@ -108,13 +114,21 @@ public class BleScannerFragment extends Fragment {
     private static final int REQUEST_ENABLE_BT = 1, PERMISSION_REQUEST_COARSE_LOCATION= 2,
             PERMISSION_REQUEST_FINE_LOCATION= 3, PERMISSION_REQUEST_BLUETOOTH=4;
 
+    private static final long RESULT_FLUSH_INTERVAL= 100L, EVICTION_CHECK_INTERVAL= 1000L;
+
     private ScannedDeviceInfoAdapter scannedDevicesAdapter;
+    private final DeviceRegistry registry= new DeviceRegistry();
+    private ListView scannedDevices;
+    private final Object pendingLock= new Object();
+    // Double buffered so flushing does not allocate a new map each time
+    private HashMap<String, ScannedDeviceInfo> pendingResults= new HashMap<>(), flushingResults= new HashMap<>();
+    private boolean flushScheduled;
     private Button scanControl;
     private Handler mHandler;
     private boolean isScanning= false;
     private BluetoothAdapter btAdapter= null;
-    private HashSet<UUID> filterServiceUuids;
-    private HashSet<ParcelUuid> api21FilterServiceUuids;
+    private BleScanner scanner;
+    private AdvertisementDeduplicator deduplicator;
     private boolean isScanReady;
     private ScannerCommunicationBus commBus= null;
 
@@ -180,28 +194,56 @@ public class BleScannerFragment extends Fragment {
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         scannedDevicesAdapter= new ScannedDeviceInfoAdapter(getActivity(), R.id.blescan_entry_layout);
-        scannedDevicesAdapter.setNotifyOnChange(true);
         mHandler = new Handler();
         return inflater.inflate(R.layout.blescan_device_list, container);
     }
 
     @Override
     public void onViewCreated(View view, Bundle savedInstanceState) {
-        UUID[] filterUuids= commBus.getFilterServiceUuids();
+        // Every advertisement feeds the registry statistics, repeats are only dropped before they reach the list
+        deduplicator= new AdvertisementDeduplicator(new BleScanner.Callback() {
+            @Override
+            public void onDeviceFound(BluetoothDevice device, int rssi, byte[] scanRecord) {
+                // Display the smoothed value so the list does not jump around with every advertisement
+                float smoothed= registry.smoothedRssi(device.getAddress());
+                queueResult(device, Float.isNaN(smoothed) ? rssi : Math.round(smoothed));
+            }
 
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-            filterServiceUuids = new HashSet<>();
-            if (filterUuids != null) {
-                filterServiceUuids.addAll(Arrays.asList(filterUuids));
+            @Override
+            public void onScanFailed(int errorCode) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        stopBleScan();
+                    }
+                });
             }
-        } else {
-            api21FilterServiceUuids= new HashSet<>();
-            for (UUID uuid : filterUuids) {
-                api21FilterServiceUuids.add(new ParcelUuid(uuid));
+        });
+        scanner= new BleScanner(btAdapter, new BleScanner.Callback() {
+            @Override
+            public void onDeviceFound(BluetoothDevice device, int rssi, byte[] scanRecord) {
+                registry.record(device, rssi, SystemClock.elapsedRealtime());
+                deduplicator.onDeviceFound(device, rssi, scanRecord);
             }
-        }
 
-        ListView scannedDevices= (ListView) view.findViewById(R.id.blescan_devices);
+            @Override
+            public void onScanFailed(int errorCode) {
+                deduplicator.onScanFailed(errorCode);
+            }
+        }).setFilterServiceUuids(commBus.getFilterServiceUuids());
+        registry.setEvictionListener(new DeviceRegistry.EvictionListener() {
+            @Override
+            public void onDeviceEvicted(BluetoothDevice device) {
+                synchronized (pendingLock) {
+                    pendingResults.remove(device.getAddress());
+                }
+                // evictStaleDevices notifies once after all evictions
+                scannedDevicesAdapter.setNotifyOnChange(false);
+                scannedDevicesAdapter.remove(device.getAddress());
+            }
+        });
+
+        scannedDevices= (ListView) view.findViewById(R.id.blescan_devices);
         scannedDevices.setAdapter(scannedDevicesAdapter);
         scannedDevices.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
@@ -232,12 +274,11 @@ public class BleScannerFragment extends Fragment {
     @Override
     public void onDestroyView() {
         stopBleScan();
+        mHandler.removeCallbacks(flushResults);
+        mHandler.removeCallbacks(evictStaleDevices);
         super.onDestroyView();
     }
 
-    private BluetoothAdapter.LeScanCallback deprecatedScanCallback= null;
-    private ScanCallback api21ScallCallback= null;
-
     /**
      * Starts scanning for Bluetooth LE devices
      */
@@ -248,7 +289,14 @@ public class BleScannerFragment extends Fragment {
             return;
         }
 
+        synchronized (pendingLock) {
+            pendingResults.clear();
+        }
+        registry.clear();
+        deduplicator.clear();
+        scannedDevicesAdapter.setNotifyOnChange(false);
         scannedDevicesAdapter.clear();
+        scannedDevicesAdapter.notifyDataSetChanged();
         isScanning= true;
         scanControl.setText(R.string.ble_scan_cancel);
         mHandler.postDelayed(new Runnable() {
@@ -258,103 +306,90 @@ public class BleScannerFragment extends Fragment {
             }
         }, commBus.getScanDuration());
 
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-            deprecatedScanCallback= new BluetoothAdapter.LeScanCallback() {
-                private void foundDevice(final BluetoothDevice btDevice, final int rssi) {
-                    mHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            scannedDevicesAdapter.update(new ScannedDeviceInfo(btDevice, rssi));
-                        }
-                    });
-                }
-                @Override
-                public void onLeScan(BluetoothDevice bluetoothDevice, int rssi, byte[] scanRecord) {
-                    ///< Service UUID parsing code taking from stack overflow= http://stackoverflow.com/a/24539704
-
-                    ByteBuffer buffer= ByteBuffer.wrap(scanRecord).order(ByteOrder.LITTLE_ENDIAN);
-                    boolean stop= false;
-                    while (!stop && buffer.remaining() > 2) {
-                        byte length = buffer.get();
-                        if (length == 0) break;
-
-                        byte type = buffer.get();
-                        switch (type) {
-                            case 0x02: // Partial list of 16-bit UUIDs
-                            case 0x03: // Complete list of 16-bit UUIDs
-                                while (length >= 2) {
-                                    UUID serviceUUID= UUID.fromString(String.format("%08x-0000-1000-8000-00805f9b34fb", buffer.getShort()));
-                                    stop= filterServiceUuids.isEmpty() || filterServiceUuids.contains(serviceUUID);
-                                    if (stop) {
-                                        foundDevice(bluetoothDevice, rssi);
-                                    }
-
-                                    length -= 2;
-                                }
-                                break;
-
-                            case 0x06: // Partial list of 128-bit UUIDs
-                            case 0x07: // Complete list of 128-bit UUIDs
-                                while (!stop && length >= 16) {
-                                    long lsb= buffer.getLong(), msb= buffer.getLong();
-                                    stop= filterServiceUuids.isEmpty() || filterServiceUuids.contains(new UUID(msb, lsb));
-                                    if (stop) {
-                                        foundDevice(bluetoothDevice, rssi);
-                                    }
-                                    length -= 16;
-                                }
-                                break;
-
-                            default:
-                                buffer.position(buffer.position() + length - 1);
-                                break;
-                        }
-                    }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && commBus instanceof ScanSettingsProvider) {
+            scanner.setScanSettings(((ScanSettingsProvider) commBus).getScanSettings());
+        }
+        scanner.start();
+        mHandler.postDelayed(evictStaleDevices, EVICTION_CHECK_INTERVAL);
+    }
+
+    // Drops devices that stopped advertising while the scan is running
+    private final Runnable evictStaleDevices= new Runnable() {
+        @Override
+        public void run() {
+            if (registry.evictStale(SystemClock.elapsedRealtime()) > 0) {
+                scannedDevicesAdapter.notifyDataSetChanged();
+            }
+            if (isScanning) {
+                mHandler.postDelayed(this, EVICTION_CHECK_INTERVAL);
+            }
+        }
+    };
+
+    // Called from the Bluetooth thread, results are merged per device until the next flush on the UI thread
+    private void queueResult(BluetoothDevice device, int rssi) {
+        synchronized (pendingLock) {
+            ScannedDeviceInfo info= pendingResults.get(device.getAddress());
+            if (info == null) {
+                pendingResults.put(device.getAddress(), new ScannedDeviceInfo(device, rssi));
+            } else {
+                info.rssi= rssi;
+            }
 
-                    if (!stop && filterServiceUuids.isEmpty()) {
-                        foundDevice(bluetoothDevice, rssi);
+            if (!flushScheduled) {
+                flushScheduled= true;
+                mHandler.postDelayed(flushResults, RESULT_FLUSH_INTERVAL);
+            }
+        }
+    }
+
+    private final Runnable flushResults= new Runnable() {
+        @Override
+        public void run() {
+            HashMap<String, ScannedDeviceInfo> results;
+            synchronized (pendingLock) {
+                results= pendingResults;
+                pendingResults= flushingResults;
+                flushingResults= results;
+                flushScheduled= false;
+            }
+
+            // ArrayAdapter turns notify on change back on with every notifyDataSetChanged call, disable it again so
+            // the batch is applied without redrawing the list for each device
+            scannedDevicesAdapter.setNotifyOnChange(false);
+
+            boolean added= false;
+            int first= scannedDevices.getFirstVisiblePosition(), last= scannedDevices.getLastVisiblePosition();
+            for (ScannedDeviceInfo it : results.values()) {
+                int pos= scannedDevicesAdapter.positionOf(it.btDevice.getAddress());
+                scannedDevicesAdapter.update(it);
+
+                if (pos == -1) {
+                    added= true;
+                } else if (!added && pos >= first && pos <= last) {
+                    // Only rebind the row that changed instead of the whole list
+                    View row= scannedDevices.getChildAt(pos - first);
+                    if (row != null) {
+                        scannedDevicesAdapter.getView(pos, row, scannedDevices);
                     }
                 }
-            };
-            btAdapter.startLeScan(deprecatedScanCallback);
-        } else {
-            api21ScallCallback= new ScanCallback() {
-                @Override
-                public void onScanResult(int callbackType, final ScanResult result) {
-                    if (result.getScanRecord() != null && result.getScanRecord().getServiceUuids() != null) {
-                        boolean valid= true;
-                        for (ParcelUuid it : result.getScanRecord().getServiceUuids()) {
-                            valid&= api21FilterServiceUuids.contains(it);
-                        }
+            }
 
-                        if (valid) {
-                            mHandler.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    scannedDevicesAdapter.update(new ScannedDeviceInfo(result.getDevice(), result.getRssi()));
-                                }
-                            });
-                        }
-                    }
+            results.clear();
 
-                    super.onScanResult(callbackType, result);
-                }
-            };
-            btAdapter.getBluetoothLeScanner().startScan(api21ScallCallback);
+            if (added) {
+                scannedDevicesAdapter.notifyDataSetChanged();
+            }
         }
-    }
+    };
 
     /**
      * Stops the Bluetooth LE scan
      */
     public void stopBleScan() {
         if (isScanning) {
-            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-                btAdapter.stopLeScan(deprecatedScanCallback);
-            } else {
-                btAdapter.getBluetoothLeScanner().stopScan(api21ScallCallback);
-            }
-
+            scanner.stop();
+            mHandler.removeCallbacks(evictStaleDevices);
             isScanning= false;
             scanControl.setText(R.string.ble_scan);
         }
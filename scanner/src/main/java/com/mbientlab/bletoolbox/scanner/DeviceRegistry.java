@@ -0,0 +1,380 @@
+/*
+ * Copyright 2015 MbientLab Inc. All rights reserved.
+ */
+
+package com.mbientlab.bletoolbox.scanner;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * Tracks every device seen during a scan with its first and last seen times, advertisement count, and an exponentially
+ * smoothed RSSI.  Devices are keyed by their MAC address packed into a long and stored in parallel primitive arrays
+ * with open addressing, so recording an advertisement does not allocate once the table has grown to fit.  Timestamps
+ * are supplied by the caller and only need to be monotonic, e.g. SystemClock.elapsedRealtime().
+ */
+public class DeviceRegistry {
+    /**
+     * Receives devices removed by {@link #evictStale(long)}
+     */
+    public interface EvictionListener {
+        /**
+         * Called when a device has not advertised within the eviction timeout and was removed from the registry
+         * @param device    Device that was removed
+         */
+        void onDeviceEvicted(BluetoothDevice device);
+    }
+
+    /** Default smoothing factor applied to new RSSI samples */
+    public static final float DEFAULT_SMOOTHING_FACTOR= 0.25f;
+    /** Default time a device can be silent before it is evicted, in milliseconds */
+    public static final long DEFAULT_EVICTION_TIMEOUT= 10000L;
+
+    // MAC addresses only use 48 bits so a negative key can never collide with a device
+    private static final long EMPTY= -1L;
+
+    private long[] keys;
+    private long[] firstSeen, lastSeen;
+    private int[] counts;
+    private float[] rssi;
+    private BluetoothDevice[] devices;
+    private int size, mask;
+    private int[] rankSlots= new int[0];
+
+    private float smoothingFactor= DEFAULT_SMOOTHING_FACTOR;
+    private long evictionTimeout= DEFAULT_EVICTION_TIMEOUT;
+    private EvictionListener evictionListener;
+
+    /**
+     * Creates a registry sized for a typical scan
+     */
+    public DeviceRegistry() {
+        this(64);
+    }
+
+    /**
+     * Creates a registry sized for an expected number of devices
+     * @param expectedDevices    Number of devices the registry should hold without growing
+     */
+    public DeviceRegistry(int expectedDevices) {
+        int capacity= 16;
+        while (capacity < expectedDevices * 2) {
+            capacity<<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys= new long[capacity];
+        firstSeen= new long[capacity];
+        lastSeen= new long[capacity];
+        counts= new int[capacity];
+        rssi= new float[capacity];
+        devices= new BluetoothDevice[capacity];
+        mask= capacity - 1;
+        size= 0;
+        for (int i= 0; i < capacity; i++) {
+            keys[i]= EMPTY;
+        }
+    }
+
+    /**
+     * Sets how strongly new RSSI samples affect the smoothed value
+     * @param factor    Weight of the newest sample, between 0 (exclusive) and 1 (inclusive, no smoothing)
+     * @return Calling object
+     */
+    public synchronized DeviceRegistry setSmoothingFactor(float factor) {
+        if (factor <= 0f || factor > 1f) {
+            throw new IllegalArgumentException("Smoothing factor must be in (0, 1]");
+        }
+        smoothingFactor= factor;
+        return this;
+    }
+
+    /**
+     * Sets how long a device can go without advertising before {@link #evictStale(long)} removes it
+     * @param timeout    Silence period, in milliseconds
+     * @return Calling object
+     */
+    public synchronized DeviceRegistry setEvictionTimeout(long timeout) {
+        evictionTimeout= timeout;
+        return this;
+    }
+
+    /**
+     * Sets the listener to notify when devices are evicted
+     * @param listener    Eviction listener, null to remove the current one
+     * @return Calling object
+     */
+    public synchronized DeviceRegistry setEvictionListener(EvictionListener listener) {
+        evictionListener= listener;
+        return this;
+    }
+
+    /**
+     * Packs a MAC address of the form "AA:BB:CC:DD:EE:FF" into the lower 48 bits of a long without allocating
+     * @param address    MAC address to pack
+     * @return Packed address
+     */
+    public static long packAddress(String address) {
+        long packed= 0;
+        int digits= 0;
+        for (int i= 0; i < address.length(); i++) {
+            char c= address.charAt(i);
+            if (c == ':') {
+                continue;
+            }
+            int value= Character.digit(c, 16);
+            if (value < 0) {
+                throw new IllegalArgumentException("Invalid MAC address: " + address);
+            }
+            packed= (packed << 4) | value;
+            digits++;
+        }
+        if (digits != 12) {
+            throw new IllegalArgumentException("Invalid MAC address: " + address);
+        }
+        return packed;
+    }
+
+    private int slotOf(long key) {
+        long hash= key * 0x9e3779b97f4a7c15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private int find(long key) {
+        int i= slotOf(key);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i= (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Records an advertisement, adding the device if it has not been seen before
+     * @param device       Device that advertised
+     * @param rssi         Received signal strength, in dBm
+     * @param timestamp    When the advertisement was received, in milliseconds
+     * @return Smoothed RSSI of the device after applying the sample
+     */
+    public synchronized float record(BluetoothDevice device, int rssi, long timestamp) {
+        long key= packAddress(device.getAddress());
+        int i= find(key);
+        if (i == -1) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+            }
+
+            i= slotOf(key);
+            while (keys[i] != EMPTY) {
+                i= (i + 1) & mask;
+            }
+            keys[i]= key;
+            firstSeen[i]= timestamp;
+            counts[i]= 0;
+            this.rssi[i]= rssi;
+            size++;
+        } else {
+            this.rssi[i]+= smoothingFactor * (rssi - this.rssi[i]);
+        }
+
+        devices[i]= device;
+        lastSeen[i]= timestamp;
+        counts[i]++;
+        return this.rssi[i];
+    }
+
+    private void grow() {
+        long[] oldKeys= keys, oldFirst= firstSeen, oldLast= lastSeen;
+        int[] oldCounts= counts;
+        float[] oldRssi= rssi;
+        BluetoothDevice[] oldDevices= devices;
+
+        allocate(oldKeys.length * 2);
+        for (int j= 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != EMPTY) {
+                int i= slotOf(oldKeys[j]);
+                while (keys[i] != EMPTY) {
+                    i= (i + 1) & mask;
+                }
+                keys[i]= oldKeys[j];
+                firstSeen[i]= oldFirst[j];
+                lastSeen[i]= oldLast[j];
+                counts[i]= oldCounts[j];
+                rssi[i]= oldRssi[j];
+                devices[i]= oldDevices[j];
+                size++;
+            }
+        }
+    }
+
+    // Backward shift deletion keeps probe sequences intact without tombstones
+    private void removeSlot(int i) {
+        int j= i;
+        while (true) {
+            j= (j + 1) & mask;
+            if (keys[j] == EMPTY) {
+                break;
+            }
+
+            int home= slotOf(keys[j]);
+            boolean inPlace= i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!inPlace) {
+                keys[i]= keys[j];
+                firstSeen[i]= firstSeen[j];
+                lastSeen[i]= lastSeen[j];
+                counts[i]= counts[j];
+                rssi[i]= rssi[j];
+                devices[i]= devices[j];
+                i= j;
+            }
+        }
+
+        keys[i]= EMPTY;
+        devices[i]= null;
+        size--;
+    }
+
+    /**
+     * Removes devices that have not advertised within the eviction timeout
+     * @param now    Current time, in the same time base as the recorded timestamps
+     * @return Number of devices removed
+     */
+    public synchronized int evictStale(long now) {
+        int evicted= 0;
+        for (int i= 0; i < keys.length; ) {
+            if (keys[i] != EMPTY && now - lastSeen[i] > evictionTimeout) {
+                BluetoothDevice device= devices[i];
+                // A later entry may be shifted into this slot so check it again
+                removeSlot(i);
+                evicted++;
+
+                if (evictionListener != null) {
+                    evictionListener.onDeviceEvicted(device);
+                }
+            } else {
+                i++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Removes all devices
+     */
+    public synchronized void clear() {
+        for (int i= 0; i < keys.length; i++) {
+            keys[i]= EMPTY;
+            devices[i]= null;
+        }
+        size= 0;
+    }
+
+    /**
+     * Retrieves how many devices are in the registry
+     * @return Number of devices
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Checks if a device is in the registry
+     * @param address    MAC address of the device
+     * @return True if the device has been seen and not evicted
+     */
+    public synchronized boolean contains(String address) {
+        return find(packAddress(address)) != -1;
+    }
+
+    /**
+     * Retrieves the smoothed RSSI of a device
+     * @param address    MAC address of the device
+     * @return Smoothed RSSI in dBm, NaN if the device is not in the registry
+     */
+    public synchronized float smoothedRssi(String address) {
+        int i= find(packAddress(address));
+        return i == -1 ? Float.NaN : rssi[i];
+    }
+
+    /**
+     * Retrieves when a device was first seen
+     * @param address    MAC address of the device
+     * @return Timestamp of the first advertisement, -1 if the device is not in the registry
+     */
+    public synchronized long firstSeen(String address) {
+        int i= find(packAddress(address));
+        return i == -1 ? -1L : firstSeen[i];
+    }
+
+    /**
+     * Retrieves when a device was last seen
+     * @param address    MAC address of the device
+     * @return Timestamp of the latest advertisement, -1 if the device is not in the registry
+     */
+    public synchronized long lastSeen(String address) {
+        int i= find(packAddress(address));
+        return i == -1 ? -1L : lastSeen[i];
+    }
+
+    /**
+     * Retrieves how many advertisements have been received from a device
+     * @param address    MAC address of the device
+     * @return Advertisement count, 0 if the device is not in the registry
+     */
+    public synchronized int advertisementCount(String address) {
+        int i= find(packAddress(address));
+        return i == -1 ? 0 : counts[i];
+    }
+
+    /**
+     * Finds the device with the strongest smoothed RSSI
+     * @return Nearest device, null if the registry is empty
+     */
+    public synchronized BluetoothDevice nearest() {
+        int best= -1;
+        for (int i= 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY && (best == -1 || rssi[i] > rssi[best])) {
+                best= i;
+            }
+        }
+        return best == -1 ? null : devices[best];
+    }
+
+    /**
+     * Ranks devices by smoothed RSSI, strongest first, without allocating
+     * @param out    Array to fill with the nearest devices, its length is the number of devices to rank
+     * @return Number of devices written to the array
+     */
+    public synchronized int nearest(BluetoothDevice[] out) {
+        if (rankSlots.length < out.length) {
+            rankSlots= new int[out.length];
+        }
+
+        // Insertion into a sorted list of slots, entries falling off the end are discarded
+        int n= 0;
+        for (int i= 0; i < keys.length; i++) {
+            if (keys[i] == EMPTY) {
+                continue;
+            }
+
+            int pos= n;
+            while (pos > 0 && rssi[i] > rssi[rankSlots[pos - 1]]) {
+                pos--;
+            }
+            if (pos < out.length) {
+                int moved= Math.min(n, out.length - 1) - pos;
+                System.arraycopy(rankSlots, pos, rankSlots, pos + 1, moved);
+                rankSlots[pos]= i;
+                n= Math.min(n + 1, out.length);
+            }
+        }
+
+        for (int i= 0; i < n; i++) {
+            out[i]= devices[rankSlots[i]];
+        }
+        return n;
+    }
+}
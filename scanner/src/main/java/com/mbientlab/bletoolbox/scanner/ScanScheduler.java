@@ -0,0 +1,304 @@
+/*
+ * Copyright 2015 MbientLab Inc. All rights reserved.
+ */
+
+package com.mbientlab.bletoolbox.scanner;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Starts and stops a {@link BleScanner} according to a schedule while staying under Android's limit of 5 scan starts
+ * per 30 seconds.  Exceeding the limit makes the OS silently drop the scan, so the scheduler tracks recent starts and
+ * lengthens the idle period, or keeps the current scan running, rather than issuing a start that would be throttled.
+ * All methods must be called from the thread of the handler given to the constructor, except for
+ * {@link #onScanFailed(int)}.
+ */
+public class ScanScheduler {
+    /**
+     * How the scanner is cycled
+     */
+    public enum Mode {
+        /** Scan without stopping */
+        CONTINUOUS,
+        /** Alternate between scanning for the scan window and idling for the rest of the scan interval */
+        DUTY_CYCLED,
+        /** Duty cycle normally, but scan continuously while boosted with {@link #boost(long)} */
+        ADAPTIVE
+    }
+
+    /**
+     * Receives scan failures the scheduler stopped retrying
+     */
+    public interface FailureListener {
+        /**
+         * Called when the scan failed {@link #MAX_RETRIES} times in a row.  The scheduler is stopped when this is called
+         * @param errorCode    Error code of the last failure, one of the ScanCallback.SCAN_FAILED_* constants
+         */
+        void onScanFailed(int errorCode);
+    }
+
+    /** Maximum number of scan starts Android allows in {@link #THROTTLE_WINDOW} */
+    public static final int THROTTLE_MAX_STARTS= 5;
+    /** Period the scan start limit applies to, in milliseconds */
+    public static final long THROTTLE_WINDOW= 30000L;
+    /** Number of consecutive failed scans retried before the scheduler gives up */
+    public static final int MAX_RETRIES= 4;
+    /** Delay before the first retry of a failed scan, doubled with each consecutive failure, in milliseconds */
+    public static final long RETRY_BACKOFF= 1000L;
+    // Our clock and the stack's clock are not in sync, wait a little longer than needed
+    private static final long THROTTLE_MARGIN= 500L;
+
+    private final BleScanner scanner;
+    private final Handler handler;
+    private final long[] startTimes= new long[THROTTLE_MAX_STARTS];
+    private int startCount, startHead;
+
+    private Mode mode= Mode.DUTY_CYCLED;
+    private long scanWindow= 4000L, scanInterval= 10000L;
+    private int startBudget= THROTTLE_MAX_STARTS - 1;
+    private long boostUntil, lastStart;
+    private boolean running;
+    private int failures;
+    private FailureListener failureListener;
+
+    /**
+     * Creates a scheduler for a scanner
+     * @param scanner    Scanner to start and stop, should not be started or stopped by anything else
+     * @param handler    Handler to run the schedule on
+     */
+    public ScanScheduler(BleScanner scanner, Handler handler) {
+        this.scanner= scanner;
+        this.handler= handler;
+    }
+
+    /**
+     * Sets how the scanner is cycled, takes effect immediately if the scheduler is running
+     * @param mode    New scan mode
+     * @return Calling object
+     */
+    public ScanScheduler setMode(Mode mode) {
+        this.mode= mode;
+        reschedule();
+        return this;
+    }
+
+    /**
+     * Sets the duty cycle used by {@link Mode#DUTY_CYCLED} and {@link Mode#ADAPTIVE}
+     * @param scanWindow      How long to scan each cycle, in milliseconds
+     * @param scanInterval    Time between the start of each cycle, in milliseconds, must be longer than the window
+     * @return Calling object
+     */
+    public ScanScheduler setDutyCycle(long scanWindow, long scanInterval) {
+        if (scanWindow <= 0 || scanInterval <= scanWindow) {
+            throw new IllegalArgumentException("Scan interval must be longer than a non-zero scan window");
+        }
+        this.scanWindow= scanWindow;
+        this.scanInterval= scanInterval;
+        return this;
+    }
+
+    /**
+     * Sets how many scan starts the scheduler may use per {@link #THROTTLE_WINDOW}.  The default keeps one start in
+     * reserve for other scanners in the app
+     * @param budget    Number of starts, between 1 and {@link #THROTTLE_MAX_STARTS}
+     * @return Calling object
+     */
+    public ScanScheduler setStartBudget(int budget) {
+        if (budget < 1 || budget > THROTTLE_MAX_STARTS) {
+            throw new IllegalArgumentException("Start budget must be between 1 and " + THROTTLE_MAX_STARTS);
+        }
+        startBudget= budget;
+        return this;
+    }
+
+    /**
+     * Sets the listener to notify when the scheduler gives up on a failing scan
+     * @param listener    Failure listener, null to remove the current one
+     * @return Calling object
+     */
+    public ScanScheduler setFailureListener(FailureListener listener) {
+        failureListener= listener;
+        return this;
+    }
+
+    /**
+     * Starts running the schedule
+     */
+    public void start() {
+        if (!running) {
+            running= true;
+            failures= 0;
+            handler.post(tick);
+        }
+    }
+
+    /**
+     * Restarts the scan after a backoff, forward {@link BleScanner.Callback#onScanFailed(int)} of the scheduled scanner
+     * here.  Retries use the same start budget as the schedule.  After {@link #MAX_RETRIES} consecutive failures, the
+     * scheduler stops and notifies the {@link FailureListener}.  Can be called from any thread
+     * @param errorCode    Error code passed to the scanner callback
+     */
+    public void onScanFailed(final int errorCode) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                scanFailed(errorCode);
+            }
+        });
+    }
+
+    private void scanFailed(int errorCode) {
+        if (!running) {
+            return;
+        }
+
+        long now= SystemClock.elapsedRealtime();
+        // A scan that ran for a full throttle window before failing is not part of a run of failures
+        if (now - lastStart > THROTTLE_WINDOW) {
+            failures= 0;
+        }
+
+        failures++;
+        if (failures > MAX_RETRIES) {
+            stop();
+            if (failureListener != null) {
+                failureListener.onScanFailed(errorCode);
+            }
+            return;
+        }
+
+        // The tick waits for the start budget if the backoff ends before a start is allowed
+        handler.removeCallbacks(tick);
+        handler.postDelayed(tick, RETRY_BACKOFF << (failures - 1));
+    }
+
+    /**
+     * Stops the schedule and the scanner
+     */
+    public void stop() {
+        running= false;
+        handler.removeCallbacks(tick);
+        scanner.stop();
+    }
+
+    /**
+     * Checks if the schedule is running
+     * @return True if {@link #start()} was called without a following {@link #stop()}
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Scans continuously for a period of time when in {@link Mode#ADAPTIVE} mode, e.g. when target devices are expected
+     * nearby or right after one was found.  Boosts that overlap are merged
+     * @param duration    How long to scan continuously, in milliseconds
+     */
+    public void boost(long duration) {
+        boostUntil= Math.max(boostUntil, SystemClock.elapsedRealtime() + duration);
+        if (mode == Mode.ADAPTIVE) {
+            reschedule();
+        }
+    }
+
+    /**
+     * Retrieves how many scan starts can be issued right now without exceeding the start budget
+     * @return Number of starts remaining
+     */
+    public int startsRemaining() {
+        return Math.max(0, startBudget - startsAt(SystemClock.elapsedRealtime()));
+    }
+
+    private void reschedule() {
+        if (running) {
+            handler.removeCallbacks(tick);
+            handler.post(tick);
+        }
+    }
+
+    // Starts still counted against the budget at the given time
+    private int startsAt(long time) {
+        int count= 0;
+        for (int i= 0; i < startCount; i++) {
+            if (startTimes[i] > time - THROTTLE_WINDOW - THROTTLE_MARGIN) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Earliest time at or after the given time a start fits in the budget
+    private long nextAllowedStart(long time) {
+        int excess= startsAt(time) - startBudget;
+        if (excess < 0) {
+            return time;
+        }
+
+        // Wait for enough of the starts in the window to age out, the ring holds them oldest first from startHead
+        int aged= 0;
+        for (int i= 0; i < startCount; i++) {
+            long start= startTimes[(startHead + i) % startCount];
+            if (start > time - THROTTLE_WINDOW - THROTTLE_MARGIN && aged++ == excess) {
+                return start + THROTTLE_WINDOW + THROTTLE_MARGIN;
+            }
+        }
+        return time;
+    }
+
+    private void recordStart(long time) {
+        if (startCount < startTimes.length) {
+            startTimes[startCount++]= time;
+        } else {
+            startTimes[startHead]= time;
+            startHead= (startHead + 1) % startTimes.length;
+        }
+    }
+
+    private final Runnable tick= new Runnable() {
+        @Override
+        public void run() {
+            if (!running) {
+                return;
+            }
+
+            long now= SystemClock.elapsedRealtime();
+            boolean boosted= mode == Mode.ADAPTIVE && now < boostUntil;
+            boolean continuous= mode == Mode.CONTINUOUS || boosted;
+
+            if (scanner.isScanning()) {
+                if (continuous) {
+                    if (boosted) {
+                        handler.postDelayed(this, boostUntil - now);
+                    }
+                    return;
+                }
+
+                long nextStart= now + scanInterval - scanWindow, allowed= nextAllowedStart(nextStart);
+                if (allowed > nextStart + scanWindow) {
+                    // Idling now would leave no start to resume with, keep scanning through the next window instead
+                    handler.postDelayed(this, scanWindow);
+                    return;
+                }
+
+                scanner.stop();
+                handler.postDelayed(this, Math.max(nextStart, allowed) - now);
+            } else {
+                long allowed= nextAllowedStart(now);
+                if (allowed > now) {
+                    handler.postDelayed(this, allowed - now);
+                    return;
+                }
+
+                recordStart(now);
+                lastStart= now;
+                scanner.start();
+                if (boosted) {
+                    handler.postDelayed(this, boostUntil - now);
+                } else if (!continuous) {
+                    handler.postDelayed(this, scanWindow);
+                }
+            }
+        }
+    };
+}
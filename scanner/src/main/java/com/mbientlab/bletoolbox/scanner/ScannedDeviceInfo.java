@@ -25,4 +25,9 @@ public class ScannedDeviceInfo {
         return (obj == this) ||
                 ((obj instanceof ScannedDeviceInfo) && btDevice.equals(((ScannedDeviceInfo) obj).btDevice));
     }
+
+    @Override
+    public int hashCode() {
+        return btDevice.hashCode();
+    }
 }
@@ -12,6 +12,7 @@ import android.widget.ArrayAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import java.util.HashMap;
 import java.util.Locale;
 
 /**
@@ -22,6 +23,9 @@ public class ScannedDeviceInfoAdapter extends ArrayAdapter<ScannedDeviceInfo> {
     private final static int RSSI_BAR_LEVELS= 5;
     private final static int RSSI_BAR_SCALE= 100 / RSSI_BAR_LEVELS;
 
+    // Maps device addresses to list positions, reindexed when a device is removed
+    private final HashMap<String, Integer> positions= new HashMap<>();
+
     public ScannedDeviceInfoAdapter(Context context, int resource) {
         super(context, resource);
     }
@@ -65,13 +69,51 @@ public class ScannedDeviceInfoAdapter extends ArrayAdapter<ScannedDeviceInfo> {
         public ImageView rssiChart;
     }
 
+    /**
+     * Retrieves the list position of a device
+     * @param address    MAC address of the device
+     * @return Position of the device, -1 if the device is not in the list
+     */
+    public int positionOf(String address) {
+        Integer pos= positions.get(address);
+        return pos == null ? -1 : pos;
+    }
+
+    /**
+     * Adds the device to the list, or updates the existing entry's RSSI if the device is already in the list
+     * @param newInfo    Updated device information
+     */
     public void update(ScannedDeviceInfo newInfo) {
-        int pos= getPosition(newInfo);
+        int pos= positionOf(newInfo.btDevice.getAddress());
         if (pos == -1) {
+            positions.put(newInfo.btDevice.getAddress(), getCount());
             add(newInfo);
         } else {
             getItem(pos).rssi= newInfo.rssi;
-            notifyDataSetChanged();
         }
     }
+
+    /**
+     * Removes a device from the list
+     * @param address    MAC address of the device
+     * @return True if the device was in the list
+     */
+    public boolean remove(String address) {
+        Integer pos= positions.remove(address);
+        if (pos == null) {
+            return false;
+        }
+
+        remove(getItem(pos));
+        for (int i= pos; i < getCount(); i++) {
+            positions.put(getItem(i).btDevice.getAddress(), i);
+        }
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        positions.clear();
+        super.clear();
+    }
 };
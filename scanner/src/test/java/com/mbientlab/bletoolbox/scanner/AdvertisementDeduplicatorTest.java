@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015 MbientLab Inc. All rights reserved.
+ */
+
+package com.mbientlab.bletoolbox.scanner;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class AdvertisementDeduplicatorTest {
+    private static final byte[] PAYLOAD= new byte[] {0x02, 0x01, 0x06}, OTHER_PAYLOAD= new byte[] {0x02, 0x01, 0x05};
+
+    private final ArrayList<BluetoothDevice> forwarded= new ArrayList<>();
+    private int failure= -1;
+    private long now;
+    private MockedStatic<SystemClock> clock;
+    private AdvertisementDeduplicator dedup;
+
+    @Before
+    public void setup() {
+        now= 50000L;
+        clock= mockStatic(SystemClock.class);
+        clock.when(SystemClock::elapsedRealtime).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) {
+                return now;
+            }
+        });
+
+        dedup= new AdvertisementDeduplicator(new BleScanner.Callback() {
+            @Override
+            public void onDeviceFound(BluetoothDevice device, int rssi, byte[] scanRecord) {
+                forwarded.add(device);
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+                failure= errorCode;
+            }
+        }).setRepeatWindow(1000).setRssiThreshold(5);
+    }
+
+    @After
+    public void tearDown() {
+        clock.close();
+    }
+
+    private static BluetoothDevice device(int id) {
+        BluetoothDevice device= mock(BluetoothDevice.class);
+        when(device.getAddress()).thenReturn(String.format(Locale.US, "C0:FF:EE:00:%02X:%02X", (id >> 8) & 0xff, id & 0xff));
+        return device;
+    }
+
+    @Test
+    public void suppressesIdenticalAdvertisementsWithinWindow() {
+        BluetoothDevice device= device(1);
+        dedup.onDeviceFound(device, -60, PAYLOAD);
+        now+= 500;
+        dedup.onDeviceFound(device, -62, PAYLOAD);
+
+        assertEquals(1, forwarded.size());
+        assertEquals(2, dedup.receivedCount());
+        assertEquals(1, dedup.suppressedCount());
+    }
+
+    @Test
+    public void forwardsOnceWindowPasses() {
+        BluetoothDevice device= device(1);
+        dedup.onDeviceFound(device, -60, PAYLOAD);
+        now+= 1000;
+        dedup.onDeviceFound(device, -60, PAYLOAD);
+
+        assertEquals(2, forwarded.size());
+    }
+
+    @Test
+    public void forwardsChangedPayload() {
+        BluetoothDevice device= device(1);
+        dedup.onDeviceFound(device, -60, PAYLOAD);
+        dedup.onDeviceFound(device, -60, OTHER_PAYLOAD);
+
+        assertEquals(2, forwarded.size());
+    }
+
+    @Test
+    public void rssiChangeIsMeasuredFromLastForwardedValue() {
+        BluetoothDevice device= device(1);
+        dedup.onDeviceFound(device, -60, PAYLOAD);
+        dedup.onDeviceFound(device, -63, PAYLOAD);
+        dedup.onDeviceFound(device, -64, PAYLOAD);
+        assertEquals(1, forwarded.size());
+
+        dedup.onDeviceFound(device, -65, PAYLOAD);
+        assertEquals(2, forwarded.size());
+    }
+
+    @Test
+    public void tracksDevicesIndependently() {
+        for (int i= 0; i < 200; i++) {
+            dedup.onDeviceFound(device(i), -60, PAYLOAD);
+        }
+        for (int i= 0; i < 200; i++) {
+            dedup.onDeviceFound(device(i), -60, PAYLOAD);
+        }
+
+        assertEquals(200, forwarded.size());
+        assertEquals(200, dedup.suppressedCount());
+    }
+
+    @Test
+    public void expiredDevicesAreForwardedAfterTableRebuild() {
+        for (int i= 0; i < 40; i++) {
+            dedup.onDeviceFound(device(i), -60, PAYLOAD);
+        }
+        now+= 2000;
+        // Enough new devices to rebuild the table, expired entries are dropped instead of copied
+        for (int i= 40; i < 80; i++) {
+            dedup.onDeviceFound(device(i), -60, PAYLOAD);
+        }
+        for (int i= 0; i < 80; i++) {
+            dedup.onDeviceFound(device(i), -60, PAYLOAD);
+        }
+
+        // First 40 are outside the window, the last 40 are repeats
+        assertEquals(80 + 40, forwarded.size());
+    }
+
+    @Test
+    public void clearForgetsDevices() {
+        BluetoothDevice device= device(1);
+        dedup.onDeviceFound(device, -60, PAYLOAD);
+        dedup.clear();
+        dedup.onDeviceFound(device, -60, PAYLOAD);
+
+        assertEquals(2, forwarded.size());
+    }
+
+    @Test
+    public void resetCountersZeroesStatistics() {
+        dedup.onDeviceFound(device(1), -60, PAYLOAD);
+        dedup.resetCounters();
+
+        assertEquals(0, dedup.receivedCount());
+        assertEquals(0, dedup.forwardedCount());
+        assertEquals(0, dedup.suppressedCount());
+    }
+
+    @Test
+    public void passesScanFailuresThrough() {
+        dedup.onScanFailed(3);
+        assertEquals(3, failure);
+    }
+}
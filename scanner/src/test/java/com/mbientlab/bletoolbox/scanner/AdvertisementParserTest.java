@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015 MbientLab Inc. All rights reserved.
+ */
+
+package com.mbientlab.bletoolbox.scanner;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class AdvertisementParserTest {
+    private static final UUID METAWEAR_SERVICE= UUID.fromString("326a9000-85cb-9195-d9dd-464cfbbae75a");
+
+    private AdvertisementParser parser;
+
+    @Before
+    public void setup() {
+        parser= new AdvertisementParser();
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] array= new byte[values.length];
+        for (int i= 0; i < values.length; i++) {
+            array[i]= (byte) values[i];
+        }
+        return array;
+    }
+
+    // 128-bit UUIDs are advertised least significant byte first
+    private static byte[] littleEndian(UUID uuid) {
+        byte[] array= new byte[16];
+        long lsb= uuid.getLeastSignificantBits(), msb= uuid.getMostSignificantBits();
+        for (int i= 0; i < 8; i++) {
+            array[i]= (byte) (lsb >>> (8 * i));
+            array[i + 8]= (byte) (msb >>> (8 * i));
+        }
+        return array;
+    }
+
+    @Test
+    public void parsesShortUuidsAgainstBaseUuid() {
+        assertTrue(parser.parse(bytes(0x05, 0x03, 0x0d, 0x18, 0x0f, 0x18)));
+
+        assertEquals(2, parser.serviceUuidCount());
+        assertEquals(UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb"), parser.serviceUuid(0));
+        assertTrue(parser.hasServiceUuid(UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb")));
+    }
+
+    @Test
+    public void parsesFullUuids() {
+        byte[] uuid= littleEndian(METAWEAR_SERVICE), record= new byte[18];
+        record[0]= 17;
+        record[1]= AdvertisementParser.TYPE_COMPLETE_128BIT_UUIDS;
+        System.arraycopy(uuid, 0, record, 2, 16);
+
+        assertTrue(parser.parse(record));
+        assertEquals(1, parser.serviceUuidCount());
+        assertEquals(METAWEAR_SERVICE.getMostSignificantBits(), parser.serviceUuidMsb(0));
+        assertEquals(METAWEAR_SERVICE.getLeastSignificantBits(), parser.serviceUuidLsb(0));
+        assertTrue(parser.hasServiceUuid(METAWEAR_SERVICE));
+    }
+
+    @Test
+    public void parsesNameTxPowerAndManufacturerData() {
+        byte[] record= bytes(
+                0x09, 0x09, 'M', 'e', 't', 'a', 'W', 'e', 'a', 'r',
+                0x02, 0x0a, 0xfc,
+                0x05, 0xff, 0x7e, 0x06, 0x01, 0x02
+        );
+
+        assertTrue(parser.parse(record));
+        assertTrue(parser.hasLocalName());
+        assertTrue(parser.isCompleteLocalName());
+        assertEquals("MetaWear", parser.localName());
+        assertEquals(2, parser.localNameOffset());
+        assertEquals(8, parser.localNameLength());
+
+        assertTrue(parser.hasTxPower());
+        assertEquals(-4, parser.txPower());
+
+        assertEquals(1, parser.manufacturerDataCount());
+        assertEquals(0x067e, parser.manufacturerId(0));
+        assertEquals(17, parser.manufacturerDataOffset(0));
+        assertEquals(2, parser.manufacturerDataLength(0));
+    }
+
+    @Test
+    public void parsesServiceData() {
+        assertTrue(parser.parse(bytes(0x05, 0x16, 0x0f, 0x18, 0x64, 0x00)));
+
+        assertEquals(1, parser.serviceDataCount());
+        assertEquals(new UUID(parser.serviceDataUuidMsb(0), parser.serviceDataUuidLsb(0)),
+                UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb"));
+        assertEquals(4, parser.serviceDataOffset(0));
+        assertEquals(2, parser.serviceDataLength(0));
+    }
+
+    @Test
+    public void stopsAtZeroPadding() {
+        assertTrue(parser.parse(bytes(0x02, 0x0a, 0x00, 0x00, 0x00, 0x00)));
+        assertTrue(parser.hasTxPower());
+    }
+
+    @Test
+    public void reportsTruncatedStructure() {
+        assertFalse(parser.parse(bytes(0x02, 0x0a, 0x00, 0x05, 0x03, 0x0d)));
+        // Structures before the malformed one are still available
+        assertTrue(parser.hasTxPower());
+        assertEquals(0, parser.serviceUuidCount());
+    }
+
+    @Test
+    public void growsPastInitialCapacity() {
+        byte[] record= new byte[2 + 2 * 10];
+        record[0]= (byte) (1 + 2 * 10);
+        record[1]= AdvertisementParser.TYPE_INCOMPLETE_16BIT_UUIDS;
+        for (int i= 0; i < 10; i++) {
+            record[2 + 2 * i]= (byte) i;
+        }
+
+        assertTrue(parser.parse(record));
+        assertEquals(10, parser.serviceUuidCount());
+        assertEquals(UUID.fromString("00000009-0000-1000-8000-00805f9b34fb"), parser.serviceUuid(9));
+    }
+
+    @Test
+    public void reparsingClearsPreviousResults() {
+        parser.parse(bytes(0x03, 0x03, 0x0d, 0x18, 0x03, 0x08, 'M', 'W'));
+        assertFalse(parser.isCompleteLocalName());
+
+        assertTrue(parser.parse(bytes(0x02, 0x0a, 0x00)));
+        assertEquals(0, parser.serviceUuidCount());
+        assertFalse(parser.hasLocalName());
+        assertNull(parser.localName());
+    }
+
+    @Test
+    public void parsesSubrange() {
+        byte[] record= bytes(0xaa, 0xbb, 0x03, 0x03, 0x0d, 0x18, 0xcc);
+
+        assertTrue(parser.parse(record, 2, 4));
+        assertEquals(1, parser.serviceUuidCount());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsIndexPastCount() {
+        parser.parse(bytes(0x03, 0x03, 0x0d, 0x18));
+        parser.serviceUuid(1);
+    }
+}
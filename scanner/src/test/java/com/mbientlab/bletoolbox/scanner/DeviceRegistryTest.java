@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 MbientLab Inc. All rights reserved.
+ */
+
+package com.mbientlab.bletoolbox.scanner;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class DeviceRegistryTest {
+    private DeviceRegistry registry;
+
+    @Before
+    public void setup() {
+        registry= new DeviceRegistry(4);
+    }
+
+    private static BluetoothDevice device(int id) {
+        BluetoothDevice device= mock(BluetoothDevice.class);
+        when(device.getAddress()).thenReturn(address(id));
+        return device;
+    }
+
+    private static String address(int id) {
+        return String.format(Locale.US, "C0:FF:EE:00:%02X:%02X", (id >> 8) & 0xff, id & 0xff);
+    }
+
+    @Test
+    public void packsAddressIntoLowerBits() {
+        assertEquals(0xaabbccddeeffL, DeviceRegistry.packAddress("AA:BB:CC:DD:EE:FF"));
+        assertEquals(0xaabbccddeeffL, DeviceRegistry.packAddress("aa:bb:cc:dd:ee:ff"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsShortAddress() {
+        DeviceRegistry.packAddress("AA:BB:CC:DD:EE");
+    }
+
+    @Test
+    public void smoothsRssiAndTracksTimes() {
+        BluetoothDevice device= device(1);
+        assertEquals(-60f, registry.record(device, -60, 1000L), 0f);
+        assertEquals(-65f, registry.record(device, -80, 1500L), 0.001f);
+
+        assertEquals(1, registry.size());
+        assertEquals(2, registry.advertisementCount(address(1)));
+        assertEquals(1000L, registry.firstSeen(address(1)));
+        assertEquals(1500L, registry.lastSeen(address(1)));
+        assertEquals(-65f, registry.smoothedRssi(address(1)), 0.001f);
+    }
+
+    @Test
+    public void unknownDeviceHasNoStats() {
+        assertFalse(registry.contains(address(7)));
+        assertTrue(Float.isNaN(registry.smoothedRssi(address(7))));
+        assertEquals(-1L, registry.lastSeen(address(7)));
+        assertEquals(0, registry.advertisementCount(address(7)));
+        assertNull(registry.nearest());
+    }
+
+    @Test
+    public void growsAndKeepsEveryDevice() {
+        for (int i= 0; i < 200; i++) {
+            registry.record(device(i), -40 - (i % 50), i);
+        }
+
+        assertEquals(200, registry.size());
+        for (int i= 0; i < 200; i++) {
+            assertTrue(registry.contains(address(i)));
+            assertEquals(i, registry.firstSeen(address(i)));
+        }
+    }
+
+    @Test
+    public void evictsSilentDevicesAndKeepsTheRestReachable() {
+        registry.setEvictionTimeout(100);
+        final ArrayList<String> evicted= new ArrayList<>();
+        registry.setEvictionListener(new DeviceRegistry.EvictionListener() {
+            @Override
+            public void onDeviceEvicted(BluetoothDevice device) {
+                evicted.add(device.getAddress());
+            }
+        });
+
+        // Even ids go silent, odd ids keep advertising
+        for (int i= 0; i < 100; i++) {
+            registry.record(device(i), -50, 0);
+        }
+        for (int i= 1; i < 100; i+= 2) {
+            registry.record(device(i), -50, 150);
+        }
+
+        assertEquals(50, registry.evictStale(200));
+        assertEquals(50, evicted.size());
+        assertEquals(50, registry.size());
+        for (int i= 0; i < 100; i++) {
+            assertEquals(address(i), i % 2 == 1, registry.contains(address(i)));
+        }
+        assertEquals(0, registry.evictStale(200));
+    }
+
+    @Test
+    public void ranksByStrongestSmoothedRssi() {
+        BluetoothDevice far= device(1), near= device(2), middle= device(3);
+        registry.record(far, -90, 0);
+        registry.record(near, -40, 0);
+        registry.record(middle, -60, 0);
+
+        assertSame(near, registry.nearest());
+
+        BluetoothDevice[] top= new BluetoothDevice[2];
+        assertEquals(2, registry.nearest(top));
+        assertSame(near, top[0]);
+        assertSame(middle, top[1]);
+
+        BluetoothDevice[] all= new BluetoothDevice[5];
+        assertEquals(3, registry.nearest(all));
+        assertSame(far, all[2]);
+    }
+
+    @Test
+    public void rankingFollowsSmoothedValue() {
+        BluetoothDevice steady= device(1), moving= device(2);
+        registry.setSmoothingFactor(0.5f);
+        registry.record(steady, -60, 0);
+        registry.record(moving, -80, 0);
+
+        // Single strong sample is only partially applied: -80 + 0.5 * (-30 + 80) = -55
+        registry.record(moving, -30, 10);
+        assertSame(moving, registry.nearest());
+    }
+
+    @Test
+    public void clearRemovesEverything() {
+        registry.record(device(1), -50, 0);
+        registry.clear();
+
+        assertEquals(0, registry.size());
+        assertFalse(registry.contains(address(1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroSmoothingFactor() {
+        registry.setSmoothingFactor(0f);
+    }
+}
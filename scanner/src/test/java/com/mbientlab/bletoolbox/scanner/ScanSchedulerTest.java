@@ -0,0 +1,260 @@
+/*
+ * Copyright 2015 MbientLab Inc. All rights reserved.
+ */
+
+package com.mbientlab.bletoolbox.scanner;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class ScanSchedulerTest {
+    private static final class Scheduled {
+        final long due;
+        final Runnable task;
+
+        Scheduled(long due, Runnable task) {
+            this.due= due;
+            this.task= task;
+        }
+    }
+
+    private final class FakeScanner extends BleScanner {
+        final ArrayList<Long> starts= new ArrayList<>();
+        boolean scanning;
+
+        FakeScanner() {
+            super(null, null);
+        }
+
+        @Override
+        public synchronized boolean isScanning() {
+            return scanning;
+        }
+
+        @Override
+        public synchronized boolean start() {
+            if (scanning) {
+                return false;
+            }
+            starts.add(now);
+            scanning= true;
+            return true;
+        }
+
+        @Override
+        public synchronized void stop() {
+            scanning= false;
+        }
+
+        // What BleScanner does when the stack reports a failure
+        void fail(ScanScheduler scheduler, int errorCode) {
+            scanning= false;
+            scheduler.onScanFailed(errorCode);
+        }
+    }
+
+    private long now;
+    private final ArrayList<Scheduled> queue= new ArrayList<>();
+    private MockedStatic<SystemClock> clock;
+    private FakeScanner scanner;
+    private ScanScheduler scheduler;
+
+    @Before
+    public void setup() {
+        now= 100000L;
+        clock= mockStatic(SystemClock.class);
+        clock.when(SystemClock::elapsedRealtime).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) {
+                return now;
+            }
+        });
+
+        Handler handler= mock(Handler.class);
+        when(handler.post(any(Runnable.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                queue.add(new Scheduled(now, (Runnable) invocation.getArgument(0)));
+                return true;
+            }
+        });
+        when(handler.postDelayed(any(Runnable.class), anyLong())).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                queue.add(new Scheduled(now + (Long) invocation.getArgument(1), (Runnable) invocation.getArgument(0)));
+                return true;
+            }
+        });
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                Iterator<Scheduled> it= queue.iterator();
+                while (it.hasNext()) {
+                    if (it.next().task == invocation.getArgument(0)) {
+                        it.remove();
+                    }
+                }
+                return null;
+            }
+        }).when(handler).removeCallbacks(any(Runnable.class));
+
+        scanner= new FakeScanner();
+        scheduler= new ScanScheduler(scanner, handler);
+    }
+
+    @After
+    public void tearDown() {
+        clock.close();
+    }
+
+    // Runs everything due up to the target time in order
+    private void advance(long millis) {
+        long target= now + millis;
+        while (true) {
+            Scheduled next= null;
+            for (Scheduled it : queue) {
+                if (it.due <= target && (next == null || it.due < next.due)) {
+                    next= it;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            queue.remove(next);
+            now= Math.max(now, next.due);
+            next.task.run();
+        }
+        now= target;
+    }
+
+    private void assertWithinBudget(int budget) {
+        for (int i= 0; i < scanner.starts.size(); i++) {
+            int inWindow= 0;
+            for (int j= 0; j <= i; j++) {
+                if (scanner.starts.get(i) - scanner.starts.get(j) < ScanScheduler.THROTTLE_WINDOW) {
+                    inWindow++;
+                }
+            }
+            assertTrue("Too many starts in window ending at " + scanner.starts.get(i), inWindow <= budget);
+        }
+    }
+
+    @Test
+    public void dutyCycleStaysWithinStartBudget() {
+        scheduler.setMode(ScanScheduler.Mode.DUTY_CYCLED).setDutyCycle(1000, 2000).start();
+        advance(120000);
+
+        assertFalse(scanner.starts.isEmpty());
+        assertWithinBudget(ScanScheduler.THROTTLE_MAX_STARTS - 1);
+    }
+
+    @Test
+    public void keepsScanningWhenBudgetWouldLeaveNoStart() {
+        scheduler.setMode(ScanScheduler.Mode.DUTY_CYCLED).setDutyCycle(1000, 2000).start();
+        advance(7000);
+
+        // Four starts used in the first cycles, the scan is extended instead of stopped
+        assertEquals(ScanScheduler.THROTTLE_MAX_STARTS - 1, scanner.starts.size());
+        assertTrue(scanner.isScanning());
+        assertEquals(0, scheduler.startsRemaining());
+    }
+
+    @Test
+    public void customBudgetIsRespected() {
+        scheduler.setMode(ScanScheduler.Mode.DUTY_CYCLED).setDutyCycle(500, 1000).setStartBudget(2).start();
+        advance(90000);
+
+        assertWithinBudget(2);
+    }
+
+    @Test
+    public void continuousScanStartsOnce() {
+        scheduler.setMode(ScanScheduler.Mode.CONTINUOUS).start();
+        advance(60000);
+
+        assertEquals(1, scanner.starts.size());
+        assertTrue(scanner.isScanning());
+    }
+
+    @Test
+    public void failedScanIsRestartedWithBackoff() {
+        scheduler.setMode(ScanScheduler.Mode.CONTINUOUS).start();
+        advance(0);
+        long first= scanner.starts.get(0);
+
+        scanner.fail(scheduler, 2);
+        advance(ScanScheduler.RETRY_BACKOFF - 1);
+        assertEquals(1, scanner.starts.size());
+        advance(1);
+        assertEquals(2, scanner.starts.size());
+
+        scanner.fail(scheduler, 2);
+        advance(2 * ScanScheduler.RETRY_BACKOFF);
+        assertEquals(3, scanner.starts.size());
+        assertEquals(first + 3 * ScanScheduler.RETRY_BACKOFF, (long) scanner.starts.get(2));
+        assertTrue(scanner.isScanning());
+    }
+
+    @Test
+    public void givesUpAfterMaxRetriesWithinBudget() {
+        final int[] reported= {-1};
+        scheduler.setMode(ScanScheduler.Mode.CONTINUOUS).setFailureListener(new ScanScheduler.FailureListener() {
+            @Override
+            public void onScanFailed(int errorCode) {
+                reported[0]= errorCode;
+            }
+        }).start();
+
+        for (int i= 0; i < 100 && scheduler.isRunning(); i++) {
+            advance(0);
+            if (scanner.isScanning()) {
+                scanner.fail(scheduler, 6);
+            }
+            advance(1000);
+        }
+
+        assertFalse(scheduler.isRunning());
+        assertEquals(6, reported[0]);
+        assertEquals(ScanScheduler.MAX_RETRIES + 1, scanner.starts.size());
+        assertWithinBudget(ScanScheduler.THROTTLE_MAX_STARTS - 1);
+    }
+
+    @Test
+    public void failureAfterLongScanDoesNotCountTowardsRetries() {
+        scheduler.setMode(ScanScheduler.Mode.CONTINUOUS).start();
+
+        for (int i= 0; i < 2 * ScanScheduler.MAX_RETRIES; i++) {
+            advance(ScanScheduler.THROTTLE_WINDOW + 5000);
+            scanner.fail(scheduler, 2);
+        }
+        advance(ScanScheduler.RETRY_BACKOFF);
+
+        assertTrue(scheduler.isRunning());
+        assertTrue(scanner.isScanning());
+    }
+
+    @Test
+    public void failureAfterStopIsIgnored() {
+        scheduler.setMode(ScanScheduler.Mode.CONTINUOUS).start();
+        advance(0);
+        scheduler.stop();
+
+        scheduler.onScanFailed(2);
+        advance(60000);
+        assertEquals(1, scanner.starts.size());
+    }
+}